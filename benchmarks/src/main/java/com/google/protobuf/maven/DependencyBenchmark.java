@@ -0,0 +1,62 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Measures {@link AbstractProtocMojo#makeProtoPathFromJars(File, Iterable)} over sets of dependency jars, with
+ * a warm dependency cache and with extraction on every call.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DependencyBenchmark {
+
+	@Param({"50", "500"})
+	int jars;
+
+	@Param({"true", "false"})
+	boolean withProtos;
+
+	@Param({"true", "false"})
+	boolean cached;
+
+	private File workDirectory;
+	private List<File> jarFiles;
+	private ProtocCompileMojo mojo;
+
+	@Setup
+	public void setUp() throws IOException, MojoExecutionException {
+		this.workDirectory = Fixtures.createWorkDirectory();
+		this.jarFiles = Fixtures.writeJars(new File(this.workDirectory, "repository"), this.jars, this.withProtos);
+		this.mojo = Fixtures.newCompileMojo(this.workDirectory, this.cached);
+		// warm the cache, the cold case is paid once per build and dominated by the copying
+		this.makeProtoPathFromJars();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Fixtures.delete(this.workDirectory);
+	}
+
+	@Benchmark
+	public ImmutableSet<File> makeProtoPathFromJars() throws IOException, MojoExecutionException {
+		return this.mojo.makeProtoPathFromJars(new File(this.workDirectory, "protoc-dependencies"), this.jarFiles);
+	}
+}
@@ -0,0 +1,45 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the hashing of dependency paths done once per jar.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HashingBenchmark {
+
+	private final String jarPath = "/home/builder/.m2/repository/com/example/common-types/1.2.3/common-types-1.2.3.jar";
+	private final byte[] digest = new byte[16];
+	private ProtocCompileMojo mojo;
+
+	@Setup
+	public void setUp() {
+		this.mojo = Fixtures.newCompileMojo(new File("target"), true);
+		for (int i = 0; i < this.digest.length; i++) {
+			this.digest[i] = (byte) (i * 31);
+		}
+	}
+
+	@Benchmark
+	public String truncatePath() throws MojoExecutionException {
+		return this.mojo.truncatePath(this.jarPath);
+	}
+
+	@Benchmark
+	public String toHexString() {
+		return AbstractProtocMojo.toHexString(this.digest);
+	}
+}
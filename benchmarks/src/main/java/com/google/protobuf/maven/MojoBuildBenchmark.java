@@ -0,0 +1,174 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Measures whole builds of a generated project: {@link ProtocCompileMojo} alone, and followed by
+ * {@link ProtocTestCompileMojo} in the same session. The mojos get the defaults of the plugin descriptor and run
+ * {@link FakeProtoc} instead of {@code protoc}. The main protos import protos of every dependency jar, and the
+ * test protos import a main proto. Before each build the project is put into the state of the {@link #scenario}:
+ * <ul>
+ * <li>{@code cold}: no outputs and no caches, like a fresh checkout on a CI agent.</li>
+ * <li>{@code warm}: nothing changed since the last build.</li>
+ * <li>{@code oneFileChanged}: a main proto no other proto imports was edited.</li>
+ * <li>{@code dependencyChanged}: a dependency jar with a proto the main protos import was replaced.</li>
+ * </ul>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MojoBuildBenchmark {
+
+	private static final int DEPENDENCIES = 20;
+
+	@Param({"100", "1000"})
+	int protos;
+
+	@Param({"cold", "warm", "oneFileChanged", "dependencyChanged"})
+	String scenario;
+
+	@Param({"0"})
+	long protocLatencyMillis;
+
+	@Param({"0"})
+	long protocLatencyPerProtoMicros;
+
+	@Param({"2048"})
+	int protocOutputBytes;
+
+	private File workDirectory;
+	private File basedir;
+	private File protocExecutable;
+	private List<File> dependencyJars;
+	private File editedProto;
+	private String editedProtoContent;
+	private int revision;
+	private long lastModified;
+	private ProtocCompileMojo compileMojo;
+	private ProtocTestCompileMojo testCompileMojo;
+
+	@Setup
+	public void setUp() throws IOException, MojoExecutionException, MojoFailureException {
+		this.workDirectory = Fixtures.createWorkDirectory();
+		this.basedir = new File(this.workDirectory, "project");
+		this.protocExecutable = FakeProtoc.install(new File(this.workDirectory, "bin"), this.protocLatencyMillis,
+				this.protocLatencyPerProtoMicros, this.protocOutputBytes);
+		this.dependencyJars = Fixtures.writeJars(new File(this.workDirectory, "repository"),
+				MojoBuildBenchmark.DEPENDENCIES, true);
+
+		final File protoSourceRoot = new File(this.basedir, "src/main/proto");
+		Fixtures.writeProtoTree(protoSourceRoot, this.protos);
+		StringBuilder dependencyImports = new StringBuilder("syntax = \"proto2\";\npackage deps;\n");
+		for (int i = 0; i < MojoBuildBenchmark.DEPENDENCIES; i++) {
+			dependencyImports.append(String.format("import \"com/example/dep%04d/message00.proto\";\n", i));
+		}
+		MojoBuildBenchmark.write(new File(protoSourceRoot, "deps/dependencies.proto"), dependencyImports);
+
+		final File protoTestSourceRoot = new File(this.basedir, "src/test/proto");
+		Fixtures.writeProtoTree(protoTestSourceRoot, "test", Math.max(1, this.protos / 10));
+		MojoBuildBenchmark.write(new File(protoTestSourceRoot, "tests/main.proto"),
+				"syntax = \"proto2\";\npackage tests;\nimport \"pkg00000/message000.proto\";\n");
+
+		// the last proto of the first directory, which no other proto imports
+		this.editedProto = new File(protoSourceRoot,
+				String.format("pkg00000/message%03d.proto", Math.min(this.protos, Fixtures.PROTOS_PER_DIRECTORY) - 1));
+		this.editedProtoContent = Files.toString(this.editedProto, Charsets.UTF_8);
+		this.lastModified = System.currentTimeMillis();
+
+		this.prepare();
+		this.compileAndTestCompile();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Fixtures.delete(this.workDirectory);
+	}
+
+	/**
+	 * Brings the project into the state of the {@link #scenario} and configures new mojos for the next build.
+	 */
+	@Setup(Level.Invocation)
+	public void prepare() throws IOException {
+		switch (this.scenario) {
+			case "cold":
+				Fixtures.delete(new File(this.basedir, "target"));
+				Fixtures.delete(new File(this.workDirectory, "cache"));
+				break;
+			case "warm":
+				break;
+			case "oneFileChanged":
+				Files.write(this.editedProtoContent + String.format("// edit %010d\n", ++this.revision), this.editedProto,
+						Charsets.UTF_8);
+				this.touch(this.editedProto);
+				break;
+			case "dependencyChanged":
+				Fixtures.writeJar(this.dependencyJars.get(0), 0, true, ++this.revision);
+				this.touch(this.dependencyJars.get(0));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown scenario " + this.scenario);
+		}
+
+		final MavenSession session = Fixtures.newSession();
+		final MavenProject project = Fixtures.newProject(this.basedir, this.dependencyJars);
+		this.compileMojo = this.configure(new ProtocCompileMojo(), "compile", session, project);
+		this.testCompileMojo = this.configure(new ProtocTestCompileMojo(), "test-compile", session, project);
+	}
+
+	@Benchmark
+	public void compile() throws MojoExecutionException, MojoFailureException {
+		this.compileMojo.execute();
+	}
+
+	@Benchmark
+	public void compileAndTestCompile() throws MojoExecutionException, MojoFailureException {
+		this.compileMojo.execute();
+		this.testCompileMojo.execute();
+	}
+
+	private <T extends AbstractProtocMojo> T configure(T mojo, String goal, MavenSession session, MavenProject project)
+			throws IOException {
+		Fixtures.configure(mojo, goal, session, project);
+		Fixtures.set(mojo, "protocExecutable", this.protocExecutable.getAbsolutePath());
+		Fixtures.set(mojo, "dependencyCacheDirectory", new File(this.workDirectory, "cache"));
+		return mojo;
+	}
+
+	private static void write(File file, CharSequence content) throws IOException {
+		Files.createParentDirs(file);
+		Files.write(content, file, Charsets.UTF_8);
+	}
+
+	/**
+	 * Moves the modification time of {@code file} a second past the previous one, so the change is seen whatever
+	 * the resolution of the file system.
+	 */
+	private void touch(File file) throws IOException {
+		this.lastModified += 1000;
+		if (!file.setLastModified(this.lastModified)) {
+			throw new IOException("Could not touch " + file);
+		}
+	}
+}
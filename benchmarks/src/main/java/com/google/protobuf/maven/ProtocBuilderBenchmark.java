@@ -0,0 +1,79 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Measures the validation done by {@link Protoc.Builder#addProtoFiles(Iterable)} and the assembly of the
+ * command line by {@link Protoc#buildProtocCommand()}.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProtocBuilderBenchmark {
+
+	@Param({"1000", "10000"})
+	int protos;
+
+	@Param({"1", "32"})
+	int protoPathElements;
+
+	private File workDirectory;
+	private File outputDirectory;
+	private List<File> protoPath;
+	private ImmutableSet<File> protoFiles;
+	private Protoc protoc;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.workDirectory = Fixtures.createWorkDirectory();
+		File protoSourceRoot = new File(this.workDirectory, "proto");
+		Fixtures.writeProtoTree(protoSourceRoot, this.protos);
+		this.protoFiles = Fixtures.newCompileMojo(this.workDirectory, true).findProtoFilesInDirectory(protoSourceRoot);
+		this.protoPath = Lists.newArrayList();
+		for (int i = 1; i < this.protoPathElements; i++) {
+			File protoPathElement = new File(this.workDirectory, "dependency" + i);
+			protoPathElement.mkdirs();
+			this.protoPath.add(protoPathElement);
+		}
+		this.protoPath.add(protoSourceRoot);
+		this.outputDirectory = new File(this.workDirectory, "generated");
+		this.outputDirectory.mkdirs();
+		this.protoc = this.build();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Fixtures.delete(this.workDirectory);
+	}
+
+	@Benchmark
+	public Protoc build() {
+		return new Protoc.Builder("protoc", this.outputDirectory)
+				.addProtoPathElements(this.protoPath)
+				.addProtoFiles(this.protoFiles)
+				.build();
+	}
+
+	@Benchmark
+	public ImmutableList<String> buildProtocCommand() {
+		return this.protoc.buildProtocCommand();
+	}
+}
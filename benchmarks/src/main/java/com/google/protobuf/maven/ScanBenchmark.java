@@ -0,0 +1,52 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Measures {@link AbstractProtocMojo#findProtoFilesInDirectory(File)} over trees of different sizes.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScanBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	int protos;
+
+	private File workDirectory;
+	private File protoSourceRoot;
+	private ProtocCompileMojo mojo;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.workDirectory = Fixtures.createWorkDirectory();
+		this.protoSourceRoot = new File(this.workDirectory, "proto");
+		Fixtures.writeProtoTree(this.protoSourceRoot, this.protos);
+		this.mojo = Fixtures.newCompileMojo(this.workDirectory, true);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Fixtures.delete(this.workDirectory);
+	}
+
+	@Benchmark
+	public ImmutableSet<File> findProtoFilesInDirectory() throws IOException {
+		return this.mojo.findProtoFilesInDirectory(this.protoSourceRoot);
+	}
+}
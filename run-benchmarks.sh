@@ -0,0 +1,39 @@
+#! /bin/bash
+# Builds the plugin and the JMH benchmarks, then runs them. Any argument is passed on to JMH, e.g. a
+# benchmark regex or "-p protos=1000". Results are written as JSON named after the current commit.
+#
+# To measure a change, run the same benchmarks once on the baseline commit and once on the change, then
+# compare the two result files:
+#
+#   git checkout <baseline> && ./run-benchmarks.sh MojoBuildBenchmark
+#   git checkout <change> && ./run-benchmarks.sh MojoBuildBenchmark
+#   ./run-benchmarks.sh --compare <baseline> <change>
+#
+# The comparison lists every benchmark and parameter combination found in both files with both scores,
+# their errors and the score of the change relative to the baseline. It needs jq.
+
+set -e
+cd "$(dirname "$0")"
+
+if [ "$1" = "--compare" ]; then
+	baseline="benchmarks/results/$(git rev-parse --short "$2").json"
+	change="benchmarks/results/$(git rev-parse --short "$3").json"
+	jq -r -n --slurpfile baseline "$baseline" --slurpfile change "$change" '
+		def id: [.benchmark] + ((.params // {}) | to_entries | map(.key + "=" + .value)) | join(" ");
+		def round3: . * 1000 | round / 1000;
+		# the error is "NaN" for too few iterations
+		def score: (.score | round3 | tostring)
+			+ (if (.scoreError | type) == "number" then " ± \(.scoreError | round3)" else "" end);
+		($baseline[0] | map({key: id, value: .primaryMetric}) | from_entries) as $scores
+		| ["benchmark", "baseline", "change", "unit", "change/baseline"],
+		($change[0][] | id as $id | select($scores[$id] != null)
+			| [$id, ($scores[$id] | score), (.primaryMetric | score), .primaryMetric.scoreUnit,
+				"\(.primaryMetric.score / $scores[$id].score * 100 | round)%"])
+		| @tsv'
+	exit
+fi
+
+mvn -q install -DskipTests
+mvn -q -f benchmarks/pom.xml package
+mkdir -p benchmarks/results
+java -jar benchmarks/target/benchmarks.jar -rf json -rff "benchmarks/results/$(git rev-parse --short HEAD).json" "$@"
@@ -1,20 +1,29 @@
 package com.google.protobuf.maven;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Component;
@@ -23,13 +32,26 @@ import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.cli.CommandLineException;
-import org.codehaus.plexus.util.io.RawInputStreamFacade;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Bytes;
 
 /**
  * Abstract Mojo implementation.
@@ -46,143 +68,1614 @@ abstract class AbstractProtocMojo extends AbstractMojo {
 
 	private static final String PROTO_FILE_SUFFIX = ".proto";
 	private static final String DEFAULT_INCLUDES = "**/*" + AbstractProtocMojo.PROTO_FILE_SUFFIX;
+	/**
+	 * The {@code // source:}, {@code # source:} or gRPC {@code comments = "Source: ..."} naming the proto a
+	 * generated file belongs to.
+	 */
+	private static final Pattern SOURCE_HEADER = Pattern.compile("\\b[Ss]ource: ([^\\s\"]+\\.proto)\\b");
+	private static final FileTreeScanner ALL_PROTO_FILES_SCANNER =
+			FileTreeScanner.withDefaultExcludes(ImmutableSet.of(AbstractProtocMojo.DEFAULT_INCLUDES),
+					ImmutableSet.<String>of());
+	private static final FileTreeScanner ALL_FILES_SCANNER = FileTreeScanner.ALL_FILES;
+	private static final FileTreeScanner GENERATED_FILE_SCANNER =
+			new FileTreeScanner(ImmutableSet.of("**/*.java"), ImmutableSet.<String>of());
+
+	/**
+	 * The current Maven thisProject.
+	 *
+	 */
+	@Component
+	protected MavenProject project;
+
+	/**
+	 * The current Maven session, used to share extracted dependency protos between the modules of a reactor.
+	 *
+	 */
+	@Parameter(defaultValue = "${session}", readonly = true)
+	private MavenSession session;
+
+	/**
+	 * A helper used to add resources to the thisProject.
+	 *
+	 */
+	@Component
+	protected MavenProjectHelper projectHelper;
+
+	/**
+	 * This is the path to the {@code protoc} executable. By default it will search the {@code $PATH}.
+	 *
+	 */
+	@Parameter(defaultValue = "protoc", required = true)
+	private String protocExecutable;
+
+	@Parameter
+	private File[] additionalProtoPathElements = new File[]{};
+
+	/**
+	 * Set this to {@code false} to extract the protos of dependency jars into {@link #temporaryProtoFileDirectory}
+	 * on every build instead of reusing the copies in {@link #dependencyCacheDirectory}.
+	 *
+	 */
+	@Parameter(defaultValue = "true", required = true)
+	private boolean cacheDependencyProtos;
+
+	/**
+	 * Only puts the dependencies providing protos the sources import, directly or through other imports, on the
+	 * proto path, instead of every dependency containing protos. Without {@link #cacheDependencyProtos} only the
+	 * imported protos are extracted. Set this to {@code false} if {@code protoc} needs dependency protos that are
+	 * not imported, for example through a plugin.
+	 *
+	 */
+	@Parameter(defaultValue = "true", required = true)
+	private boolean extractImportedProtosOnly;
+
+	/**
+	 * The maximum number of dependency jars read or extracted concurrently. Defaults to the number of available
+	 * processors.
+	 *
+	 */
+	@Parameter(defaultValue = "0", required = true)
+	private int extractionThreads;
+
+	/**
+	 * The cache of protos extracted from dependency jars. It is safe to share between concurrent builds and
+	 * checkouts, and can be deleted at any time. Defaults to {@code .cache/protoc-plugin} inside the local
+	 * repository.
+	 *
+	 */
+	@Parameter
+	private File dependencyCacheDirectory;
+
+	/**
+	 * This is the path to the local maven {@code repository}.
+	 *
+	 */
+	@Parameter(defaultValue = "${localRepository}", required = true)
+	private ArtifactRepository localRepository;
+
+	/**
+	 * Set this to {@code false} to disable hashing of dependent jar paths.
+	 * <p/>
+	 * This plugin expands jars on the classpath looking for embedded .proto files.
+	 * Normally these paths are hashed (MD5) to avoid issues with long file names on windows.
+	 * However if this property is set to {@code false} longer paths will be used.
+	 *
+	 */
+	@Parameter(defaultValue = "true", required = true)
+	private boolean hashDependentPaths;
+
+	@Parameter
+	private Set<String> includes = ImmutableSet.of(AbstractProtocMojo.DEFAULT_INCLUDES);
+
+	@Parameter
+	private Set<String> excludes = ImmutableSet.of();
+
+	/**
+	 * How much newer than the newest proto the newest generated file has to be for {@link #checkStaleness} to skip
+	 * the compilation.
+	 *
+	 */
+	@Parameter
+	private long staleMillis = 0;
+
+	/**
+	 * Skip the compilation when the newest generated file is newer than the newest proto. Only honored with
+	 * {@link #incremental} disabled: incremental compilation compares content hashes instead of timestamps, and
+	 * ignores this parameter with a warning.
+	 *
+	 */
+	@Parameter
+	private boolean checkStaleness = false;
+
+	/**
+	 * Set this to {@code false} to go back to wiping the output directory and compiling every proto on each build.
+	 * <p/>
+	 * When enabled a manifest recording the content hash, the {@code import} statements and the generated files of
+	 * every proto is kept in {@link #manifestDirectory}, together with the CRC of every dependency proto they import.
+	 * Only the protos whose content changed, and the protos that import them or a changed dependency proto, are
+	 * compiled again; the generated files of removed protos are deleted. Any change to the executable or the
+	 * {@link #additionalProtoPathElements} triggers a full compilation.
+	 *
+	 */
+	@Parameter(defaultValue = "true", required = true)
+	private boolean incremental;
+
+	/**
+	 * The directory holding the manifests used by {@link #incremental} compilation.
+	 *
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/protoc-manifests", required = true)
+	private File manifestDirectory;
+
+	/**
+	 * Set this to {@code true} to split the protos into shards that are compiled by concurrent {@code protoc}
+	 * processes. Protos of the same directory always share a shard; protos that import each other do too, as
+	 * long as the shards stay balanced.
+	 *
+	 */
+	@Parameter(defaultValue = "false", required = true)
+	private boolean parallel;
+
+	/**
+	 * The maximum number of concurrent {@code protoc} processes when compiling in {@link #parallel}. Defaults to
+	 * the number of available processors.
+	 *
+	 */
+	@Parameter(defaultValue = "0", required = true)
+	private int protocThreads;
+
+	/**
+	 * Set this to {@code false} to let {@code protoc} write straight into the output directory.
+	 * <p/>
+	 * By default {@code protoc} writes into {@link #stagingDirectory} and only the generated files whose content
+	 * changed are moved to the output directory, so unchanged sources keep their timestamp and are not
+	 * recompiled by the java compiler.
+	 *
+	 */
+	@Parameter(defaultValue = "true", required = true)
+	private boolean preserveUnchangedOutputs;
+
+	/**
+	 * Makes the generated files independent of the machine and the order the protos were found in: the protos are
+	 * passed to {@code protoc} sorted by path and the line endings of the generated files are normalized to
+	 * {@code \n}.
+	 *
+	 */
+	@Parameter(defaultValue = "false", required = true)
+	private boolean reproducible;
+
+	/**
+	 * Compiles the protos a second time into a temporary directory and reports every generated file whose content
+	 * differs from the first compilation. This doubles the time spent in {@code protoc}, so it is meant for
+	 * tracking down outputs that keep caches from hitting, not for every build.
+	 *
+	 */
+	@Parameter(defaultValue = "false", required = true)
+	private boolean verifyReproducibility;
+
+	/**
+	 * The directory {@code protoc} writes into when {@link #preserveUnchangedOutputs} is enabled.
+	 *
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/protoc-staging", required = true)
+	private File stagingDirectory;
+
+	/**
+	 * The directory the JSON metrics report of each execution is written to, named after its goal and
+	 * execution id.
+	 *
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/protoc-reports", required = true)
+	private File reportDirectory;
+
+	/**
+	 * The maximum wall time in milliseconds of individual phases, keyed by phase name: {@code scan},
+	 * {@code dependencies}, {@code incremental}, {@code cache}, {@code protoc} and {@code output}. A phase taking longer is
+	 * reported as warning, or fails the build if {@link #failOnPhaseThreshold} is set.
+	 *
+	 */
+	@Parameter
+	private Map<String, Long> phaseThresholds = ImmutableMap.of();
+
+	@Parameter(defaultValue = "false", required = true)
+	private boolean failOnPhaseThreshold;
+
+	/**
+	 * Passes the arguments to {@code protoc} through an {@code @argfile}, so the number of proto files is not
+	 * limited by the maximum command line length of the platform. If {@code protoc} does not support argument
+	 * files, the plugin falls back to batches of at most {@link #maxCommandLength} characters.
+	 *
+	 */
+	@Parameter(defaultValue = "true", required = true)
+	private boolean useArgumentFile;
+
+	/**
+	 * The longest command line the plugin passes to {@code protoc} when not using an argument file. Longer
+	 * invocations are split into sequential batches.
+	 *
+	 */
+	@Parameter(defaultValue = "30000", required = true)
+	private int maxCommandLength;
+
+	/**
+	 * Restore the generated files from a cache shared by all checkouts on this machine when the same
+	 * {@code protoc} version already compiled the same protos with the same generators, instead of running
+	 * {@code protoc}. Only used when {@code protoc} would write into empty directories, which is always the case
+	 * with {@link #preserveUnchangedOutputs}. The cache lives in {@link #buildCacheDirectory} and is trimmed to
+	 * {@link #buildCacheMaxSize}.
+	 *
+	 */
+	@Parameter(defaultValue = "false", required = true)
+	private boolean useBuildCache;
+
+	/**
+	 * The directory of the build cache. Defaults to {@code outputs} in the {@link #dependencyCacheDirectory}, that
+	 * is {@code .cache/protoc-plugin/outputs} inside the local repository.
+	 *
+	 */
+	@Parameter
+	private File buildCacheDirectory;
+
+	/**
+	 * The size in megabytes the build cache is trimmed to, deleting the least recently used entries first.
+	 *
+	 */
+	@Parameter(defaultValue = "512", required = true)
+	private long buildCacheMaxSize;
+
+	/**
+	 * Additional generators, {@code --plugin} executables and descriptor sets to produce from the same
+	 * {@code protoc} invocation that generates the java sources, see {@link OutputTarget}.
+	 *
+	 */
+	@Parameter
+	private List<OutputTarget> outputTargets = ImmutableList.of();
+
+	/**
+	 * Compile the protos of all dependency jars once into a cached {@code FileDescriptorSet} and pass it to
+	 * {@code protoc} with {@code --descriptor_set_in}, instead of putting the extracted protos on the protopath
+	 * and having {@code protoc} parse them on every build. Requires {@code protoc} 3.5 or newer and
+	 * {@link #cacheDependencyProtos}.
+	 * <p/>
+	 * Imports of dependency protos have to use their path inside the jar. If any proto imports something
+	 * neither the descriptor set nor the remaining protopath provides, the plugin falls back to the protopath.
+	 *
+	 */
+	@Parameter(defaultValue = "false", required = true)
+	private boolean useDependencyDescriptorSet;
+
+	/**
+	 * If set, every {@code file:line:column: message} diagnostic reported by {@code protoc} is written to this
+	 * file as a JSON object per line, in addition to being logged as it arrives. The file holds the diagnostics of
+	 * all {@code protoc} runs of the last execution.
+	 *
+	 */
+	@Parameter
+	private File diagnosticsFile;
+
+	/**
+	 * How many {@code protoc} processes may run at once, across all modules and executions of the build, and
+	 * across all builds sharing the {@link #protocLockDirectory}. {@code 0} uses the number of available
+	 * processors. The total time spent waiting for a free slot is reported as {@code protocSlotWaitMillis}.
+	 * The first execution of the build sets the limit for all of them, a different value is ignored with a warning.
+	 * The number of lock files in the {@link #protocLockDirectory} is the largest limit of the builds using it.
+	 *
+	 */
+	@Parameter(defaultValue = "0", required = true)
+	private int maxConcurrentProtocs;
+
+	/**
+	 * A directory shared by the builds on a machine, for example the CI jobs of one agent. Each of the
+	 * {@link #maxConcurrentProtocs} slots is a lock file in it, so all of these builds together run no more
+	 * {@code protoc} processes than that. Without it, the limit only applies to this build.
+	 *
+	 */
+	@Parameter
+	private File protocLockDirectory;
+
+	/**
+	 * Set this to {@code false} to go back to adding the proto source root as resource directory, so the protos are
+	 * copied to the classes directory by the resources plugin on every build.
+	 * <p/>
+	 * When enabled the protos matching {@link #includes} and {@link #excludes} are copied to the classes directory
+	 * by this goal. Only new and changed protos are copied, also when compilation is skipped, and the copies of
+	 * protos that were removed from the proto source root are deleted.
+	 *
+	 */
+	@Parameter(defaultValue = "true", required = true)
+	private boolean copyProtos;
+
+	/**
+	 * Set this to {@code true} to write an index of the protos copied by {@link #copyProtos} to
+	 * {@code META-INF/protobuf/index} in the classes directory, listing the CRC-32, the size and the name of each
+	 * proto, one per line.
+	 *
+	 */
+	@Parameter(defaultValue = "false", required = true)
+	private boolean writeProtoIndex;
+
+	/**
+	 * Set this to {@code true} to only take protos from dependency jars carrying an index at
+	 * {@code META-INF/protobuf/index}, as written by the {@code index} goal or by {@link #writeProtoIndex}. Jars
+	 * without one are skipped without reading their entries. Jars with an index are read from the index alone
+	 * either way.
+	 *
+	 */
+	@Parameter(defaultValue = "false", required = true)
+	private boolean requireProtoIndex;
+
+	@Parameter(defaultValue = "${mojoExecution}", readonly = true)
+	private MojoExecution mojoExecution;
+
+	private ExecutionMetrics metrics = new ExecutionMetrics();
+
+	private FileTreeScanner protoFileScanner;
+
+	private final AtomicBoolean argumentFileRejected = new AtomicBoolean();
+
+	private ProtocDiagnostics diagnostics;
+
+	/**
+	 * Whether an earlier {@code protoc} run of this execution started the {@link #diagnosticsFile} already.
+	 */
+	private boolean diagnosticsFileStarted;
+
+	private ProtocSlots protocSlots;
+
+	private final List<DependencyProtoCache.Extraction> dependencyExtractions = Lists.newArrayList();
+
+	private DependencyProtoPath dependencyProtoPath;
+
+	private File dependencyDescriptorSet;
+
+	/**
+	 * The output directory followed by the distinct directories of the {@link #outputTargets}. Generated files
+	 * below the first are named by their relative path, those below the others are prefixed by {@code @<index>/}.
+	 */
+	private ImmutableList<File> outputRoots;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		this.metrics = new ExecutionMetrics();
+		try {
+			this.compileProtoSourceRoot();
+		} finally {
+			this.reportMetrics();
+		}
+		this.checkPhaseThresholds();
+	}
+
+	/**
+	 * Compiles the protos below {@link #getProtoSourceRoot()}, overridden by goals that compile something else.
+	 */
+	void compileProtoSourceRoot() throws MojoExecutionException, MojoFailureException {
+		this.checkParameters();
+		if (this.incremental && this.checkStaleness) {
+			this.getLog().warn("checkStaleness and staleMillis are ignored by incremental compilation, which only "
+					+ "compiles the protos whose content changed. Disable incremental to compare timestamps instead.");
+		}
+		final File protoSourceRoot = this.getProtoSourceRoot();
+		if (protoSourceRoot.exists()) {
+			try {
+				long scanStart = this.metrics.start();
+				ImmutableMap<File, FileTreeScanner.Attributes> scannedProtoFiles = this.scanProtoFilesInDirectory(protoSourceRoot);
+				ImmutableSet<File> protoFiles = scannedProtoFiles.keySet();
+				this.metrics.stop("scan", scanStart);
+				final File outputDirectory = this.getOutputDirectory();
+
+				if (protoFiles.isEmpty()) {
+					this.getLog().info("No proto files to compile.");
+					this.attachProtos(protoSourceRoot, scannedProtoFiles);
+				} else if (!this.incremental && this.checkStaleness && this.lastModified(scannedProtoFiles.values()) + this.staleMillis <
+						this.lastModified(this.scanGeneratedFilesInDirectory(outputDirectory).values())) {
+					this.getLog().info("Skipping compilation because target directory newer than sources.");
+					this.attachFiles();
+					this.attachProtos(protoSourceRoot, scannedProtoFiles);
+				} else {
+					ImmutableSet<File> protoPath = this.prepareCompilation(protoSourceRoot, protoFiles, outputDirectory);
+					if (this.incremental) {
+						this.compileIncrementally(protoSourceRoot, protoPath, scannedProtoFiles, outputDirectory);
+					} else if (this.preserveUnchangedOutputs) {
+						List<StagedOutput> stagedOutputs = this.newStagedOutputs();
+						this.compile(protoSourceRoot, protoPath, protoFiles, ImmutableMap.<String, String>of(),
+								AbstractProtocMojo.directoriesOf(stagedOutputs));
+						long outputStart = this.metrics.start();
+						this.deleteAllOutputsExcept(this.swap(stagedOutputs));
+						this.metrics.stop("output", outputStart);
+					} else {
+						// Quick fix to fix issues with two mvn installs in a row (ie no clean)
+						long outputStart = this.metrics.start();
+						for (File outputRoot : this.outputRoots) {
+							AbstractProtocMojo.clean(outputRoot);
+						}
+						this.metrics.stop("output", outputStart);
+						this.compile(protoSourceRoot, protoPath, protoFiles, ImmutableMap.<String, String>of(), this.outputRoots);
+					}
+					this.attachFiles();
+					this.attachProtos(protoSourceRoot, scannedProtoFiles);
+					this.attachOutputTargets();
+				}
+			} catch (IOException e) {
+				throw new MojoExecutionException("An IO error occured", e);
+			} catch (IllegalArgumentException e) {
+				throw new MojoFailureException("protoc failed to execute because: " + e.getMessage(), e);
+			} catch (CommandLineException e) {
+				throw new MojoExecutionException("An error occurred while invoking protoc.", e);
+			}
+		} else {
+			this.getLog().info(String.format("%s does not exist. Review the configuration or consider disabling the plugin.",
+					protoSourceRoot));
+		}
+	}
+
+	/**
+	 * Extracts the protos of the dependencies, creates the output directories and determines the proto path.
+	 */
+	private ImmutableSet<File> prepareCompilation(File protoSourceRoot, Set<File> protoFiles, File outputDirectory)
+			throws IOException, MojoExecutionException, CommandLineException {
+		this.openProtocSlots();
+		long dependenciesStart = this.metrics.start();
+		final DependencyProtoRegistry registry = DependencyProtoRegistry.forSession(this.session);
+		final DependencyProtoRegistry.MainCompilation mainCompilation =
+				this.importsMainProtos() ? registry.getMainCompilation(this.project.getBasedir()) : null;
+		// the jars the main compilation indexed are reused as they are, the others are only indexed for this one
+		final Map<String, DependencyProtoRegistry.IndexedJar> indexedJars = mainCompilation != null
+				? Maps.newHashMap(mainCompilation.jars) : Maps.<String, DependencyProtoRegistry.IndexedJar>newHashMap();
+		this.dependencyProtoPath = new DependencyProtoPath(this.metrics);
+		if (this.importsMainProtos()) {
+			this.addMainProtos(this.dependencyProtoPath, mainCompilation);
+		}
+		this.indexDependencyProtos(this.dependencyProtoPath, this.getTemporaryProtoFileDirectory(),
+				this.getDependencyArtifactFiles(), indexedJars);
+		if (this.isMainCompilation()) {
+			final ImmutableList.Builder<String> protoNames = ImmutableList.builder();
+			for (File protoFile : protoFiles) {
+				protoNames.add(AbstractProtocMojo.relativePath(protoSourceRoot, protoFile));
+			}
+			registry.putMainCompilation(this.project.getBasedir(),
+					new DependencyProtoRegistry.MainCompilation(protoSourceRoot, protoNames.build(), indexedJars));
+		}
+		this.metrics.stop("dependencies", dependenciesStart);
+
+		this.outputRoots = this.findOutputRoots(outputDirectory);
+		for (File outputRoot : this.outputRoots) {
+			if(!outputRoot.exists() && !outputRoot.mkdirs()) {
+				if (!outputRoot.exists()) {
+					throw new MojoExecutionException("Could not create directories: " + outputRoot.getAbsolutePath() + " does not exist!");
+				}
+				if (!outputRoot.isDirectory()) {
+					throw new MojoExecutionException("Could not create directories: " + outputRoot.getAbsolutePath() + " exists but is not a directory!");
+				}
+			}
+		}
+		for (OutputTarget outputTarget : this.outputTargets) {
+			if (outputTarget.isDescriptorSet()) {
+				Files.createParentDirs(outputTarget.getDescriptorSetFile());
+			}
+		}
+
+		return this.makeProtoPath(protoSourceRoot, protoFiles);
+	}
+
+	/**
+	 * Makes the main protos of the project importable without compiling them again: those of the main
+	 * compilation of this session, or else those copied to the output directory of the project.
+	 */
+	private void addMainProtos(DependencyProtoPath dependencyProtoPath,
+			DependencyProtoRegistry.MainCompilation mainCompilation) throws IOException {
+		if (mainCompilation != null) {
+			dependencyProtoPath.addExtracted(mainCompilation.protoSourceRoot, mainCompilation.protoSourceRoot,
+					mainCompilation.protoNames);
+			return;
+		}
+		final File outputDirectory = new File(this.project.getBuild().getOutputDirectory());
+		if (outputDirectory.isDirectory()) {
+			final List<String> protoNames = Lists.newArrayList();
+			for (FileTreeScanner.Attributes protoFile : AbstractProtocMojo.ALL_PROTO_FILES_SCANNER.scan(outputDirectory).values()) {
+				protoNames.add(protoFile.relativePath);
+			}
+			if (!protoNames.isEmpty()) {
+				dependencyProtoPath.addExtracted(outputDirectory, outputDirectory, protoNames);
+			}
+		}
+	}
+
+	/**
+	 * @return the source root, the dependencies {@code protoFiles} need and the additional proto path elements.
+	 */
+	private ImmutableSet<File> makeProtoPath(File protoSourceRoot, Set<File> protoFiles)
+			throws IOException, CommandLineException {
+		long dependenciesStart = this.metrics.start();
+		ImmutableSet<File> derivedProtoPathElements = this.extractImportedProtosOnly
+				? this.dependencyProtoPath.resolve(protoSourceRoot, protoFiles,
+						Arrays.asList(this.additionalProtoPathElements), this.getLog())
+				: this.dependencyProtoPath.all(this.getExtractionThreads());
+		this.dependencyDescriptorSet = null;
+		if (this.useDependencyDescriptorSet) {
+			derivedProtoPathElements =
+					this.replaceDependencyProtosByDescriptorSet(protoSourceRoot, protoFiles, derivedProtoPathElements);
+		}
+		this.metrics.stop("dependencies", dependenciesStart);
+
+		return ImmutableSet.<File>builder()
+				.add(protoSourceRoot)
+				.addAll(derivedProtoPathElements)
+				.addAll(Arrays.asList(this.additionalProtoPathElements))
+				.build();
+	}
+
+	/**
+	 * Compiles all protos below the source root incrementally, then keeps watching it and recompiles the protos
+	 * that change, together with the protos importing them, until the build is interrupted. The dependencies
+	 * are resolved and extracted only once.
+	 *
+	 * @param debounceMillis how long the source root has to be quiet before a change is compiled.
+	 */
+	void watch(long debounceMillis) throws MojoExecutionException, MojoFailureException {
+		this.checkParameters();
+		final File protoSourceRoot = this.getProtoSourceRoot();
+		if (!protoSourceRoot.isDirectory()) {
+			throw new MojoFailureException(String.format("%s does not exist.", protoSourceRoot));
+		}
+		try {
+			this.metrics = new ExecutionMetrics();
+			final Map<File, FileTreeScanner.Attributes> protoFiles = Maps.newTreeMap();
+			protoFiles.putAll(this.scanProtoFilesInDirectory(protoSourceRoot));
+			ImmutableSet<File> protoPath =
+					this.prepareCompilation(protoSourceRoot, protoFiles.keySet(), this.getOutputDirectory());
+			try (ProtoSourceWatcher watcher = ProtoSourceWatcher.open(protoSourceRoot)) {
+				this.compileWatched(protoSourceRoot, protoPath, protoFiles);
+				this.getLog().info(String.format("Watching %s for changes, interrupt the build to stop.", protoSourceRoot));
+				while (true) {
+					final Set<String> changes = watcher.awaitChanges(debounceMillis);
+					this.metrics = new ExecutionMetrics();
+					if (changes == null) {
+						protoFiles.clear();
+						protoFiles.putAll(this.scanProtoFilesInDirectory(protoSourceRoot));
+					} else {
+						this.updateWatched(protoSourceRoot, protoFiles, changes);
+					}
+					// the changed protos may import other dependency protos
+					protoPath = this.makeProtoPath(protoSourceRoot, protoFiles.keySet());
+					this.compileWatched(protoSourceRoot, protoPath, protoFiles);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			throw new MojoExecutionException("An IO error occured", e);
+		} catch (CommandLineException e) {
+			throw new MojoExecutionException("An error occurred while invoking protoc.", e);
+		}
+	}
+
+	/**
+	 * Applies the changed paths reported by the {@link ProtoSourceWatcher} to the known {@code protoFiles}, only
+	 * reading the attributes of the changed files.
+	 */
+	private void updateWatched(File protoSourceRoot, Map<File, FileTreeScanner.Attributes> protoFiles,
+			Set<String> changes) throws IOException {
+		for (String change : changes) {
+			final FileTreeScanner.Attributes attributes = this.protoFileScanner.scanFile(protoSourceRoot, change);
+			if (attributes != null) {
+				protoFiles.put(new File(protoSourceRoot, change), attributes);
+				continue;
+			}
+			// gone, or a directory that was deleted with everything in it
+			final Iterator<FileTreeScanner.Attributes> known = protoFiles.values().iterator();
+			while (known.hasNext()) {
+				final String relativePath = known.next().relativePath;
+				if (relativePath.equals(change) || relativePath.startsWith(change + "/")) {
+					known.remove();
+				}
+			}
+		}
+	}
+
+	private void compileWatched(File protoSourceRoot, ImmutableSet<File> protoPath,
+			Map<File, FileTreeScanner.Attributes> protoFiles) throws IOException, MojoExecutionException, CommandLineException {
+		try {
+			this.compileIncrementally(protoSourceRoot, protoPath, ImmutableMap.copyOf(protoFiles), this.getOutputDirectory());
+		} catch (MojoFailureException e) {
+			// keep watching, the next change probably fixes it
+			this.getLog().error(e.getMessage());
+		} finally {
+			this.getLog().info(this.metrics.summary());
+		}
+	}
+
+	/**
+	 * Compiles the protos of all {@code modules} together instead of one {@code protoc} invocation per module.
+	 * Modules whose protos have distinct names share an invocation, the invocations run concurrently, and every
+	 * module's source root is on the proto path of each, so modules can import each other's protos. Every
+	 * generated file is then routed back to the output directory of the module owning the proto named by its
+	 * {@code source:} header. Files that did not change are left alone, those no longer generated are deleted.
+	 */
+	void aggregate(List<ProtoModule> modules) throws MojoExecutionException, MojoFailureException {
+		Preconditions.checkNotNull(this.protocExecutable, "protocExecutable");
+		if (!this.outputTargets.isEmpty()) {
+			throw new MojoFailureException("The outputTargets cannot be routed to the modules, the aggregate goal only "
+					+ "generates java sources.");
+		}
+		try {
+			long scanStart = this.metrics.start();
+			final List<ProtoModule> compiledModules = Lists.newArrayList();
+			final Map<ProtoModule, ImmutableMap<File, FileTreeScanner.Attributes>> scannedProtoFiles = Maps.newHashMap();
+			int protoFileCount = 0;
+			for (ProtoModule module : modules) {
+				final ImmutableMap<File, FileTreeScanner.Attributes> protoFiles =
+						this.scanProtoFilesInDirectory(module.protoSourceRoot);
+				scannedProtoFiles.put(module, protoFiles);
+				for (FileTreeScanner.Attributes protoFile : protoFiles.values()) {
+					module.protoFiles.put(protoFile.relativePath, new File(module.protoSourceRoot, protoFile.relativePath));
+				}
+				if (!module.protoFiles.isEmpty()) {
+					compiledModules.add(module);
+					protoFileCount += module.protoFiles.size();
+				}
+			}
+			this.metrics.stop("scan", scanStart);
+			for (ProtoModule module : modules) {
+				this.attachModuleProtos(module, scannedProtoFiles.get(module));
+			}
+			if (compiledModules.isEmpty()) {
+				this.getLog().info("No module has proto files to compile.");
+				return;
+			}
+
+			this.openProtocSlots();
+			long dependenciesStart = this.metrics.start();
+			final ImmutableSet<File> dependencyProtoPath =
+					this.makeProtoPathFromJars(this.getTemporaryProtoFileDirectory(), this.getDependencyArtifactFiles());
+			this.metrics.stop("dependencies", dependenciesStart);
+
+			final List<List<ProtoModule>> groups = ProtoModule.partition(compiledModules);
+			final List<File> groupDirectories = Lists.newArrayList();
+			long outputStart = this.metrics.start();
+			for (int i = 0; i < groups.size(); i++) {
+				final File groupDirectory = new File(this.getOutputDirectory(), Integer.toString(i));
+				if (groupDirectory.exists()) {
+					FileUtils.deleteDirectory(groupDirectory);
+				}
+				if (!groupDirectory.mkdirs()) {
+					throw new MojoExecutionException("Could not create directories: " + groupDirectory.getAbsolutePath());
+				}
+				groupDirectories.add(groupDirectory);
+			}
+			this.metrics.stop("output", outputStart);
+
+			this.getLog().info(String.format("Compiling %d proto files of %d modules in %d protoc invocations.",
+					protoFileCount, compiledModules.size(), groups.size()));
+			long start = this.metrics.start();
+			this.openDiagnostics();
+			try {
+				this.compileGroups(groups, compiledModules, dependencyProtoPath, groupDirectories);
+			} finally {
+				this.closeDiagnostics(start);
+			}
+
+			outputStart = this.metrics.start();
+			for (int i = 0; i < groups.size(); i++) {
+				this.routeOutputs(groups.get(i), groupDirectories.get(i));
+			}
+			this.metrics.stop("output", outputStart);
+			this.attachFiles();
+		} catch (IOException e) {
+			throw new MojoExecutionException("An IO error occured", e);
+		} catch (CommandLineException e) {
+			throw new MojoExecutionException("An error occurred while invoking protoc.", e);
+		}
+	}
+
+	/**
+	 * Runs one {@code protoc} invocation per group of modules, concurrently on up to {@link #protocThreads}
+	 * threads.
+	 *
+	 * @throws MojoFailureException if an invocation does not exit cleanly.
+	 */
+	private void compileGroups(List<List<ProtoModule>> groups, List<ProtoModule> modules,
+			ImmutableSet<File> dependencyProtoPath, List<File> groupDirectories)
+			throws IOException, CommandLineException, MojoExecutionException, MojoFailureException {
+		final int threads = Math.min(groups.size(),
+				this.protocThreads > 0 ? this.protocThreads : Runtime.getRuntime().availableProcessors());
+		final long protocStart = System.currentTimeMillis();
+		final List<Future<List<Protoc>>> results = Lists.newArrayList();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int i = 0; i < groups.size(); i++) {
+				// the roots of the group come first, the others only provide the protos it imports
+				final ImmutableSet.Builder<File> protoPath = ImmutableSet.builder();
+				final List<File> protoFiles = Lists.newArrayList();
+				for (ProtoModule module : groups.get(i)) {
+					protoPath.add(module.protoSourceRoot);
+					protoFiles.addAll(module.protoFiles.values());
+				}
+				for (ProtoModule module : modules) {
+					protoPath.add(module.protoSourceRoot);
+				}
+				protoPath.addAll(dependencyProtoPath).addAll(Arrays.asList(this.additionalProtoPathElements));
+				final ImmutableSet<File> groupProtoPath = protoPath.build();
+				final List<File> outputDirectories = ImmutableList.of(groupDirectories.get(i));
+				results.add(executor.submit(new Callable<List<Protoc>>() {
+					@Override
+					public List<Protoc> call() throws CommandLineException {
+						return AbstractProtocMojo.this.invoke(groupProtoPath, protoFiles, outputDirectories);
+					}
+				}));
+			}
+			final List<Protoc> failed = Lists.newArrayList();
+			for (Future<List<Protoc>> result : results) {
+				failed.addAll(AbstractProtocMojo.await(result));
+			}
+			if (!failed.isEmpty()) {
+				this.reportFailures(failed);
+				throw new MojoFailureException("protoc did not exit cleanly. Review output for more information.");
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		if (this.reproducible) {
+			AbstractProtocMojo.normalizeLineEndings(groupDirectories, protocStart);
+		}
+	}
+
+	/**
+	 * Moves the files generated for {@code group} into the output directories of its modules.
+	 */
+	private void routeOutputs(List<ProtoModule> group, File groupDirectory) throws IOException {
+		final Map<String, ProtoModule> owners = Maps.newHashMap();
+		for (ProtoModule module : group) {
+			for (String name : module.protoFiles.keySet()) {
+				owners.put(name, module);
+			}
+		}
+		final SetMultimap<ProtoModule, String> routed = HashMultimap.create();
+		for (Map.Entry<File, FileTreeScanner.Attributes> generated
+				: AbstractProtocMojo.ALL_FILES_SCANNER.scan(groupDirectory).entrySet()) {
+			final ProtoModule owner = group.size() == 1 ? group.get(0)
+					: owners.get(AbstractProtocMojo.readSourceHeader(generated.getKey()));
+			if (owner == null) {
+				this.getLog().warn(String.format("%s does not name the proto it was generated from, it is not added to "
+						+ "any module.", generated.getValue().relativePath));
+				continue;
+			}
+			final File target = new File(owner.outputDirectory, generated.getValue().relativePath);
+			if (!target.isFile() || !Files.equal(generated.getKey(), target)) {
+				Files.createParentDirs(target);
+				Files.copy(generated.getKey(), target);
+			}
+			routed.put(owner, generated.getValue().relativePath);
+		}
+		for (ProtoModule module : group) {
+			if (module.outputDirectory.isDirectory()) {
+				for (Map.Entry<File, FileTreeScanner.Attributes> existing
+						: AbstractProtocMojo.ALL_FILES_SCANNER.scan(module.outputDirectory).entrySet()) {
+					if (!routed.containsEntry(module, existing.getValue().relativePath) && !existing.getKey().delete()) {
+						throw new IOException("Could not delete " + existing.getKey());
+					}
+				}
+			}
+			this.getLog().debug(String.format("Routed %d generated files to %s.", routed.get(module).size(),
+					module.outputDirectory));
+		}
+	}
+
+	/**
+	 * @return whether this goal compiles the main protos of the project, which {@link #importsMainProtos()}
+	 *         goals of the same project import.
+	 */
+	boolean isMainCompilation() {
+		return false;
+	}
+
+	/**
+	 * @return whether the protos compiled by this goal may import the main protos of the project.
+	 */
+	boolean importsMainProtos() {
+		return false;
+	}
+
+	private void reportMetrics() {
+		this.getLog().info(this.metrics.summary());
+		final String goal = this.mojoExecution == null ? "protoc" : this.mojoExecution.getGoal();
+		final String executionId = this.mojoExecution == null ? "default" : this.mojoExecution.getExecutionId();
+		try {
+			this.metrics.write(new File(this.reportDirectory, goal + "-" + executionId + ".json"), goal, executionId);
+		} catch (IOException e) {
+			this.getLog().warn("Could not write the metrics report: " + e.getMessage());
+		}
+	}
+
+	private void checkPhaseThresholds() throws MojoFailureException {
+		List<String> exceeded = Lists.newArrayList();
+		for (Map.Entry<String, Long> phase : this.metrics.getPhaseMillis().entrySet()) {
+			Long threshold = this.phaseThresholds.get(phase.getKey());
+			if (threshold != null && phase.getValue() > threshold) {
+				exceeded.add(String.format("%s took %dms, more than its threshold of %dms",
+						phase.getKey(), phase.getValue(), threshold));
+			}
+		}
+		for (String message : exceeded) {
+			this.getLog().warn(message);
+		}
+		if (this.failOnPhaseThreshold && !exceeded.isEmpty()) {
+			throw new MojoFailureException(Joiner.on("; ").join(exceeded));
+		}
+	}
+
+	/**
+	 * Runs {@code protoc} over {@code protoFiles}, split into concurrent shards when {@link #parallel} is set.
+	 *
+	 * @param sourceHashes the content hashes of the protos below {@code protoSourceRoot} by name, as far as they
+	 *                     are known already.
+	 * @throws MojoFailureException if {@code protoc} does not exit cleanly.
+	 */
+	private void compile(File protoSourceRoot, Iterable<File> protoPath, Collection<File> protoFiles,
+			Map<String, String> sourceHashes, List<File> outputDirectories) throws IOException, CommandLineException, MojoExecutionException, MojoFailureException {
+		if (this.reproducible) {
+			protoFiles = Ordering.natural().sortedCopy(protoFiles);
+		}
+		final BuildCache buildCache = this.useBuildCache ? this.getBuildCache() : null;
+		String cacheKey = null;
+		if (buildCache != null && !AbstractProtocMojo.containsFiles(outputDirectories)) {
+			final long cacheStart = this.metrics.start();
+			cacheKey = this.buildCacheKey(protoSourceRoot, protoPath, protoFiles, sourceHashes);
+			final boolean hit = buildCache.restore(cacheKey, outputDirectories, this.getDescriptorSetFiles());
+			this.metrics.stop("cache", cacheStart);
+			if (hit) {
+				this.metrics.add(ExecutionMetrics.BUILD_CACHE_HITS, 1);
+				this.getLog().info(String.format("Restored the output of %d proto files from the build cache.",
+						protoFiles.size()));
+				return;
+			}
+			this.metrics.add(ExecutionMetrics.BUILD_CACHE_MISSES, 1);
+		}
+		final long protocStart = System.currentTimeMillis();
+		this.invokeProtoc(protoSourceRoot, protoPath, protoFiles, outputDirectories);
+		if (this.reproducible) {
+			AbstractProtocMojo.normalizeLineEndings(outputDirectories, protocStart);
+		}
+		if (this.verifyReproducibility) {
+			this.verifyReproducibility(protoSourceRoot, protoPath, protoFiles, outputDirectories);
+		}
+		if (cacheKey != null) {
+			final long cacheStart = this.metrics.start();
+			buildCache.store(cacheKey, outputDirectories, this.getDescriptorSetFiles());
+			this.metrics.stop("cache", cacheStart);
+			this.getLog().info(String.format("Stored the output of %d proto files in the build cache, which holds %s.",
+					protoFiles.size(), buildCache.describe()));
+		}
+	}
+
+	/**
+	 * Compiles {@code protoFiles} again into a temporary directory and warns about every generated file or
+	 * descriptor set that differs from the one in {@code outputDirectories}.
+	 */
+	private void verifyReproducibility(File protoSourceRoot, Iterable<File> protoPath, Collection<File> protoFiles,
+			List<File> outputDirectories) throws IOException, CommandLineException, MojoExecutionException, MojoFailureException {
+		final long verifyStart = this.metrics.start();
+		final File verificationDirectory = Files.createTempDir();
+		try {
+			final List<File> descriptorSets = this.getDescriptorSetFiles();
+			final List<File> firstDescriptorSets = Lists.newArrayList();
+			for (int i = 0; i < descriptorSets.size(); i++) {
+				final File copy = new File(verificationDirectory, "descriptors/" + i);
+				Files.createParentDirs(copy);
+				Files.copy(descriptorSets.get(i), copy);
+				firstDescriptorSets.add(copy);
+			}
+			final List<File> verificationDirectories = Lists.newArrayList();
+			for (int i = 0; i < outputDirectories.size(); i++) {
+				final File directory = new File(verificationDirectory, "outputs/" + i);
+				if (!directory.mkdirs()) {
+					throw new IOException("Could not create directory " + directory);
+				}
+				verificationDirectories.add(directory);
+			}
+			final long protocStart = System.currentTimeMillis();
+			this.invokeProtoc(protoSourceRoot, protoPath, protoFiles, verificationDirectories);
+			if (this.reproducible) {
+				AbstractProtocMojo.normalizeLineEndings(verificationDirectories, protocStart);
+			}
+
+			final List<String> mismatches = Lists.newArrayList();
+			for (int i = 0; i < outputDirectories.size(); i++) {
+				for (FileTreeScanner.Attributes generated
+						: AbstractProtocMojo.ALL_FILES_SCANNER.scan(verificationDirectories.get(i)).values()) {
+					if (!Files.equal(new File(verificationDirectories.get(i), generated.relativePath),
+							new File(outputDirectories.get(i), generated.relativePath))) {
+						mismatches.add(new File(this.outputRoots.get(i), generated.relativePath).getPath());
+					}
+				}
+			}
+			for (int i = 0; i < descriptorSets.size(); i++) {
+				if (!Files.equal(firstDescriptorSets.get(i), descriptorSets.get(i))) {
+					mismatches.add(descriptorSets.get(i).getPath());
+				}
+			}
+			for (String mismatch : mismatches) {
+				this.getLog().warn(String.format("%s differs between two compilations of the same protos.", mismatch));
+			}
+			this.metrics.add(ExecutionMetrics.NONDETERMINISTIC_OUTPUTS, mismatches.size());
+			if (mismatches.isEmpty()) {
+				this.getLog().info(String.format("The output of %d proto files is reproducible.", protoFiles.size()));
+			}
+		} finally {
+			FileUtils.deleteDirectory(verificationDirectory);
+			this.metrics.stop("verify", verifyStart);
+		}
+	}
+
+	/**
+	 * Replaces the {@code \r\n} line endings of the text files modified since {@code since} by {@code \n}.
+	 */
+	private static void normalizeLineEndings(List<File> outputDirectories, long since) throws IOException {
+		// file systems with a coarse modification time may round down
+		final long modifiedSince = since - 2000;
+		for (File outputDirectory : outputDirectories) {
+			for (Map.Entry<File, FileTreeScanner.Attributes> generated
+					: AbstractProtocMojo.ALL_FILES_SCANNER.scan(outputDirectory).entrySet()) {
+				if (generated.getValue().lastModified >= modifiedSince) {
+					final byte[] content = Files.toByteArray(generated.getKey());
+					if (Bytes.contains(content, (byte) '\r') && !Bytes.contains(content, (byte) 0)) {
+						Files.write(new String(content, Charsets.UTF_8).replace("\r\n", "\n"), generated.getKey(),
+								Charsets.UTF_8);
+					}
+				}
+			}
+		}
+	}
+
+	private void invokeProtoc(File protoSourceRoot, Iterable<File> protoPath, Collection<File> protoFiles,
+			List<File> outputDirectories) throws IOException, CommandLineException, MojoExecutionException, MojoFailureException {
+		long start = this.metrics.start();
+		this.openDiagnostics();
+		try {
+			this.compileShards(protoSourceRoot, protoPath, protoFiles, outputDirectories);
+		} finally {
+			this.closeDiagnostics(start);
+		}
+	}
+
+	/**
+	 * Opens the diagnostics of the next {@code protoc} runs. The report of an earlier execution is replaced, the
+	 * report of this one is added to, so it covers the verification runs and every compilation of a watch.
+	 */
+	private void openDiagnostics() throws IOException {
+		this.diagnostics = ProtocDiagnostics.open(this.getLog(), this.diagnosticsFile, this.diagnosticsFileStarted);
+		this.diagnosticsFileStarted = true;
+	}
+
+	private void closeDiagnostics(long protocStart) {
+		this.metrics.stop("protoc", protocStart);
+		this.metrics.add(ExecutionMetrics.PROTOC_WARNINGS, this.diagnostics.getWarnings());
+		this.metrics.add(ExecutionMetrics.PROTOC_ERRORS, this.diagnostics.getErrors());
+		if (this.diagnostics.getWarnings() + this.diagnostics.getErrors() > 0) {
+			this.getLog().info(String.format("protoc reported %d warnings and %d errors.",
+					this.diagnostics.getWarnings(), this.diagnostics.getErrors()));
+		}
+		try {
+			this.diagnostics.close();
+		} catch (IOException e) {
+			this.getLog().warn("Could not write the diagnostics report: " + e.getMessage());
+		}
+	}
+
+	private void compileShards(File protoSourceRoot, Iterable<File> protoPath, Collection<File> protoFiles,
+			List<File> outputDirectories) throws IOException, CommandLineException, MojoExecutionException, MojoFailureException {
+		final int threads = this.protocThreads > 0 ? this.protocThreads : Runtime.getRuntime().availableProcessors();
+		// a descriptor set has to be written by a single invocation to contain every proto
+		if (!this.parallel || threads < 2 || protoFiles.size() < 2 || this.hasDescriptorSetTarget()) {
+			List<Protoc> failed = this.invoke(protoPath, protoFiles, outputDirectories);
+			if (!failed.isEmpty()) {
+				this.reportFailures(failed);
+				throw new MojoFailureException(
+						"protoc did not exit cleanly. Review output for more information.");
+			}
+			return;
+		}
+
+		final List<ImmutableList<File>> shards = ProtocShards.partition(protoFiles, protoSourceRoot, threads);
+		this.getLog().info(String.format("Compiling %d proto files in %d shards on %d threads.",
+				protoFiles.size(), shards.size(), Math.min(threads, shards.size())));
+		List<Future<List<Protoc>>> results = Lists.newArrayList();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, shards.size()));
+		try {
+			for (final ImmutableList<File> shard : shards) {
+				final Iterable<File> shardProtoPath = protoPath;
+				final List<File> shardOutputDirectories = outputDirectories;
+				results.add(executor.submit(new Callable<List<Protoc>>() {
+					@Override
+					public List<Protoc> call() throws CommandLineException {
+						return AbstractProtocMojo.this.invoke(shardProtoPath, shard, shardOutputDirectories);
+					}
+				}));
+			}
+			List<Protoc> failed = Lists.newArrayList();
+			for (Future<List<Protoc>> result : results) {
+				failed.addAll(AbstractProtocMojo.await(result));
+			}
+			if (!failed.isEmpty()) {
+				this.reportFailures(failed);
+				throw new MojoFailureException(String.format(
+						"protoc did not exit cleanly in %d invocations of %d shards. Review output for more information.",
+						failed.size(), shards.size()));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs {@code protoc} once over {@code protoFiles}, through an argument file if {@link #useArgumentFile} is set.
+	 * Without argument file, or if {@code protoc} does not understand it, the files are split into sequential
+	 * batches whose command lines fit into {@link #maxCommandLength}.
+	 *
+	 * @return the invocations that did not exit cleanly.
+	 */
+	private List<Protoc> invoke(Iterable<File> protoPath, Iterable<File> protoFiles, List<File> outputDirectories)
+			throws CommandLineException {
+		final boolean argumentFile = this.useArgumentFile && !this.argumentFileRejected.get();
+		final Protoc.Builder builder = new Protoc.Builder(this.protocExecutable, outputDirectories.get(0))
+		.addProtoPathElements(protoPath)
+		.addProtoFiles(protoFiles)
+		.useArgumentFile(argumentFile)
+		.diagnostics(this.diagnostics)
+		.slots(this.getProtocSlots());
+		if (this.dependencyDescriptorSet != null) {
+			builder.descriptorSetIn(this.dependencyDescriptorSet);
+		}
+		for (OutputTarget outputTarget : this.outputTargets) {
+			if (outputTarget.isDescriptorSet()) {
+				builder.descriptorSetOut(outputTarget.getDescriptorSetFile(), outputTarget.isIncludeImports(),
+						outputTarget.isIncludeSourceInfo());
+			} else {
+				builder.addGenerator(outputTarget.getGenerator(), outputTarget.getPlugin(), outputTarget.getOptions(),
+						outputDirectories.get(this.outputRootOf(outputTarget)));
+			}
+		}
+		final Protoc protoc = builder.build();
+		this.metrics.max(ExecutionMetrics.PROTOC_COMMAND_LENGTH, protoc.getCommandLength());
+		if (argumentFile) {
+			if (!this.run(protoc).isArgumentFileRejected()) {
+				return protoc.getExitStatus() == 0 ? ImmutableList.<Protoc>of() : ImmutableList.of(protoc);
+			}
+			if (this.argumentFileRejected.compareAndSet(false, true)) {
+				this.getLog().warn(String.format("%s does not support argument files, compiling in batches of at most "
+						+ "%d characters instead.", this.protocExecutable, this.maxCommandLength));
+			}
+		} else if (protoc.getCommandLength() <= this.maxCommandLength) {
+			try {
+				return this.run(protoc).getExitStatus() == 0 ? ImmutableList.<Protoc>of() : ImmutableList.of(protoc);
+			} catch (CommandLineException e) {
+				if (protoc.getProtoFiles().size() < 2) {
+					throw e;
+				}
+				this.getLog().warn(String.format("Could not launch protoc with %d proto files, compiling in "
+						+ "smaller batches instead: %s", protoc.getProtoFiles().size(), e.getMessage()));
+			}
+		}
+
+		List<Protoc> failed = Lists.newArrayList();
+		List<Protoc> batches = protoc.partition(this.maxCommandLength);
+		if (batches.size() > 1 && this.hasDescriptorSetTarget()) {
+			throw new CommandLineException("A descriptor set output cannot be split into several protoc invocations, "
+					+ "enable useArgumentFile or raise maxCommandLength.");
+		}
+		if (batches.size() > 1) {
+			this.getLog().info(String.format("Splitting %d proto files into %d protoc invocations.",
+					protoc.getProtoFiles().size(), batches.size()));
+		}
+		for (Protoc batch : batches) {
+			if (this.run(batch).getExitStatus() != 0) {
+				failed.add(batch);
+			}
+		}
+		return failed;
+	}
+
+	private Protoc run(Protoc protoc) throws CommandLineException {
+		protoc.compile();
+		if (protoc.getSlotWaitMillis() > 0) {
+			this.getLog().debug(String.format("Waited %dms for one of the %d protoc slots.", protoc.getSlotWaitMillis(),
+					this.getProtocSlots().getSize()));
+		}
+		this.metrics.add(ExecutionMetrics.PROTOC_SLOT_WAIT_MILLIS, protoc.getSlotWaitMillis());
+		this.metrics.max(ExecutionMetrics.PEAK_OUTPUT_BUFFER_SIZE, protoc.getOutput().length() + protoc.getError().length());
+		return protoc;
+	}
+
+	private void reportFailures(List<Protoc> failed) {
+		for (Protoc protoc : failed) {
+			if (failed.size() > 1) {
+				this.getLog().error(String.format("protoc over %d files (first %s) exited with status %d",
+						protoc.getProtoFiles().size(), protoc.getProtoFiles().iterator().next(), protoc.getExitStatus()));
+			}
+			// a streamed output was logged line by line already, with the diagnostics as errors
+			if (!protoc.isOutputStreamed()) {
+				this.getLog().error("protoc failed output: " + protoc.getOutput());
+				this.getLog().error("protoc failed error: " + protoc.getError());
+			}
+		}
+	}
+
+	private static <T> T await(Future<T> result) throws CommandLineException, MojoExecutionException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while waiting for protoc", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CommandLineException) {
+				throw (CommandLineException) e.getCause();
+			}
+			throw new MojoExecutionException("An error occurred while invoking protoc.", e.getCause());
+		}
+	}
+
+	/**
+	 * Compiles the protos that changed since the manifest of the previous build was written, together with
+	 * everything that imports them, and deletes the generated files of protos that no longer exist.
+	 */
+	private void compileIncrementally(File protoSourceRoot, ImmutableSet<File> protoPath,
+			ImmutableMap<File, FileTreeScanner.Attributes> protoFiles, File outputDirectory) throws IOException, MojoExecutionException, MojoFailureException, CommandLineException {
+		final long analysisStart = this.metrics.start();
+		final File manifestFile = new File(this.manifestDirectory,
+				AbstractProtocMojo.md5Hex(outputDirectory.getAbsolutePath()) + ".manifest");
+		final ProtoManifest previous = ProtoManifest.load(manifestFile);
+		final ProtoManifest current = new ProtoManifest(this.fingerprint(protoSourceRoot));
+		final boolean fullBuild = !current.getFingerprint().equals(previous.getFingerprint());
+
+		Map<String, File> protoFilesByName = Maps.newTreeMap();
+		Map<String, List<String>> importsByName = Maps.newHashMap();
+		Set<String> changed = Sets.newHashSet();
+		for (Map.Entry<File, FileTreeScanner.Attributes> scanned : protoFiles.entrySet()) {
+			File protoFile = scanned.getKey();
+			String name = scanned.getValue().relativePath;
+			ProtoManifest.Entry recorded = fullBuild ? null : previous.get(name);
+			ProtoManifest.Entry entry;
+			if (recorded != null && recorded.isUpToDate(scanned.getValue().size, scanned.getValue().lastModified)) {
+				entry = new ProtoManifest.Entry(recorded.length, recorded.lastModified, recorded.hash, recorded.imports);
+			} else {
+				byte[] content = Files.toByteArray(protoFile);
+				entry = new ProtoManifest.Entry(scanned.getValue().size, scanned.getValue().lastModified,
+						Hashing.sha1().hashBytes(content).toString(), ProtoImports.parse(new String(content, Charsets.UTF_8)));
+			}
+			if (recorded == null || !recorded.hash.equals(entry.hash)
+					|| !this.allOutputsExist(recorded.outputs)) {
+				changed.add(name);
+			} else {
+				entry.outputs.addAll(recorded.outputs);
+			}
+			current.put(name, entry);
+			protoFilesByName.put(name, protoFile);
+			importsByName.put(name, entry.imports);
+		}
+		Set<String> removed = fullBuild ? ImmutableSet.<String>of()
+				: Sets.difference(previous.getEntries().keySet(), protoFilesByName.keySet());
+		// the import graph takes the imports of the dependency protos as well
+		final Map<String, List<String>> graph = Maps.newHashMap(importsByName);
+		current.getDependencies().putAll(this.dependencyProtoDigests(graph));
+		Set<String> changedDependencies = Sets.newHashSet();
+		for (String name : Sets.union(current.getDependencies().keySet(), previous.getDependencies().keySet())) {
+			if (!fullBuild && !Objects.equal(current.getDependencies().get(name), previous.getDependencies().get(name))) {
+				changedDependencies.add(name);
+			}
+		}
+
+		// a proto has to be compiled again if anything it imports changed or disappeared
+		Set<String> dirty = Sets.newTreeSet(Sets.intersection(
+				new ImportGraph(graph).importersClosure(Sets.union(Sets.union(changed, removed), changedDependencies)),
+				protoFilesByName.keySet()));
+		// protos that could not be told apart by their generated files are only ever compiled together
+		AbstractProtocMojo.addCoOwners(dirty, removed, previous, protoFilesByName.keySet());
+		// a descriptor set is only complete if it is written from all protos
+		if (this.hasDescriptorSetTarget() && (!dirty.isEmpty() || !removed.isEmpty() || !this.descriptorSetsExist())) {
+			dirty.addAll(protoFilesByName.keySet());
+		}
+		for (String name : dirty) {
+			current.get(name).outputs.clear();
+		}
+
+		this.metrics.stop("incremental", analysisStart);
+
+		final long outputStart = this.metrics.start();
+		final boolean staged = this.preserveUnchangedOutputs;
+		if (fullBuild && !staged) {
+			for (File outputRoot : this.outputRoots) {
+				AbstractProtocMojo.clean(outputRoot);
+			}
+		} else if (!fullBuild) {
+			// with a staged output the files of recompiled protos are only replaced once they are regenerated
+			this.deleteOutputs(AbstractProtocMojo.outputsOf(previous, staged ? removed : Sets.union(dirty, removed)));
+		}
+
+		if (dirty.isEmpty()) {
+			this.getLog().info(String.format("All %d proto files are up to date%s.", protoFiles.size(),
+					removed.isEmpty() ? "" : String.format(", removed the output of %d deleted ones", removed.size())));
+			this.metrics.stop("output", outputStart);
+		} else {
+			this.metrics.stop("output", outputStart);
+			this.getLog().info(String.format("Compiling %d of %d proto files (%d changed, %d removed, %d dependency "
+					+ "protos changed).", dirty.size(), protoFiles.size(), changed.size(), removed.size(),
+					changedDependencies.size()));
+			Set<String> kept = Sets.newHashSet();
+			for (ProtoManifest.Entry entry : current.getEntries().values()) {
+				kept.addAll(entry.outputs);
+			}
+			final Map<String, String> sourceHashes = Maps.newHashMap();
+			for (Map.Entry<String, ProtoManifest.Entry> entry : current.getEntries().entrySet()) {
+				sourceHashes.put(entry.getKey(), entry.getValue().hash);
+			}
+			final List<StagedOutput> stagedOutputs = staged ? this.newStagedOutputs() : null;
+			try {
+				this.compile(protoSourceRoot, protoPath, Maps.filterKeys(protoFilesByName, Predicates.in(dirty)).values(),
+						sourceHashes, staged ? AbstractProtocMojo.directoriesOf(stagedOutputs) : this.outputRoots);
+			} catch (MojoFailureException e) {
+				ProtoManifest.discard(manifestFile);
+				throw e;
+			}
+
+			final Set<String> produced;
+			final long recordStart = this.metrics.start();
+			if (!staged) {
+				produced = Sets.newTreeSet();
+				for (int i = 0; i < this.outputRoots.size(); i++) {
+					// every file, as the generators of the output targets do not only write java
+					for (FileTreeScanner.Attributes generatedFile
+							: AbstractProtocMojo.ALL_FILES_SCANNER.scan(this.outputRoots.get(i)).values()) {
+						produced.add(AbstractProtocMojo.outputName(i, generatedFile.relativePath));
+					}
+				}
+				produced.removeAll(kept);
+			} else {
+				produced = this.swap(stagedOutputs);
+				if (fullBuild) {
+					this.deleteAllOutputsExcept(produced);
+				} else {
+					this.deleteOutputs(Sets.difference(AbstractProtocMojo.outputsOf(previous, dirty), produced));
+				}
+			}
+			this.recordOutputs(current, dirty, produced);
+			this.metrics.stop("output", recordStart);
+		}
+		current.save(manifestFile);
+	}
+
+	private StagedOutput newStagedOutput(File outputDirectory) {
+		return new StagedOutput(new File(this.stagingDirectory, AbstractProtocMojo.md5Hex(outputDirectory.getAbsolutePath())));
+	}
+
+	/**
+	 * @return a prepared staged output for every output root, in the same order.
+	 */
+	private List<StagedOutput> newStagedOutputs() throws IOException {
+		List<StagedOutput> stagedOutputs = Lists.newArrayList();
+		for (File outputRoot : this.outputRoots) {
+			StagedOutput stagedOutput = this.newStagedOutput(outputRoot);
+			stagedOutput.prepare();
+			stagedOutputs.add(stagedOutput);
+		}
+		return stagedOutputs;
+	}
+
+	private static List<File> directoriesOf(List<StagedOutput> stagedOutputs) {
+		List<File> directories = Lists.newArrayList();
+		for (StagedOutput stagedOutput : stagedOutputs) {
+			directories.add(stagedOutput.getDirectory());
+		}
+		return directories;
+	}
 
 	/**
-	 * The current Maven thisProject.
-	 *
+	 * @return the names of all staged files.
 	 */
-	@Component
-	protected MavenProject project;
+	private Set<String> swap(List<StagedOutput> stagedOutputs) throws IOException {
+		Set<String> staged = Sets.newTreeSet();
+		int written = 0;
+		int unchanged = 0;
+		for (int i = 0; i < stagedOutputs.size(); i++) {
+			for (String stagedFile : stagedOutputs.get(i).swap(this.outputRoots.get(i))) {
+				staged.add(AbstractProtocMojo.outputName(i, stagedFile));
+			}
+			written += stagedOutputs.get(i).getWritten();
+			unchanged += stagedOutputs.get(i).getUnchanged();
+		}
+		this.getLog().info(String.format("Wrote %d changed generated files, left %d unchanged ones untouched.",
+				written, unchanged));
+		return staged;
+	}
+
+	private void deleteAllOutputsExcept(Set<String> keep) throws IOException {
+		for (int i = 0; i < this.outputRoots.size(); i++) {
+			Set<String> keepInRoot = Sets.newHashSet();
+			for (String output : keep) {
+				String relativePath = AbstractProtocMojo.relativePathInRoot(i, output);
+				if (relativePath != null) {
+					keepInRoot.add(relativePath);
+				}
+			}
+			StagedOutput.deleteAllExcept(this.outputRoots.get(i), keepInRoot);
+		}
+	}
 
 	/**
-	 * A helper used to add resources to the thisProject.
-	 *
+	 * @return the output directory followed by the distinct directories of the generator targets.
 	 */
-	@Component
-	protected MavenProjectHelper projectHelper;
+	private ImmutableList<File> findOutputRoots(File outputDirectory) {
+		Set<File> outputRoots = Sets.newLinkedHashSet();
+		outputRoots.add(outputDirectory.getAbsoluteFile());
+		for (OutputTarget outputTarget : this.outputTargets) {
+			if (!outputTarget.isDescriptorSet()) {
+				outputRoots.add(outputTarget.getOutputDirectory().getAbsoluteFile());
+			}
+		}
+		return ImmutableList.copyOf(outputRoots);
+	}
+
+	private int outputRootOf(OutputTarget outputTarget) {
+		return this.outputRoots.indexOf(outputTarget.getOutputDirectory().getAbsoluteFile());
+	}
+
+	private static String outputName(int outputRoot, String relativePath) {
+		return outputRoot == 0 ? relativePath : "@" + outputRoot + "/" + relativePath;
+	}
 
 	/**
-	 * This is the path to the {@code protoc} executable. By default it will search the {@code $PATH}.
-	 *
+	 * @return the path of {@code output} relative to the output root {@code outputRoot}, or {@code null} if it
+	 *         is below another one.
 	 */
-	@Parameter(defaultValue = "protoc", required = true)
-	private String protocExecutable;
+	private static String relativePathInRoot(int outputRoot, String output) {
+		if (outputRoot == 0) {
+			return output.startsWith("@") ? null : output;
+		}
+		String prefix = "@" + outputRoot + "/";
+		return output.startsWith(prefix) ? output.substring(prefix.length()) : null;
+	}
 
-	@Parameter
-	private File[] additionalProtoPathElements = new File[]{};
+	private File resolveOutput(String output) {
+		if (output.startsWith("@")) {
+			int separator = output.indexOf('/');
+			return new File(this.outputRoots.get(Integer.parseInt(output.substring(1, separator))),
+					output.substring(separator + 1));
+		}
+		return new File(this.outputRoots.get(0), output);
+	}
+
+	private boolean hasDescriptorSetTarget() {
+		for (OutputTarget outputTarget : this.outputTargets) {
+			if (outputTarget.isDescriptorSet()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean descriptorSetsExist() {
+		for (OutputTarget outputTarget : this.outputTargets) {
+			if (outputTarget.isDescriptorSet() && !outputTarget.getDescriptorSetFile().isFile()) {
+				return false;
+			}
+		}
+		return true;
+	}
 
 	/**
-	 * Since {@code protoc} cannot access jars, proto files in dependencies are extracted to this location
-	 * and deleted on exit. This directory is always cleaned during execution.
-	 *
+	 * Packages the protos below {@code protoSourceRoot} with the classes of the compilation this goal generates
+	 * sources for, by copying them to {@link #getProtoResourceDirectory()} or else by adding {@code protoSourceRoot}
+	 * as resource directory.
 	 */
-	@Parameter(defaultValue = "${project.build.directory}/protoc-dependencies", required = true)
-	private File temporaryProtoFileDirectory;
+	private void attachProtos(File protoSourceRoot, ImmutableMap<File, FileTreeScanner.Attributes> protoFiles)
+			throws IOException {
+		final File resourceDirectory = this.getProtoResourceDirectory();
+		if (this.copyProtos && resourceDirectory != null) {
+			this.copyProtos(protoSourceRoot, protoFiles, resourceDirectory);
+		} else if (!protoFiles.isEmpty()) {
+			this.addResourceDirectory(protoSourceRoot, ImmutableList.copyOf(this.includes),
+					ImmutableList.copyOf(this.excludes));
+		}
+	}
 
 	/**
-	 * This is the path to the local maven {@code repository}.
-	 *
+	 * Packages the protos of {@code module} with its classes, like {@link #attachProtos(File, ImmutableMap)} does
+	 * for the project of a goal.
 	 */
-	@Parameter(defaultValue = "${localRepository}", required = true)
-	private ArtifactRepository localRepository;
+	private void attachModuleProtos(ProtoModule module, ImmutableMap<File, FileTreeScanner.Attributes> protoFiles)
+			throws IOException {
+		if (this.copyProtos) {
+			this.copyProtos(module.protoSourceRoot, protoFiles, new File(module.project.getBuild().getOutputDirectory()));
+		} else if (!protoFiles.isEmpty()) {
+			this.projectHelper.addResource(module.project, module.protoSourceRoot.getAbsolutePath(),
+					ImmutableList.copyOf(this.includes), ImmutableList.copyOf(this.excludes));
+		}
+	}
 
 	/**
-	 * Set this to {@code false} to disable hashing of dependent jar paths.
-	 * <p/>
-	 * This plugin expands jars on the classpath looking for embedded .proto files.
-	 * Normally these paths are hashed (MD5) to avoid issues with long file names on windows.
-	 * However if this property is set to {@code false} longer paths will be used.
-	 *
+	 * Brings the copies of the protos below {@code protoSourceRoot} in {@code resourceDirectory} up to date.
 	 */
-	@Parameter(defaultValue = "true", required = true)
-	private boolean hashDependentPaths;
+	private void copyProtos(File protoSourceRoot, ImmutableMap<File, FileTreeScanner.Attributes> protoFiles,
+			File resourceDirectory) throws IOException {
+		long packageStart = this.metrics.start();
+		final File recordFile = new File(this.manifestDirectory, AbstractProtocMojo.md5Hex(
+				protoSourceRoot.getAbsolutePath() + File.pathSeparator + resourceDirectory.getAbsolutePath()) + ".packaged");
+		new PackagedProtos(resourceDirectory, recordFile, this.metrics)
+				.sync(protoSourceRoot, protoFiles.values(), this.writeProtoIndex);
+		this.metrics.stop("package", packageStart);
+	}
 
-	@Parameter
-	private Set<String> includes = ImmutableSet.of(AbstractProtocMojo.DEFAULT_INCLUDES);
+	private void attachOutputTargets() {
+		for (OutputTarget outputTarget : this.outputTargets) {
+			final File directory = outputTarget.isDescriptorSet()
+					? outputTarget.getDescriptorSetFile().getParentFile() : outputTarget.getOutputDirectory();
+			if (OutputTarget.ATTACH_SOURCES.equals(outputTarget.getAttach())) {
+				this.addSourceRoot(directory);
+			} else if (OutputTarget.ATTACH_RESOURCES.equals(outputTarget.getAttach())) {
+				this.addResourceDirectory(directory, ImmutableList.of("**/*"), ImmutableList.<String>of());
+			}
+		}
+	}
 
-	@Parameter
-	private Set<String> excludes = ImmutableSet.of();
+	private static Set<String> outputsOf(ProtoManifest manifest, Iterable<String> names) {
+		Set<String> outputs = Sets.newTreeSet();
+		for (String name : names) {
+			if (manifest.get(name) != null) {
+				outputs.addAll(manifest.get(name).outputs);
+			}
+		}
+		return outputs;
+	}
 
-	@Parameter
-	private long staleMillis = 0;
+	private void deleteOutputs(Iterable<String> outputs) throws MojoExecutionException {
+		for (String output : outputs) {
+			File generatedFile = this.resolveOutput(output);
+			if (generatedFile.exists() && !generatedFile.delete()) {
+				throw new MojoExecutionException("Could not delete " + generatedFile.getAbsolutePath());
+			}
+		}
+	}
 
-	@Parameter
-	private boolean checkStaleness = false;
+	/**
+	 * Assigns every file in {@code produced} to the proto named in its {@code // source:} header. Files without
+	 * such a header are assigned to every proto of {@code compiled}.
+	 */
+	private void recordOutputs(ProtoManifest manifest, Set<String> compiled, Set<String> produced) throws IOException {
+		for (String output : produced) {
+			String source = AbstractProtocMojo.readSourceHeader(this.resolveOutput(output));
+			if (source != null && compiled.contains(source)) {
+				manifest.get(source).outputs.add(output);
+			} else {
+				for (String name : compiled) {
+					manifest.get(name).outputs.add(output);
+				}
+			}
+		}
+	}
 
-	@Override
-	public void execute() throws MojoExecutionException, MojoFailureException {
-		this.checkParameters();
-		final File protoSourceRoot = this.getProtoSourceRoot();
-		if (protoSourceRoot.exists()) {
-			try {
-				ImmutableSet<File> protoFiles = this.findProtoFilesInDirectory(protoSourceRoot);
-				final File outputDirectory = this.getOutputDirectory();
-				ImmutableSet<File> outputFiles = this.findGeneratedFilesInDirectory(this.getOutputDirectory());
+	private static void addCoOwners(Set<String> dirty, Set<String> removed, ProtoManifest previous, Set<String> names) {
+		SetMultimap<String, String> owners = HashMultimap.create();
+		for (Map.Entry<String, ProtoManifest.Entry> entry : previous.getEntries().entrySet()) {
+			for (String output : entry.getValue().outputs) {
+				owners.put(output, entry.getKey());
+			}
+		}
+		Deque<String> pending = Lists.newLinkedList(Sets.union(dirty, removed));
+		while (!pending.isEmpty()) {
+			ProtoManifest.Entry entry = previous.get(pending.removeFirst());
+			for (String output : entry == null ? ImmutableSet.<String>of() : entry.outputs) {
+				for (String owner : owners.get(output)) {
+					if (names.contains(owner) && dirty.add(owner)) {
+						pending.add(owner);
+					}
+				}
+			}
+		}
+	}
 
-				if (protoFiles.isEmpty()) {
-					this.getLog().info("No proto files to compile.");
-				} else if (this.checkStaleness && this.lastModified(protoFiles) + this.staleMillis < this.lastModified(outputFiles)) {
-					this.getLog().info("Skipping compilation because target directory newer than sources.");
-					this.attachFiles();
-				} else {
-					ImmutableSet<File> derivedProtoPathElements =
-							this.makeProtoPathFromJars(this.temporaryProtoFileDirectory, this.getDependencyArtifactFiles());
+	/**
+	 * Follows the imports of the sources into the dependencies. The imports of a dependency proto are only
+	 * followed once it is extracted, which {@link DependencyProtoPath#resolve} does for all of them.
+	 *
+	 * @param importsByName the imports of every source proto, to which the imports of the extracted dependency
+	 *                      protos are added.
+	 * @return the {@link DependencyProtoPath#digest(String) digest} of every dependency proto the sources import,
+	 *         directly or transitively, keyed by name.
+	 */
+	private Map<String, String> dependencyProtoDigests(Map<String, List<String>> importsByName) throws IOException {
+		final Map<String, String> digests = Maps.newHashMap();
+		final Deque<String> pending = Lists.newLinkedList(Iterables.concat(importsByName.values()));
+		final Set<String> seen = Sets.newHashSet(importsByName.keySet());
+		while (!pending.isEmpty()) {
+			final String name = pending.removeFirst();
+			final String digest = seen.add(name) ? this.dependencyProtoPath.digest(name) : null;
+			if (digest == null) {
+				continue;
+			}
+			digests.put(name, digest);
+			final File protoFile = this.dependencyProtoPath.extractedFile(name);
+			if (protoFile != null) {
+				final List<String> imports = ProtoImports.parse(protoFile);
+				importsByName.put(name, imports);
+				pending.addAll(imports);
+			}
+		}
+		return digests;
+	}
 
-					if(!outputDirectory.exists() && !outputDirectory.mkdirs()) {
-						if (!outputDirectory.exists()) {
-							throw new MojoExecutionException("Could not create directories: " + outputDirectory.getAbsolutePath() + " does not exist!");
-						}
-						if (!outputDirectory.isDirectory()) {
-							throw new MojoExecutionException("Could not create directories: " + outputDirectory.getAbsolutePath() + " exists but is not a directory!");
-						}
-					}
+	/**
+	 * Hashes everything besides the proto sources and the dependency protos that affects the generated code.
+	 * The dependency protos are recorded one by one in the manifest instead, so that a changed dependency only
+	 * recompiles the protos importing one of its changed protos.
+	 */
+	private String fingerprint(File protoSourceRoot) throws IOException {
+		Hasher hasher = Hashing.md5().newHasher()
+				.putString(this.protocExecutable, Charsets.UTF_8)
+				.putString(Joiner.on(',').join(Sets.newTreeSet(this.includes)), Charsets.UTF_8)
+				.putString(Joiner.on(',').join(Sets.newTreeSet(this.excludes)), Charsets.UTF_8)
+				.putString(Joiner.on(',').join(this.outputTargets), Charsets.UTF_8)
+				.putBoolean(this.reproducible);
+		hasher.putString(protoSourceRoot.getAbsolutePath(), Charsets.UTF_8);
+		for (File additionalProtoPathElement : this.additionalProtoPathElements) {
+			hasher.putString(additionalProtoPathElement.getAbsolutePath(), Charsets.UTF_8);
+			if (additionalProtoPathElement.isDirectory()) {
+				for (Map.Entry<File, FileTreeScanner.Attributes> protoFile
+						: this.scanProtoFilesInDirectory(additionalProtoPathElement).entrySet()) {
+					hasher.putString(protoFile.getKey().getAbsolutePath(), Charsets.UTF_8)
+							.putLong(protoFile.getValue().size)
+							.putLong(protoFile.getValue().lastModified);
+				}
+			}
+		}
+		return hasher.hash().toString();
+	}
 
-					// Quick fix to fix issues with two mvn installs in a row (ie no clean)
-					AbstractProtocMojo.clean(outputDirectory);
-
-					Protoc protoc = new Protoc.Builder(this.protocExecutable, outputDirectory)
-					.addProtoPathElement(protoSourceRoot)
-					.addProtoPathElements(derivedProtoPathElements)
-					.addProtoPathElements(Arrays.asList(this.additionalProtoPathElements))
-					.addProtoFiles(protoFiles)
-					.build();
-					final int exitStatus = protoc.compile();
-					if (exitStatus != 0) {
-						this.getLog().error("protoc failed output: " + protoc.getOutput());
-						this.getLog().error("protoc failed error: " + protoc.getError());
-						throw new MojoFailureException(
-								"protoc did not exit cleanly. Review output for more information.");
-					}
-					this.attachFiles();
+	private boolean allOutputsExist(Iterable<String> outputs) {
+		for (String output : outputs) {
+			if (!this.resolveOutput(output).isFile()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the path of {@code file} relative to {@code directory}, using {@code /} as separator.
+	 */
+	static String relativePath(File directory, File file) {
+		final String directoryPath = directory.getAbsolutePath();
+		final String filePath = file.getAbsolutePath();
+		Preconditions.checkArgument(filePath.startsWith(directoryPath + File.separator),
+				"%s is not inside %s", file, directory);
+		return filePath.substring(directoryPath.length() + 1).replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @return the proto named by the {@code source:} comment {@code protoc} and most plugins write at the top of
+	 *         every generated file, or {@code null} if there is none.
+	 */
+	private static String readSourceHeader(File generatedFile) throws IOException {
+		try (BufferedReader reader = Files.newReader(generatedFile, Charsets.UTF_8)) {
+			String line;
+			for (int i = 0; i < 30 && (line = reader.readLine()) != null; i++) {
+				Matcher matcher = AbstractProtocMojo.SOURCE_HEADER.matcher(line);
+				if (matcher.find()) {
+					return matcher.group(1);
 				}
-			} catch (IOException e) {
-				throw new MojoExecutionException("An IO error occured", e);
-			} catch (IllegalArgumentException e) {
-				throw new MojoFailureException("protoc failed to execute because: " + e.getMessage(), e);
-			} catch (CommandLineException e) {
-				throw new MojoExecutionException("An error occurred while invoking protoc.", e);
 			}
-		} else {
-			this.getLog().info(String.format("%s does not exist. Review the configuration or consider disabling the plugin.",
-					protoSourceRoot));
+			return null;
 		}
 	}
 
-	ImmutableSet<File> findGeneratedFilesInDirectory(File directory) throws IOException {
+	private ImmutableMap<File, FileTreeScanner.Attributes> scanGeneratedFilesInDirectory(File directory) throws IOException {
 		if (directory == null || !directory.isDirectory())
-			return ImmutableSet.of();
-
-		// TODO(gak): plexus-utils needs generics
-		@SuppressWarnings("unchecked")
-		List<File> javaFilesInDirectory = FileUtils.getFiles(directory, "**/*.java", null);
-		return ImmutableSet.copyOf(javaFilesInDirectory);
+			return ImmutableMap.of();
+		return AbstractProtocMojo.GENERATED_FILE_SCANNER.scan(directory);
 	}
 
-	private long lastModified(ImmutableSet<File> files) {
+	private long lastModified(Iterable<FileTreeScanner.Attributes> files) {
 		long result = 0;
-		for (File file : files) {
-			if (file.lastModified() > result)
-				result = file.lastModified();
+		for (FileTreeScanner.Attributes file : files) {
+			if (file.lastModified > result)
+				result = file.lastModified;
 		}
 		return result;
 	}
@@ -194,11 +1687,15 @@ abstract class AbstractProtocMojo extends AbstractMojo {
 		final File protoSourceRoot = this.getProtoSourceRoot();
 		Preconditions.checkNotNull(protoSourceRoot);
 		Preconditions.checkArgument(!protoSourceRoot.isFile(), "protoSourceRoot is a file, not a diretory");
-		Preconditions.checkNotNull(this.temporaryProtoFileDirectory, "temporaryProtoFileDirectory");
-		Preconditions.checkState(!this.temporaryProtoFileDirectory.isFile(), "temporaryProtoFileDirectory is a file, not a directory");
+		final File temporaryProtoFileDirectory = this.getTemporaryProtoFileDirectory();
+		Preconditions.checkNotNull(temporaryProtoFileDirectory, "temporaryProtoFileDirectory");
+		Preconditions.checkState(!temporaryProtoFileDirectory.isFile(), "temporaryProtoFileDirectory is a file, not a directory");
 		final File outputDirectory = this.getOutputDirectory();
 		Preconditions.checkNotNull(outputDirectory);
 		Preconditions.checkState(!outputDirectory.isFile(), "the outputDirectory is a file, not a directory");
+		for (OutputTarget outputTarget : this.outputTargets) {
+			outputTarget.validate();
+		}
 	}
 
 	protected abstract File getProtoSourceRoot();
@@ -207,8 +1704,33 @@ abstract class AbstractProtocMojo extends AbstractMojo {
 
 	protected abstract File getOutputDirectory();
 
+	/**
+	 * @return the directory dependency protos are extracted to when {@link #cacheDependencyProtos} is disabled.
+	 *         It is cleaned on every execution, so each goal needs its own.
+	 */
+	protected abstract File getTemporaryProtoFileDirectory();
+
 	protected abstract void attachFiles();
 
+	/**
+	 * Adds {@code directory} as source root of the compilation this mojo generates sources for.
+	 */
+	protected abstract void addSourceRoot(File directory);
+
+	/**
+	 * Adds {@code directory} as resource directory of the compilation this mojo generates sources for, with the
+	 * files matching {@code includes} but not {@code excludes}.
+	 */
+	protected abstract void addResourceDirectory(File directory, List<String> includes, List<String> excludes);
+
+	/**
+	 * @return the classes directory of the compilation this mojo generates sources for, which the compiled protos
+	 *         are copied to by {@link #copyProtos}, or {@code null} if this goal packages no protos.
+	 */
+	File getProtoResourceDirectory() {
+		return null;
+	}
+
 	/**
 	 * Gets the {@link File} for each dependency artifact.
 	 *
@@ -227,76 +1749,348 @@ abstract class AbstractProtocMojo extends AbstractMojo {
 	 */
 	ImmutableSet<File> makeProtoPathFromJars(File tmpProtoFileDirectory, Iterable<File> classpathElementFiles)
 			throws IOException, MojoExecutionException {
-		Preconditions.checkNotNull(classpathElementFiles, "classpathElementFiles");
-		// clean the temporary directory to ensure that stale files aren't used
-		if (tmpProtoFileDirectory.exists()) {
-			FileUtils.cleanDirectory(tmpProtoFileDirectory);
+		final DependencyProtoPath dependencyProtoPath = new DependencyProtoPath(this.metrics);
+		this.indexDependencyProtos(dependencyProtoPath, tmpProtoFileDirectory, classpathElementFiles,
+				Maps.<String, DependencyProtoRegistry.IndexedJar>newHashMap());
+		return dependencyProtoPath.all(this.getExtractionThreads());
+	}
+
+	private static <T> T awaitJar(File jarFile, Future<T> future) throws MojoExecutionException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while reading " + jarFile, e);
+		} catch (ExecutionException e) {
+			throw new MojoExecutionException(String.format("%s was not a readable artifact: %s", jarFile,
+					e.getCause().getMessage()), e.getCause());
 		}
-		Set<File> protoDirectories = Sets.newHashSet();
+	}
+
+	private int getExtractionThreads() {
+		return this.extractionThreads > 0 ? this.extractionThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Adds the protos of the dependency jars and directories to {@code dependencyProtoPath}. Jars are read
+	 * through the {@link DependencyProtoCache} or, without {@link #cacheDependencyProtos}, are extracted into
+	 * {@code tmpProtoFileDirectory} as their protos are needed.
+	 *
+	 * @param indexedJars the jars indexed without the cache so far, reused instead of being read again. The
+	 *                    jars indexed here are added.
+	 */
+	private void indexDependencyProtos(DependencyProtoPath dependencyProtoPath, File tmpProtoFileDirectory,
+			Iterable<File> classpathElementFiles, Map<String, DependencyProtoRegistry.IndexedJar> indexedJars)
+			throws IOException, MojoExecutionException {
+		Preconditions.checkNotNull(classpathElementFiles, "classpathElementFiles");
+		final DependencyProtoCache dependencyProtoCache = this.getDependencyProtoCache();
+		this.dependencyExtractions.clear();
+		final List<File> jarFiles = Lists.newArrayList();
 		for (File classpathElementFile : classpathElementFiles) {
 			// for some reason under IAM, we receive poms as dependent files
 			// I am excluding .xml rather than including .jar as there may be other extensions in use (sar, har, zip)
 			if (classpathElementFile.isFile() && classpathElementFile.canRead() &&
 					!classpathElementFile.getName().endsWith(".xml")) {
+				jarFiles.add(classpathElementFile);
+			}
+		}
 
-				// create the jar file. the constructor validates.
-				JarFile classpathJar = null;
-				try {
-					classpathJar = new JarFile(classpathElementFile);
-					for (JarEntry jarEntry : Collections.list(classpathJar.entries())) {
-						final String jarEntryName = jarEntry.getName();
-						if (jarEntry.getName().endsWith(AbstractProtocMojo.PROTO_FILE_SUFFIX)) {
-							final File uncompressedCopy =
-									new File(new File(tmpProtoFileDirectory,
-											this.truncatePath(classpathJar.getName())), jarEntryName);
-
-							File outputDirectory = uncompressedCopy.getParentFile();
-							if(!outputDirectory.mkdirs()) {
-								if (!outputDirectory.exists()) {
-									throw new MojoExecutionException("Could not create directories: " + outputDirectory.getAbsolutePath() + " does not exist!");
-								}
-								if (!outputDirectory.isDirectory()) {
-									throw new MojoExecutionException("Could not create directories: " + outputDirectory.getAbsolutePath() + " exists but is not a directory!");
-								}
-							}
-
-							FileUtils.copyStreamToFile(new RawInputStreamFacade(classpathJar
-									.getInputStream(jarEntry)), uncompressedCopy);
-							protoDirectories.add(uncompressedCopy.getParentFile());
+		// the jars are read concurrently, but added in classpath order, which decides between duplicate protos
+		final Map<File, Future<DependencyProtoCache.Extraction>> extractions = Maps.newHashMap();
+		final Map<File, Future<JarProtoIndex>> indexes = Maps.newHashMap();
+		final ExecutorService executor = jarFiles.isEmpty() ? null
+				: Executors.newFixedThreadPool(Math.min(this.getExtractionThreads(), jarFiles.size()));
+		try {
+			for (final File jarFile : jarFiles) {
+				if (this.cacheDependencyProtos) {
+					final DependencyProtoRegistry registry = DependencyProtoRegistry.forSession(this.session);
+					final String key = this.truncatePath(jarFile.getPath());
+					extractions.put(jarFile, executor.submit(new Callable<DependencyProtoCache.Extraction>() {
+						@Override
+						public DependencyProtoCache.Extraction call() throws IOException {
+							return registry.extract(dependencyProtoCache, jarFile, key);
 						}
-					}
-				} catch (IOException e) {
-					throw new IllegalArgumentException(String.format(
-							"%s was not a readable artifact", classpathElementFile));
+					}));
+				} else if (!indexedJars.containsKey(DependencyProtoRegistry.id(jarFile))) {
+					indexes.put(jarFile, executor.submit(new Callable<JarProtoIndex>() {
+						@Override
+						public JarProtoIndex call() throws IOException {
+							return JarProtoIndex.scan(jarFile, AbstractProtocMojo.this.requireProtoIndex);
+						}
+					}));
 				}
-				finally {
-					if (classpathJar != null) {
-						classpathJar.close();
+			}
+			for (File classpathElementFile : classpathElementFiles) {
+				if (extractions.containsKey(classpathElementFile)) {
+					DependencyProtoCache.Extraction extraction =
+							AbstractProtocMojo.awaitJar(classpathElementFile, extractions.get(classpathElementFile));
+					this.dependencyExtractions.add(extraction);
+					dependencyProtoPath.addExtracted(classpathElementFile, extraction.root, extraction.protoEntries);
+				} else if (indexes.containsKey(classpathElementFile)) {
+					JarProtoIndex index = AbstractProtocMojo.awaitJar(classpathElementFile, indexes.get(classpathElementFile));
+					this.metrics.add(ExecutionMetrics.JARS_OPENED, 1);
+					if (index.isPackaged()) {
+						this.metrics.add(ExecutionMetrics.PACKAGED_INDEXES_READ, 1);
+					}
+					final DependencyProtoRegistry.IndexedJar indexedJar = new DependencyProtoRegistry.IndexedJar(index,
+							new File(tmpProtoFileDirectory, this.truncatePath(classpathElementFile.getPath())));
+					indexedJars.put(DependencyProtoRegistry.id(classpathElementFile), indexedJar);
+					dependencyProtoPath.addJar(classpathElementFile, indexedJar.root, index, indexedJar.extracted);
+				} else if (!this.cacheDependencyProtos && indexedJars.containsKey(DependencyProtoRegistry.id(classpathElementFile))) {
+					final DependencyProtoRegistry.IndexedJar indexedJar =
+							indexedJars.get(DependencyProtoRegistry.id(classpathElementFile));
+					dependencyProtoPath.addJar(classpathElementFile, indexedJar.root, indexedJar.index, indexedJar.extracted);
+				} else if (classpathElementFile.isDirectory()) {
+					final List<String> protoNames = Lists.newArrayList();
+					for (FileTreeScanner.Attributes protoFile
+							: AbstractProtocMojo.ALL_PROTO_FILES_SCANNER.scan(classpathElementFile).values()) {
+						protoNames.add(protoFile.relativePath);
 					}
+					dependencyProtoPath.addExtracted(classpathElementFile, classpathElementFile, protoNames);
 				}
-			} else if (classpathElementFile.isDirectory()) {
-				File[] protoFiles = classpathElementFile.listFiles(new FilenameFilter() {
-					@Override
-					public boolean accept(File dir, String name) {
-						return name.endsWith(AbstractProtocMojo.PROTO_FILE_SUFFIX);
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+		if (!this.cacheDependencyProtos) {
+			AbstractProtocMojo.pruneTemporaryProtoFiles(tmpProtoFileDirectory, indexedJars.values());
+		}
+	}
+
+	/**
+	 * Deletes every file below {@code tmpProtoFileDirectory} that is not a proto of one of {@code indexedJars}
+	 * below its root. The protos extracted by earlier builds are kept, to be reused by
+	 * {@link DependencyProtoPath} if they still have the CRC of their entry.
+	 */
+	private static void pruneTemporaryProtoFiles(File tmpProtoFileDirectory,
+			Collection<DependencyProtoRegistry.IndexedJar> indexedJars) throws IOException {
+		if (!tmpProtoFileDirectory.isDirectory()) {
+			return;
+		}
+		final Map<String, Set<String>> namesByRoot = Maps.newHashMap();
+		for (DependencyProtoRegistry.IndexedJar indexedJar : indexedJars) {
+			namesByRoot.put(indexedJar.root.getPath() + File.separator, ImmutableSet.copyOf(indexedJar.index.getNames()));
+		}
+		for (File file : AbstractProtocMojo.ALL_FILES_SCANNER.scan(tmpProtoFileDirectory).keySet()) {
+			boolean stale = true;
+			for (Map.Entry<String, Set<String>> root : namesByRoot.entrySet()) {
+				if (file.getPath().startsWith(root.getKey())) {
+					stale = !root.getValue().contains(
+							file.getPath().substring(root.getKey().length()).replace(File.separatorChar, '/'));
+					break;
+				}
+			}
+			if (stale && !file.delete()) {
+				throw new IOException("Could not delete " + file);
+			}
+		}
+	}
+
+	/**
+	 * Switches to the cached descriptor set of the dependency jars if it provides everything the protos in
+	 * {@code protoFiles} import from them.
+	 *
+	 * @return the protopath elements still needed besides the descriptor set.
+	 */
+	private ImmutableSet<File> replaceDependencyProtosByDescriptorSet(File protoSourceRoot, Set<File> protoFiles,
+			ImmutableSet<File> derivedProtoPathElements) throws IOException, CommandLineException {
+		final ImmutableSet<String> provided = DependencyDescriptorSet.names(this.dependencyExtractions);
+		if (!this.cacheDependencyProtos || provided.isEmpty()) {
+			return derivedProtoPathElements;
+		}
+		final ImmutableSet.Builder<File> remaining = ImmutableSet.builder();
+		for (File protoPathElement : derivedProtoPathElements) {
+			if (this.extractionContaining(protoPathElement) == null) {
+				remaining.add(protoPathElement);
+			}
+		}
+		final List<File> localProtoPath = Lists.newArrayList(protoSourceRoot);
+		localProtoPath.addAll(remaining.build());
+		localProtoPath.addAll(Arrays.asList(this.additionalProtoPathElements));
+		for (File protoFile : protoFiles) {
+			for (String imported : ProtoImports.parse(protoFile)) {
+				if (!imported.startsWith("google/protobuf/") && !provided.contains(imported)
+						&& !AbstractProtocMojo.isOnProtoPath(localProtoPath, imported)) {
+					this.getLog().info(String.format("%s imports %s, which the dependency descriptor set does not "
+							+ "provide. Parsing the dependency protos instead.", protoFile, imported));
+					return derivedProtoPathElements;
+				}
+			}
+		}
+		final File descriptorSet = new DependencyDescriptorSet(
+				new File(this.getDependencyProtoCache().getDirectory(), "descriptors"), this.protocExecutable,
+				this.useArgumentFile, this.getProtocSlots()).get(this.dependencyExtractions, this.getLog());
+		if (descriptorSet == null) {
+			return derivedProtoPathElements;
+		}
+		this.dependencyDescriptorSet = descriptorSet;
+		return remaining.build();
+	}
+
+	private static boolean isOnProtoPath(Iterable<File> protoPath, String name) {
+		for (File protoPathElement : protoPath) {
+			if (new File(protoPathElement, name).isFile()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the {@link ProtocSlots} of this execution, warning if an earlier execution fixed a different number of
+	 * slots than {@link #maxConcurrentProtocs}, or an earlier build recorded more slots in the lock directory.
+	 */
+	private void openProtocSlots() throws IOException {
+		if (this.protocSlots != null) {
+			return;
+		}
+		final int size =
+				this.maxConcurrentProtocs > 0 ? this.maxConcurrentProtocs : Runtime.getRuntime().availableProcessors();
+		this.protocSlots = ProtocSlots.forSession(this.session, size, this.protocLockDirectory);
+		if (this.protocSlots.getSize() != size) {
+			this.getLog().warn(String.format("maxConcurrentProtocs of %d is ignored, all executions of this build share "
+					+ "the %d protoc slots of the first one.", size, this.protocSlots.getSize()));
+		}
+		if (this.protocSlots.getLockSlots() > size) {
+			this.getLog().warn(String.format("%s has %d protoc slots, as an earlier build needed, so the builds sharing "
+					+ "it may run more than %d protoc processes at once. Delete it while no build uses it to lower "
+					+ "the limit.", this.protocLockDirectory, this.protocSlots.getLockSlots(), size));
+		}
+	}
+
+	private ProtocSlots getProtocSlots() {
+		return Preconditions.checkNotNull(this.protocSlots, "protocSlots");
+	}
+
+	private BuildCache getBuildCache() {
+		final File cacheDirectory = this.buildCacheDirectory != null ? this.buildCacheDirectory
+				: new File(this.getDependencyProtoCache().getDirectory(), "outputs");
+		return new BuildCache(cacheDirectory, this.buildCacheMaxSize * 1024 * 1024);
+	}
+
+	/**
+	 * Hashes everything that affects the files generated from {@code protoFiles}: the {@code protoc} version, the
+	 * generators, and the names and contents of all protos on the protopath. Absolute paths are left out, so
+	 * different checkouts of the same sources share their entries.
+	 * <p/>
+	 * Dependency jars are represented by the digests of their indexes and the sources by the hashes of
+	 * {@code sourceHashes}, so only the protos of other directories are read.
+	 */
+	private String buildCacheKey(File protoSourceRoot, Iterable<File> protoPath, Collection<File> protoFiles,
+			Map<String, String> sourceHashes) throws IOException, CommandLineException {
+		final Hasher hasher = Hashing.sha1().newHasher()
+				.putString("protoc-plugin build cache v2", Charsets.UTF_8)
+				.putString(BuildCache.protocVersion(this.protocExecutable), Charsets.UTF_8)
+				.putString("java>0", Charsets.UTF_8)
+				.putBoolean(this.reproducible);
+		for (OutputTarget outputTarget : this.outputTargets) {
+			if (outputTarget.isDescriptorSet()) {
+				hasher.putString("descriptorSet:" + outputTarget.isIncludeImports() + ":" + outputTarget.isIncludeSourceInfo(),
+						Charsets.UTF_8);
+			} else {
+				hasher.putString(outputTarget.getGenerator() + ":" + outputTarget.getOptions() + ">"
+						+ this.outputRootOf(outputTarget), Charsets.UTF_8);
+				final File plugin = outputTarget.getPlugin();
+				if (plugin != null) {
+					hasher.putString(plugin.getName(), Charsets.UTF_8).putLong(plugin.length()).putLong(plugin.lastModified());
+				}
+			}
+		}
+		if (this.dependencyDescriptorSet != null) {
+			// named after the digests of the protos it was compiled from
+			hasher.putString(this.dependencyDescriptorSet.getName(), Charsets.UTF_8);
+		}
+		for (File protoPathElement : protoPath) {
+			hasher.putString("--proto_path", Charsets.UTF_8);
+			final DependencyProtoCache.Extraction extraction = this.extractionContaining(protoPathElement);
+			final String jarDigest = this.dependencyProtoPath.jarDigest(protoPathElement);
+			if (extraction != null) {
+				// named after the digest of the protos of the jar
+				hasher.putString(AbstractProtocMojo.relativePath(extraction.root.getParentFile(), protoPathElement),
+						Charsets.UTF_8);
+			} else if (jarDigest != null) {
+				hasher.putString(jarDigest, Charsets.UTF_8);
+			} else if (protoPathElement.isDirectory()) {
+				final boolean sources = protoPathElement.equals(protoSourceRoot);
+				for (Map.Entry<File, FileTreeScanner.Attributes> protoFile
+						: AbstractProtocMojo.ALL_PROTO_FILES_SCANNER.scan(protoPathElement).entrySet()) {
+					String hash = sources ? sourceHashes.get(protoFile.getValue().relativePath) : null;
+					if (hash == null) {
+						hash = Files.hash(protoFile.getKey(), Hashing.sha1()).toString();
 					}
-				});
+					hasher.putString(protoFile.getValue().relativePath, Charsets.UTF_8).putString(hash, Charsets.UTF_8);
+				}
+			}
+		}
+		final Set<String> protoNames = Sets.newTreeSet();
+		for (File protoFile : protoFiles) {
+			protoNames.add(AbstractProtocMojo.relativePath(protoSourceRoot, protoFile));
+		}
+		for (String protoName : protoNames) {
+			hasher.putString(protoName, Charsets.UTF_8);
+		}
+		return hasher.hash().toString();
+	}
+
+	private DependencyProtoCache.Extraction extractionContaining(File protoPathElement) {
+		for (DependencyProtoCache.Extraction extraction : this.dependencyExtractions) {
+			if (protoPathElement.equals(extraction.root)
+					|| protoPathElement.getPath().startsWith(extraction.root.getPath() + File.separator)) {
+				return extraction;
+			}
+		}
+		return null;
+	}
+
+	private List<File> getDescriptorSetFiles() {
+		List<File> descriptorSetFiles = Lists.newArrayList();
+		for (OutputTarget outputTarget : this.outputTargets) {
+			if (outputTarget.isDescriptorSet()) {
+				descriptorSetFiles.add(outputTarget.getDescriptorSetFile());
+			}
+		}
+		return descriptorSetFiles;
+	}
 
-				if (protoFiles.length > 0) {
-					protoDirectories.add(classpathElementFile);
+	private static boolean containsFiles(Iterable<File> directories) {
+		for (File directory : directories) {
+			File[] children = directory.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					if (child.isFile() || AbstractProtocMojo.containsFiles(ImmutableList.of(child))) {
+						return true;
+					}
 				}
 			}
 		}
-		return ImmutableSet.copyOf(protoDirectories);
+		return false;
+	}
+
+	private DependencyProtoCache getDependencyProtoCache() {
+		final File cacheDirectory = this.dependencyCacheDirectory != null ? this.dependencyCacheDirectory
+				: new File(this.localRepository.getBasedir(), ".cache/protoc-plugin");
+		return new DependencyProtoCache(cacheDirectory, this.metrics, this.requireProtoIndex);
 	}
 
 	ImmutableSet<File> findProtoFilesInDirectory(File directory) throws IOException {
+		return this.scanProtoFilesInDirectory(directory).keySet();
+	}
+
+	/**
+	 * @return the protos below {@code directory} matching the {@link #includes} and {@link #excludes}, with the
+	 *         attributes read while scanning.
+	 */
+	private ImmutableMap<File, FileTreeScanner.Attributes> scanProtoFilesInDirectory(File directory) throws IOException {
 		Preconditions.checkNotNull(directory);
 		Preconditions.checkArgument(directory.isDirectory(), "%s is not a directory", directory);
-		// TODO(gak): plexus-utils needs generics
-		@SuppressWarnings("unchecked")
-		List<File> protoFilesInDirectory = FileUtils.getFiles(directory, Joiner.on(",").join(this.includes), Joiner.on(",").join(this.excludes));
-		return ImmutableSet.copyOf(protoFilesInDirectory);
+		if (this.protoFileScanner == null) {
+			this.protoFileScanner = FileTreeScanner.withDefaultExcludes(this.includes, this.excludes);
+		}
+		ImmutableMap<File, FileTreeScanner.Attributes> protoFilesInDirectory = this.protoFileScanner.scan(directory);
+		this.metrics.add(ExecutionMetrics.FILES_SCANNED, protoFilesInDirectory.size());
+		return protoFilesInDirectory;
 	}
 
 	ImmutableSet<File> findProtoFilesInDirectories(Iterable<File> directories) throws IOException {
@@ -317,11 +2111,7 @@ abstract class AbstractProtocMojo extends AbstractMojo {
 	String truncatePath(final String jarPath) throws MojoExecutionException {
 
 		if (this.hashDependentPaths) {
-			try {
-				return AbstractProtocMojo.toHexString(MessageDigest.getInstance("MD5").digest(jarPath.getBytes(Charsets.UTF_8)));
-			} catch (NoSuchAlgorithmException e) {
-				throw new MojoExecutionException("Failed to expand dependent jar", e);
-			}
+			return AbstractProtocMojo.md5Hex(jarPath);
 		}
 
 		String repository = this.localRepository.getBasedir().replace('\\', '/');
@@ -345,6 +2135,13 @@ abstract class AbstractProtocMojo extends AbstractMojo {
 		return path;
 	}
 
+	/**
+	 * @return the MD5 digest of {@code path} as lowercase hex string.
+	 */
+	static String md5Hex(final String path) {
+		return Hashing.md5().hashString(path, Charsets.UTF_8).toString();
+	}
+
 	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
 
 	public static String toHexString(byte[] byteArray) {
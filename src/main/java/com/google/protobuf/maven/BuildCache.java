@@ -0,0 +1,238 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * A content addressed cache of the files generated by {@code protoc}, shared by every checkout on a machine.
+ * <p/>
+ * Each entry holds the files one {@code protoc} invocation generated into each of its output directories and
+ * descriptor sets, stored under a key the caller derives from everything that affects them. Entries are
+ * written to a private temporary directory that is renamed into place, so concurrent builds never observe a
+ * partial entry. The modification time of an entry's marker records its last use; once the cache grows beyond
+ * its maximum size the least recently used entries are deleted.
+ *
+ */
+final class BuildCache {
+
+	private static final String MARKER_FILE = "entry";
+	private static final long STALE_TEMPORARY_MILLIS = TimeUnit.DAYS.toMillis(1);
+	private static final Map<String, String> PROTOC_VERSIONS = Collections.synchronizedMap(Maps.<String, String>newHashMap());
+
+	private final File entryDirectory;
+	private final File temporaryDirectory;
+	private final long maxSize;
+
+	/**
+	 * @param directory the root of the cache.
+	 * @param maxSize   the size in bytes the cache is trimmed to after storing an entry.
+	 */
+	BuildCache(File directory, long maxSize) {
+		Preconditions.checkNotNull(directory, "directory");
+		this.entryDirectory = new File(directory, "entries");
+		this.temporaryDirectory = new File(directory, "tmp");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the output of {@code protoc --version}, remembered per executable for the lifetime of the JVM.
+	 */
+	static String protocVersion(String executable) throws CommandLineException {
+		final File executableFile = new File(executable);
+		final String id = executable + File.pathSeparator + executableFile.length() + File.pathSeparator
+				+ executableFile.lastModified();
+		String version = BuildCache.PROTOC_VERSIONS.get(id);
+		if (version == null) {
+			Commandline cl = new Commandline();
+			cl.setExecutable(executable);
+			cl.addArguments(new String[]{"--version"});
+			CommandLineUtils.StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
+			CommandLineUtils.StringStreamConsumer error = new CommandLineUtils.StringStreamConsumer();
+			if (CommandLineUtils.executeCommandLine(cl, null, output, error) != 0) {
+				throw new CommandLineException("Could not determine the version of " + executable + ": " + error.getOutput());
+			}
+			version = output.getOutput().trim();
+			BuildCache.PROTOC_VERSIONS.put(id, version);
+		}
+		return version;
+	}
+
+	/**
+	 * Copies the files of the entry {@code key} into {@code outputDirectories} and {@code descriptorSets}.
+	 *
+	 * @return {@code false} if there is no such entry.
+	 */
+	boolean restore(String key, List<File> outputDirectories, List<File> descriptorSets) throws IOException {
+		final File entry = new File(this.entryDirectory, key);
+		final File marker = new File(entry, BuildCache.MARKER_FILE);
+		if (!marker.isFile()) {
+			return false;
+		}
+		try {
+			for (int i = 0; i < outputDirectories.size(); i++) {
+				final File cachedDirectory = new File(entry, "files/" + i);
+				if (cachedDirectory.isDirectory()) {
+					for (String cachedFile : BuildCache.fileNames(cachedDirectory)) {
+						final File target = new File(outputDirectories.get(i), cachedFile);
+						Files.createParentDirs(target);
+						Files.copy(new File(cachedDirectory, cachedFile), target);
+					}
+				}
+			}
+			for (int i = 0; i < descriptorSets.size(); i++) {
+				Files.copy(new File(entry, "descriptors/" + i), descriptorSets.get(i));
+			}
+		} catch (IOException e) {
+			// evicted by a concurrent build while copying
+			if (marker.isFile()) {
+				throw e;
+			}
+			for (File outputDirectory : outputDirectories) {
+				FileUtils.cleanDirectory(outputDirectory);
+			}
+			return false;
+		}
+		try {
+			// the marker tells the least recently used entries apart
+			java.nio.file.Files.setLastModifiedTime(marker.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			// evicted by a concurrent build since, the restored files are complete nonetheless
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the files in {@code outputDirectories} and {@code descriptorSets} as entry {@code key} and trims
+	 * the cache to its maximum size.
+	 */
+	void store(String key, List<File> outputDirectories, List<File> descriptorSets) throws IOException {
+		final File entry = new File(this.entryDirectory, key);
+		if (new File(entry, BuildCache.MARKER_FILE).isFile()) {
+			return;
+		}
+		final File temporary = new File(this.temporaryDirectory, key + "." + UUID.randomUUID());
+		try {
+			long size = 0;
+			for (int i = 0; i < outputDirectories.size(); i++) {
+				for (String generatedFile : BuildCache.fileNames(outputDirectories.get(i))) {
+					final File source = new File(outputDirectories.get(i), generatedFile);
+					final File target = new File(temporary, "files/" + i + "/" + generatedFile);
+					Files.createParentDirs(target);
+					Files.copy(source, target);
+					size += target.length();
+				}
+			}
+			for (int i = 0; i < descriptorSets.size(); i++) {
+				final File target = new File(temporary, "descriptors/" + i);
+				Files.createParentDirs(target);
+				Files.copy(descriptorSets.get(i), target);
+				size += target.length();
+			}
+			Files.write(Long.toString(size), new File(temporary, BuildCache.MARKER_FILE), Charsets.UTF_8);
+			Files.createParentDirs(entry);
+			// losing the race against a concurrent build is fine, it stored the very same files
+			if (!temporary.renameTo(entry) && !new File(entry, BuildCache.MARKER_FILE).isFile()) {
+				throw new IOException("Could not move " + temporary + " to " + entry);
+			}
+		} finally {
+			if (temporary.exists()) {
+				FileUtils.deleteDirectory(temporary);
+			}
+		}
+		this.trim();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache fits into its maximum size, and temporary
+	 * directories abandoned by crashed builds.
+	 */
+	private void trim() throws IOException {
+		final List<File> markers = Lists.newArrayList();
+		long size = 0;
+		for (File entry : BuildCache.listFiles(this.entryDirectory)) {
+			final File marker = new File(entry, BuildCache.MARKER_FILE);
+			if (marker.isFile()) {
+				markers.add(marker);
+				size += BuildCache.entrySize(marker);
+			}
+		}
+		Collections.sort(markers, new Comparator<File>() {
+			@Override
+			public int compare(File left, File right) {
+				return Long.valueOf(left.lastModified()).compareTo(right.lastModified());
+			}
+		});
+		for (File marker : markers) {
+			if (size <= this.maxSize) {
+				break;
+			}
+			size -= BuildCache.entrySize(marker);
+			FileUtils.deleteDirectory(marker.getParentFile());
+		}
+		final long staleBefore = System.currentTimeMillis() - BuildCache.STALE_TEMPORARY_MILLIS;
+		for (File temporary : BuildCache.listFiles(this.temporaryDirectory)) {
+			if (temporary.lastModified() < staleBefore) {
+				FileUtils.deleteDirectory(temporary);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of entries and their total size.
+	 */
+	String describe() {
+		long entries = 0;
+		long size = 0;
+		for (File entry : BuildCache.listFiles(this.entryDirectory)) {
+			final File marker = new File(entry, BuildCache.MARKER_FILE);
+			if (marker.isFile()) {
+				entries++;
+				size += BuildCache.entrySize(marker);
+			}
+		}
+		return String.format("%d entries using %.1f MB", entries, size / (1024.0 * 1024.0));
+	}
+
+	private static long entrySize(File marker) {
+		try {
+			return Long.parseLong(Files.toString(marker, Charsets.UTF_8).trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		} catch (IOException e) {
+			// evicted by a concurrent build
+			return 0;
+		}
+	}
+
+	private static File[] listFiles(File directory) {
+		final File[] files = directory.listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	private static List<String> fileNames(File directory) throws IOException {
+		final List<String> fileNames = Lists.newArrayList();
+		for (FileTreeScanner.Attributes file : FileTreeScanner.ALL_FILES.scan(directory).values()) {
+			fileNames.add(file.relativePath);
+		}
+		return fileNames;
+	}
+}
@@ -0,0 +1,121 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * The protos of all dependency jars compiled once into a {@code FileDescriptorSet}, so {@code protoc} can take
+ * them through {@code --descriptor_set_in} instead of parsing them again on every build.
+ * <p/>
+ * Descriptor sets live next to the extracted protos in the {@link DependencyProtoCache}, named after the
+ * digests of the extracted jars and the {@code protoc} executable. If {@code protoc} cannot compile the
+ * dependency protos on their own, for example because it is too old or the protos import something outside
+ * the jars, that outcome is cached as well and the protos keep being parsed from the protopath.
+ *
+ */
+final class DependencyDescriptorSet {
+
+	private final File directory;
+	private final String executable;
+	private final boolean useArgumentFile;
+	private final ProtocSlots slots;
+
+	/**
+	 * @param directory       the directory holding the cached descriptor sets.
+	 * @param executable      the {@code protoc} executable.
+	 * @param useArgumentFile see {@link Protoc.Builder#useArgumentFile(boolean)}.
+	 * @param slots           see {@link Protoc.Builder#slots(ProtocSlots)}.
+	 */
+	DependencyDescriptorSet(File directory, String executable, boolean useArgumentFile, ProtocSlots slots) {
+		this.directory = Preconditions.checkNotNull(directory, "directory");
+		this.executable = Preconditions.checkNotNull(executable, "executable");
+		this.useArgumentFile = useArgumentFile;
+		this.slots = slots;
+	}
+
+	/**
+	 * @return the names of the protos the descriptor set of {@code extractions} contains, besides the protos
+	 *         they import from the {@code protoc} distribution.
+	 */
+	static ImmutableSet<String> names(Iterable<DependencyProtoCache.Extraction> extractions) {
+		ImmutableSet.Builder<String> names = ImmutableSet.builder();
+		for (DependencyProtoCache.Extraction extraction : extractions) {
+			names.addAll(extraction.protoEntries);
+		}
+		return names.build();
+	}
+
+	/**
+	 * @return the descriptor set of the protos in {@code extractions}, compiled first if it is not cached yet, or
+	 *         {@code null} if {@code protoc} cannot compile them.
+	 */
+	File get(Iterable<DependencyProtoCache.Extraction> extractions, Log log) throws IOException, CommandLineException {
+		final Hasher hasher = Hashing.sha1().newHasher().putString(this.executable, Charsets.UTF_8);
+		final File executableFile = new File(this.executable);
+		if (executableFile.isFile()) {
+			hasher.putLong(executableFile.length()).putLong(executableFile.lastModified());
+		}
+		final Protoc.Builder builder = new Protoc.Builder(this.executable).useArgumentFile(this.useArgumentFile)
+				.slots(this.slots);
+		for (DependencyProtoCache.Extraction extraction : extractions) {
+			if (!extraction.protoEntries.isEmpty()) {
+				hasher.putString(extraction.root.getName(), Charsets.UTF_8);
+				builder.addProtoPathElement(extraction.root);
+			}
+		}
+		final String key = hasher.hash().toString();
+		final File descriptorSet = new File(this.directory, key + ".pb");
+		final File failure = new File(this.directory, key + ".failed");
+		if (descriptorSet.isFile()) {
+			return descriptorSet;
+		}
+		if (failure.isFile()) {
+			log.debug(String.format("protoc could not compile the dependency protos before, see %s", failure));
+			return null;
+		}
+
+		// the first jar containing a proto wins, like it does on the protopath
+		final Set<String> names = Sets.newHashSet();
+		for (DependencyProtoCache.Extraction extraction : extractions) {
+			for (String protoEntry : extraction.protoEntries) {
+				if (names.add(protoEntry)) {
+					builder.addProtoFile(new File(extraction.root, protoEntry));
+				}
+			}
+		}
+		final File temporary = new File(this.directory, key + "." + UUID.randomUUID() + ".tmp");
+		Files.createParentDirs(temporary);
+		try {
+			final Protoc protoc = builder.descriptorSetOut(temporary, true, false).build();
+			if (protoc.compile() != 0) {
+				Files.write(protoc.getError(), failure, Charsets.UTF_8);
+				log.warn(String.format("protoc could not compile the %d dependency protos into a descriptor set, "
+						+ "parsing them from the protopath instead. See %s for details.", names.size(), failure));
+				return null;
+			}
+			// losing the race against a concurrent build is fine, it compiled the very same protos
+			if (!temporary.renameTo(descriptorSet) && !descriptorSet.isFile()) {
+				throw new IOException("Could not move " + temporary + " to " + descriptorSet);
+			}
+			log.info(String.format("Compiled %d dependency protos into %s.", names.size(), descriptorSet));
+			return descriptorSet;
+		} finally {
+			if (temporary.exists() && !temporary.delete()) {
+				log.debug(String.format("Could not delete %s", temporary));
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * A content addressed cache of the proto files contained in dependency jars, shared by every build that uses
+ * the same local repository.
+ * <p/>
+ * A {@link JarProtoIndex} per jar path, named with the same hashing scheme as the extracted directories,
+ * records the size and modification time of the jar and its proto entries. While the jar is unchanged it is
+ * never opened again, and jars without protos are never extracted at all. The protos of a jar are extracted
+ * once into {@code protos/<digest of the index>}, so jars with identical protos share a single copy. Extraction
+ * happens in a private temporary directory that is renamed into place, so concurrent builds never observe a
+ * partially extracted jar.
+ * <p/>
+ * Jars carrying a {@link JarProtoIndex#PACKAGED_INDEX} are indexed from it alone. With
+ * {@code requirePackagedIndex} set, jars without one are taken to provide no protos.
+ *
+ */
+final class DependencyProtoCache {
+
+	private static final String INDEX_FILE = "protoc-plugin.index";
+
+	/**
+	 * The protos found in a jar.
+	 */
+	static final class Extraction {
+		final File root;
+		final ImmutableList<String> protoEntries;
+
+		Extraction(File root, ImmutableList<String> protoEntries) {
+			this.root = Preconditions.checkNotNull(root, "root");
+			this.protoEntries = Preconditions.checkNotNull(protoEntries, "protoEntries");
+		}
+	}
+
+	private final File directory;
+	private final File indexDirectory;
+	private final File protoDirectory;
+	private final ExecutionMetrics metrics;
+	private final boolean requirePackagedIndex;
+
+	DependencyProtoCache(File directory, ExecutionMetrics metrics, boolean requirePackagedIndex) {
+		this.directory = Preconditions.checkNotNull(directory, "directory");
+		this.metrics = Preconditions.checkNotNull(metrics, "metrics");
+		this.requirePackagedIndex = requirePackagedIndex;
+		this.indexDirectory = new File(directory, "jars");
+		this.protoDirectory = new File(directory, "protos");
+	}
+
+	File getDirectory() {
+		return this.directory;
+	}
+
+	boolean isPackagedIndexRequired() {
+		return this.requirePackagedIndex;
+	}
+
+	/**
+	 * @param jarFile a dependency jar.
+	 * @param key     a file name safe identifier of the path of {@code jarFile}.
+	 * @return the directory holding the protos of {@code jarFile} and their names relative to it. The directory
+	 *         does not exist if the jar contains no protos.
+	 */
+	Extraction extract(File jarFile, String key) throws IOException {
+		final File indexFile = new File(this.indexDirectory, key + ".index");
+		JarProtoIndex index = JarProtoIndex.read(indexFile);
+		if (index == null || !index.matches(jarFile) || !index.covers(this.requirePackagedIndex)) {
+			index = JarProtoIndex.scan(jarFile, this.requirePackagedIndex);
+			this.metrics.add(ExecutionMetrics.JARS_OPENED, 1);
+			if (index.isPackaged()) {
+				this.metrics.add(ExecutionMetrics.PACKAGED_INDEXES_READ, 1);
+			}
+			index.write(indexFile);
+		}
+		index = index.withRequiredPackagedIndex(this.requirePackagedIndex);
+
+		final File root = new File(this.protoDirectory, index.digest());
+		if (!index.isEmpty() && !new File(root, DependencyProtoCache.INDEX_FILE).isFile()) {
+			this.extractOnce(jarFile, root);
+		}
+		return new Extraction(root, index.getNames());
+	}
+
+	private void extractOnce(File jarFile, File target) throws IOException {
+		final File temporary = new File(target.getParentFile(), target.getName() + "." + UUID.randomUUID() + ".tmp");
+		try {
+			ImmutableList<String> protoEntries = DependencyProtoCache.copyProtos(jarFile, temporary, this.metrics);
+			Files.write(new File(temporary, DependencyProtoCache.INDEX_FILE).toPath(),
+					Joiner.on('\n').join(protoEntries).getBytes(Charsets.UTF_8));
+			// losing the race against a concurrent build is fine, it extracted the very same content
+			if (!temporary.renameTo(target) && !new File(target, DependencyProtoCache.INDEX_FILE).isFile()) {
+				throw new IOException("Could not move " + temporary + " to " + target);
+			}
+		} finally {
+			if (temporary.exists()) {
+				FileUtils.deleteDirectory(temporary);
+			}
+		}
+	}
+
+	/**
+	 * Copies every {@code .proto} entry of {@code jarFile} below {@code targetDirectory}, streaming through the
+	 * central directory of the jar. The directories are created once up front, and the entries are copied
+	 * straight into their files.
+	 *
+	 * @return the names of the copied entries.
+	 */
+	static ImmutableList<String> copyProtos(File jarFile, File targetDirectory, ExecutionMetrics metrics)
+			throws IOException {
+		final Path target = targetDirectory.toPath().toAbsolutePath().normalize();
+		// the constructor validates.
+		try (ZipFile zipFile = new ZipFile(jarFile)) {
+			metrics.add(ExecutionMetrics.JARS_OPENED, 1);
+			final List<ZipEntry> protoEntries = Lists.newArrayList();
+			final Set<Path> directories = Sets.newHashSet();
+			for (Enumeration<? extends ZipEntry> zipEntries = zipFile.entries(); zipEntries.hasMoreElements();) {
+				final ZipEntry zipEntry = zipEntries.nextElement();
+				if (!zipEntry.isDirectory() && zipEntry.getName().endsWith(".proto")) {
+					protoEntries.add(zipEntry);
+					directories.add(DependencyProtoCache.resolve(target, zipEntry.getName()).getParent());
+				}
+			}
+			for (Path directory : directories) {
+				Files.createDirectories(directory);
+			}
+			final ImmutableList.Builder<String> names = ImmutableList.builder();
+			for (ZipEntry zipEntry : protoEntries) {
+				final Path protoFile = DependencyProtoCache.resolve(target, zipEntry.getName());
+				try (InputStream input = zipFile.getInputStream(zipEntry)) {
+					metrics.add(ExecutionMetrics.BYTES_EXTRACTED,
+							Files.copy(input, protoFile, StandardCopyOption.REPLACE_EXISTING));
+				}
+				DependencyProtoCache.setLastModified(protoFile, zipEntry);
+				names.add(zipEntry.getName());
+			}
+			return names.build();
+		}
+	}
+
+	/**
+	 * Gives an extracted file the time of its entry rather than the time of the extraction, so extracting the
+	 * same jar again yields the very same tree.
+	 */
+	static void setLastModified(Path file, ZipEntry zipEntry) throws IOException {
+		if (zipEntry.getTime() != -1) {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(zipEntry.getTime()));
+		}
+	}
+
+	/**
+	 * @return the file of the entry {@code name} below {@code target}.
+	 * @throws IOException if the name points outside of {@code target}.
+	 */
+	static Path resolve(Path target, String name) throws IOException {
+		final Path file = target.resolve(name).normalize();
+		if (!file.startsWith(target)) {
+			throw new IOException("The entry " + name + " points outside of " + target);
+		}
+		return file;
+	}
+}
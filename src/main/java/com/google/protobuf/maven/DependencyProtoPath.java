@@ -0,0 +1,329 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * The protos provided by the dependencies of a project, indexed by name in classpath order.
+ * <p/>
+ * Instead of putting every dependency containing protos on the proto path, {@link #resolve} follows the
+ * {@code import} statements of the sources through the index and only returns the roots of the dependencies
+ * providing an imported proto, like {@code protoc} resolves imports: the first dependency providing a name wins.
+ * The protos of jars that are not cached are only extracted once they are imported, unless a copy extracted by
+ * an earlier build still has the CRC of the entry. Names provided with
+ * different content by several dependencies, or by a dependency and the sources, are reported once.
+ *
+ */
+final class DependencyProtoPath {
+
+	/**
+	 * A dependency whose protos are, or will be, below a root directory.
+	 */
+	private static final class Provider {
+		final File source;
+		final File root;
+		/**
+		 * The CRCs of the protos of a jar that are extracted on demand, {@code null} if all of them exist below
+		 * {@link #root} already.
+		 */
+		final ImmutableMap<String, Long> crcs;
+		/**
+		 * The {@link JarProtoIndex#digest()} of a jar that is extracted on demand, {@code null} otherwise.
+		 */
+		final String digest;
+		final Set<String> extracted;
+		ZipFile zipFile;
+
+		Provider(File source, File root, ImmutableMap<String, Long> crcs, String digest, Set<String> extracted) {
+			this.source = source;
+			this.root = root;
+			this.crcs = crcs;
+			this.digest = digest;
+			this.extracted = extracted;
+		}
+	}
+
+	private final ExecutionMetrics metrics;
+	private final List<Provider> providers = Lists.newArrayList();
+	private final ListMultimap<String, Provider> providersByName = ArrayListMultimap.create();
+	private final Set<String> reported = Sets.newHashSet();
+
+	DependencyProtoPath(ExecutionMetrics metrics) {
+		this.metrics = Preconditions.checkNotNull(metrics, "metrics");
+	}
+
+	/**
+	 * Adds a dependency whose protos {@code names} exist below {@code root}: an extracted jar or a directory.
+	 */
+	void addExtracted(File source, File root, Iterable<String> names) {
+		this.add(new Provider(source, root, null, null, Sets.<String>newHashSet()), names);
+	}
+
+	/**
+	 * Adds the jar indexed by {@code index}, whose protos are extracted below {@code root} once they are needed.
+	 *
+	 * @param extracted the protos already extracted below {@code root}, updated as more are extracted.
+	 */
+	void addJar(File jarFile, File root, JarProtoIndex index, Set<String> extracted) {
+		final ImmutableMap.Builder<String, Long> crcs = ImmutableMap.builder();
+		for (JarProtoIndex.Entry entry : index.getEntries()) {
+			crcs.put(entry.name, entry.crc);
+		}
+		this.add(new Provider(jarFile, root, crcs.build(), index.digest(), extracted), index.getNames());
+	}
+
+	/**
+	 * @return the {@link JarProtoIndex#digest()} of the jar extracted on demand below {@code root}, or {@code null}
+	 *         if {@code root} is not the root of such a jar.
+	 */
+	String jarDigest(File root) {
+		for (Provider provider : this.providers) {
+			if (provider.digest != null && provider.root.equals(root)) {
+				return provider.digest;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the CRC of the proto {@code name} {@code protoc} takes from the dependencies, the first one providing
+	 *         it, as hex string, or {@code null} if no dependency provides it.
+	 */
+	String digest(String name) throws IOException {
+		final List<Provider> candidates = this.providersByName.get(name);
+		return candidates.isEmpty() ? null : Long.toHexString(this.crc(candidates.get(0), name));
+	}
+
+	/**
+	 * @return the file of the proto {@code name} {@code protoc} takes from the dependencies, or {@code null} if no
+	 *         dependency provides it or it is not extracted yet.
+	 */
+	File extractedFile(String name) {
+		final List<Provider> candidates = this.providersByName.get(name);
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		final Provider provider = candidates.get(0);
+		final File protoFile = new File(provider.root, name);
+		return (provider.crcs == null || provider.extracted.contains(name)) && protoFile.isFile() ? protoFile : null;
+	}
+
+	private void add(Provider provider, Iterable<String> names) {
+		boolean empty = true;
+		for (String name : names) {
+			this.providersByName.put(name, provider);
+			empty = false;
+		}
+		if (!empty) {
+			this.providers.add(provider);
+		}
+	}
+
+	/**
+	 * @return the roots of all dependencies providing protos, with all of their protos extracted. Jars are
+	 *         extracted concurrently on up to {@code threads} threads.
+	 */
+	ImmutableSet<File> all(int threads) throws IOException {
+		final List<Provider> pending = Lists.newArrayList();
+		for (Provider provider : this.providers) {
+			if (provider.crcs != null && provider.extracted.size() < provider.crcs.size()) {
+				pending.add(provider);
+			}
+		}
+		if (!pending.isEmpty()) {
+			final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, pending.size())));
+			try {
+				final List<Future<ImmutableList<String>>> extractions = Lists.newArrayList();
+				for (final Provider provider : pending) {
+					extractions.add(executor.submit(new Callable<ImmutableList<String>>() {
+						@Override
+						public ImmutableList<String> call() throws IOException {
+							return DependencyProtoCache.copyProtos(provider.source, provider.root,
+									DependencyProtoPath.this.metrics);
+						}
+					}));
+				}
+				for (int i = 0; i < pending.size(); i++) {
+					pending.get(i).extracted.addAll(DependencyProtoPath.await(pending.get(i), extractions.get(i)));
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		final ImmutableSet.Builder<File> roots = ImmutableSet.builder();
+		for (Provider provider : this.providers) {
+			roots.add(provider.root);
+		}
+		return roots.build();
+	}
+
+	private static <T> T await(Provider provider, Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while extracting " + provider.source);
+		} catch (ExecutionException e) {
+			throw new IOException(String.format("Could not extract the protos of %s", provider.source), e.getCause());
+		}
+	}
+
+	/**
+	 * Follows the imports of {@code protoFiles} transitively. Names found below {@code protoSourceRoot} are taken
+	 * from there, then from the dependencies and finally from {@code additionalProtoPathElements}, the order they
+	 * appear on the proto path. Names found nowhere are left to {@code protoc}, which ships some of them.
+	 *
+	 * @return the roots of the dependencies providing an imported proto, in classpath order.
+	 */
+	ImmutableSet<File> resolve(File protoSourceRoot, Iterable<File> protoFiles, Iterable<File> additionalProtoPathElements,
+			Log log) throws IOException {
+		final Deque<String> pending = Lists.newLinkedList();
+		final Set<String> seen = Sets.newHashSet();
+		for (File protoFile : protoFiles) {
+			seen.add(AbstractProtocMojo.relativePath(protoSourceRoot, protoFile));
+			pending.addAll(ProtoImports.parse(protoFile));
+		}
+		final Set<Provider> used = Sets.newHashSet();
+		int imported = 0;
+		try {
+			while (!pending.isEmpty()) {
+				final String name = pending.removeFirst();
+				if (!seen.add(name)) {
+					continue;
+				}
+				final List<Provider> candidates = this.providersByName.get(name);
+				final File source = new File(protoSourceRoot, name);
+				if (source.isFile()) {
+					for (Provider candidate : candidates) {
+						if (DependencyProtoPath.crc(source) != this.crc(candidate, name)) {
+							this.report(log, name, String.format("%s shadows %s of %s, which has a different content.",
+									source, name, candidate.source));
+							break;
+						}
+					}
+					pending.addAll(ProtoImports.parse(source));
+				} else if (!candidates.isEmpty()) {
+					final Provider provider = candidates.get(0);
+					for (Provider other : candidates.subList(1, candidates.size())) {
+						if (this.crc(provider, name) != this.crc(other, name)) {
+							this.report(log, name, String.format("%s is provided by both %s and %s with a different "
+									+ "content, using the one of %s.", name, provider.source, other.source, provider.source));
+							break;
+						}
+					}
+					used.add(provider);
+					imported++;
+					pending.addAll(ProtoImports.parse(this.extract(provider, name)));
+				} else {
+					for (File protoPathElement : additionalProtoPathElements) {
+						if (new File(protoPathElement, name).isFile()) {
+							pending.addAll(ProtoImports.parse(new File(protoPathElement, name)));
+							break;
+						}
+					}
+				}
+			}
+		} finally {
+			this.closeJars();
+		}
+		final ImmutableSet.Builder<File> roots = ImmutableSet.builder();
+		for (Provider provider : this.providers) {
+			if (used.contains(provider)) {
+				roots.add(provider.root);
+			}
+		}
+		log.debug(String.format("The sources import %d dependency protos from %d of %d dependencies.", imported,
+				used.size(), this.providers.size()));
+		this.metrics.add(ExecutionMetrics.IMPORTED_DEPENDENCY_PROTOS, imported);
+		return roots.build();
+	}
+
+	private void report(Log log, String name, String message) {
+		if (this.reported.add(name)) {
+			log.warn(message);
+		}
+	}
+
+	/**
+	 * @return the file of the proto {@code name} of {@code provider}, extracting it first if necessary.
+	 */
+	private File extract(Provider provider, String name) throws IOException {
+		final File protoFile = new File(provider.root, name);
+		if (provider.crcs == null || provider.extracted.contains(name)) {
+			return protoFile;
+		}
+		if (protoFile.isFile() && DependencyProtoPath.crc(protoFile) == provider.crcs.get(name)) {
+			this.metrics.add(ExecutionMetrics.EXTRACTED_PROTOS_REUSED, 1);
+			provider.extracted.add(name);
+			return protoFile;
+		}
+		try {
+			if (provider.zipFile == null) {
+				provider.zipFile = new ZipFile(provider.source);
+				this.metrics.add(ExecutionMetrics.JARS_OPENED, 1);
+			}
+			final ZipEntry zipEntry = provider.zipFile.getEntry(name);
+			if (zipEntry == null) {
+				throw new IOException("the entry no longer exists");
+			}
+			final Path target = DependencyProtoCache.resolve(provider.root.toPath().toAbsolutePath().normalize(), name);
+			Files.createDirectories(target.getParent());
+			try (InputStream input = provider.zipFile.getInputStream(zipEntry)) {
+				this.metrics.add(ExecutionMetrics.BYTES_EXTRACTED,
+						Files.copy(input, target, StandardCopyOption.REPLACE_EXISTING));
+			}
+			DependencyProtoCache.setLastModified(target, zipEntry);
+		} catch (IOException e) {
+			throw new IOException(String.format("Could not extract %s from %s", name, provider.source), e);
+		}
+		provider.extracted.add(name);
+		return protoFile;
+	}
+
+	private long crc(Provider provider, String name) throws IOException {
+		return provider.crcs != null ? provider.crcs.get(name) : DependencyProtoPath.crc(new File(provider.root, name));
+	}
+
+	private static long crc(File file) throws IOException {
+		final CRC32 crc = new CRC32();
+		crc.update(Files.readAllBytes(file.toPath()));
+		return crc.getValue();
+	}
+
+	private void closeJars() throws IOException {
+		for (Provider provider : this.providers) {
+			if (provider.zipFile != null) {
+				final ZipFile zipFile = provider.zipFile;
+				provider.zipFile = null;
+				zipFile.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.maven.execution.MavenSession;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Remembers the dependency protos resolved through a {@link DependencyProtoCache} for the duration of a Maven
+ * session, so that the modules of a reactor build share the work.
+ * <p/>
+ * Maven hands every module a clone of the session, so a registry belongs to the execution request the clones
+ * share rather than to a session instance.
+ * <p/>
+ * Each jar is guarded by one of a fixed number of striped locks: the first module that needs a jar reads its
+ * index or extracts it, concurrent modules needing the same jar wait for that result instead of doing the
+ * same work in parallel, and modules needing other jars are not blocked at all.
+ * <p/>
+ * The registry also keeps the {@link MainCompilation} of every project, so that the test compilation of the
+ * project imports the main protos and reuses the dependency jars the main compilation already indexed.
+ *
+ */
+final class DependencyProtoRegistry {
+
+	private static final Map<Object, DependencyProtoRegistry> REGISTRIES =
+			Collections.synchronizedMap(new WeakHashMap<Object, DependencyProtoRegistry>());
+
+	/**
+	 * A dependency jar indexed without the {@link DependencyProtoCache}, whose protos are extracted below
+	 * {@link #root} as they are needed.
+	 */
+	static final class IndexedJar {
+		final JarProtoIndex index;
+		final File root;
+		/**
+		 * The protos already extracted below {@link #root}.
+		 */
+		final Set<String> extracted = Sets.newConcurrentHashSet();
+
+		IndexedJar(JarProtoIndex index, File root) {
+			this.index = index;
+			this.root = root;
+		}
+	}
+
+	/**
+	 * What the compilation of the main protos of a project leaves for the compilation of its test protos.
+	 */
+	static final class MainCompilation {
+		final File protoSourceRoot;
+		final ImmutableList<String> protoNames;
+		/**
+		 * The jars indexed without the cache, by {@link DependencyProtoRegistry#id}.
+		 */
+		final Map<String, IndexedJar> jars;
+
+		MainCompilation(File protoSourceRoot, ImmutableList<String> protoNames, Map<String, IndexedJar> jars) {
+			this.protoSourceRoot = protoSourceRoot;
+			this.protoNames = protoNames;
+			this.jars = jars;
+		}
+	}
+
+	private final ConcurrentMap<String, DependencyProtoCache.Extraction> extractions = Maps.newConcurrentMap();
+	private final ConcurrentMap<String, MainCompilation> mainCompilations = Maps.newConcurrentMap();
+	private final Striped<Lock> locks = Striped.lock(64);
+
+	private DependencyProtoRegistry() {
+	}
+
+	/**
+	 * @param session the current Maven session, or {@code null} for a registry that is not shared.
+	 * @return the registry of the build {@code session} belongs to, shared by the sessions of all its modules. It
+	 *         is dropped together with the build.
+	 */
+	static DependencyProtoRegistry forSession(MavenSession session) {
+		if (session == null || session.getRequest() == null) {
+			return new DependencyProtoRegistry();
+		}
+		synchronized (DependencyProtoRegistry.REGISTRIES) {
+			DependencyProtoRegistry registry = DependencyProtoRegistry.REGISTRIES.get(session.getRequest());
+			if (registry == null) {
+				registry = new DependencyProtoRegistry();
+				DependencyProtoRegistry.REGISTRIES.put(session.getRequest(), registry);
+			}
+			return registry;
+		}
+	}
+
+	/**
+	 * @see DependencyProtoCache#extract(File, String)
+	 */
+	DependencyProtoCache.Extraction extract(DependencyProtoCache cache, File jarFile, String key) throws IOException {
+		final String id = cache.getDirectory().getAbsolutePath() + File.pathSeparator + cache.isPackagedIndexRequired()
+				+ File.pathSeparator + DependencyProtoRegistry.id(jarFile);
+		DependencyProtoCache.Extraction extraction = this.extractions.get(id);
+		if (extraction == null) {
+			Lock lock = this.locks.get(jarFile.getAbsolutePath());
+			lock.lock();
+			try {
+				extraction = this.extractions.get(id);
+				if (extraction == null) {
+					extraction = cache.extract(jarFile, key);
+					this.extractions.put(id, extraction);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return extraction;
+	}
+
+	/**
+	 * @return an id of {@code jarFile} that changes whenever the jar does.
+	 */
+	static String id(File jarFile) {
+		return jarFile.getAbsolutePath() + File.pathSeparator + jarFile.length() + File.pathSeparator
+				+ jarFile.lastModified();
+	}
+
+	/**
+	 * Records the main compilation of the project in {@code basedir}, replacing an earlier one.
+	 */
+	void putMainCompilation(File basedir, MainCompilation mainCompilation) {
+		this.mainCompilations.put(basedir.getAbsolutePath(), mainCompilation);
+	}
+
+	/**
+	 * @return the main compilation of the project in {@code basedir}, or {@code null} if none ran in the session.
+	 */
+	MainCompilation getMainCompilation(File basedir) {
+		return this.mainCompilations.get(basedir.getAbsolutePath());
+	}
+}
@@ -0,0 +1,175 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Wall time per phase and I/O counters of a single mojo execution.
+ * <p/>
+ * All methods are thread safe, so concurrent {@code protoc} shards and extractions can report into the same
+ * instance.
+ *
+ */
+final class ExecutionMetrics {
+
+	static final String FILES_SCANNED = "filesScanned";
+	static final String JARS_OPENED = "jarsOpened";
+	static final String BYTES_EXTRACTED = "bytesExtracted";
+	static final String PROTOC_COMMAND_LENGTH = "protocCommandLength";
+	static final String PEAK_OUTPUT_BUFFER_SIZE = "peakOutputBufferSize";
+	static final String PROTOC_WARNINGS = "protocWarnings";
+	static final String PROTOC_ERRORS = "protocErrors";
+	static final String BUILD_CACHE_HITS = "buildCacheHits";
+	static final String BUILD_CACHE_MISSES = "buildCacheMisses";
+	static final String IMPORTED_DEPENDENCY_PROTOS = "importedDependencyProtos";
+	static final String NONDETERMINISTIC_OUTPUTS = "nondeterministicOutputs";
+	static final String PROTOC_SLOT_WAIT_MILLIS = "protocSlotWaitMillis";
+	static final String PACKAGED_PROTOS_COPIED = "packagedProtosCopied";
+	static final String PACKAGED_PROTOS_DELETED = "packagedProtosDeleted";
+	static final String PACKAGED_INDEXES_READ = "packagedIndexesRead";
+	static final String EXTRACTED_PROTOS_REUSED = "extractedProtosReused";
+
+	private static final ImmutableList<String> COUNTERS = ImmutableList.of(ExecutionMetrics.FILES_SCANNED,
+			ExecutionMetrics.JARS_OPENED, ExecutionMetrics.BYTES_EXTRACTED, ExecutionMetrics.PROTOC_COMMAND_LENGTH,
+			ExecutionMetrics.PEAK_OUTPUT_BUFFER_SIZE, ExecutionMetrics.PROTOC_WARNINGS, ExecutionMetrics.PROTOC_ERRORS,
+			ExecutionMetrics.BUILD_CACHE_HITS, ExecutionMetrics.BUILD_CACHE_MISSES,
+			ExecutionMetrics.IMPORTED_DEPENDENCY_PROTOS, ExecutionMetrics.NONDETERMINISTIC_OUTPUTS,
+			ExecutionMetrics.PROTOC_SLOT_WAIT_MILLIS, ExecutionMetrics.PACKAGED_PROTOS_COPIED,
+			ExecutionMetrics.PACKAGED_PROTOS_DELETED, ExecutionMetrics.PACKAGED_INDEXES_READ,
+			ExecutionMetrics.EXTRACTED_PROTOS_REUSED);
+
+	private final long startNanos = System.nanoTime();
+	private final ConcurrentMap<String, AtomicLong> phaseNanos = Maps.newConcurrentMap();
+	private final Set<String> phaseOrder = Collections.synchronizedSet(Sets.<String>newLinkedHashSet());
+	private final ConcurrentMap<String, AtomicLong> counters = Maps.newConcurrentMap();
+
+	/**
+	 * @return a token to pass to {@link #stop(String, long)}.
+	 */
+	long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Adds the time elapsed since {@code start} to {@code phase}.
+	 */
+	void stop(String phase, long start) {
+		ExecutionMetrics.get(this.phaseNanos, phase).addAndGet(System.nanoTime() - start);
+		this.phaseOrder.add(phase);
+	}
+
+	void add(String counter, long delta) {
+		ExecutionMetrics.get(this.counters, counter).addAndGet(delta);
+	}
+
+	/**
+	 * Raises {@code counter} to {@code value} unless it already is higher.
+	 */
+	void max(String counter, long value) {
+		AtomicLong current = ExecutionMetrics.get(this.counters, counter);
+		long previous;
+		while ((previous = current.get()) < value && !current.compareAndSet(previous, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @return the wall time of every phase in milliseconds, in the order the phases were first reported.
+	 */
+	ImmutableMap<String, Long> getPhaseMillis() {
+		ImmutableMap.Builder<String, Long> phases = ImmutableMap.builder();
+		List<String> phaseOrder;
+		synchronized (this.phaseOrder) {
+			phaseOrder = Lists.newArrayList(this.phaseOrder);
+		}
+		for (String phase : phaseOrder) {
+			phases.put(phase, TimeUnit.NANOSECONDS.toMillis(this.phaseNanos.get(phase).get()));
+		}
+		return phases.build();
+	}
+
+	long getCounter(String counter) {
+		AtomicLong value = this.counters.get(counter);
+		return value == null ? 0 : value.get();
+	}
+
+	long getTotalMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos);
+	}
+
+	/**
+	 * @return a single line describing every phase and counter.
+	 */
+	String summary() {
+		List<String> parts = Lists.newArrayList();
+		for (Map.Entry<String, Long> phase : this.getPhaseMillis().entrySet()) {
+			parts.add(phase.getKey() + " " + phase.getValue() + "ms");
+		}
+		for (String counter : ExecutionMetrics.COUNTERS) {
+			parts.add(counter + " " + this.getCounter(counter));
+		}
+		return String.format("protoc-plugin took %dms: %s", this.getTotalMillis(), Joiner.on(", ").join(parts));
+	}
+
+	/**
+	 * Writes the metrics as JSON object to {@code reportFile}.
+	 */
+	void write(File reportFile, String goal, String executionId) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"goal\": ").append(ExecutionMetrics.quote(goal)).append(",\n");
+		json.append("  \"execution\": ").append(ExecutionMetrics.quote(executionId)).append(",\n");
+		json.append("  \"totalMillis\": ").append(this.getTotalMillis()).append(",\n");
+		json.append("  \"phases\": {");
+		List<String> phases = Lists.newArrayList();
+		for (Map.Entry<String, Long> phase : this.getPhaseMillis().entrySet()) {
+			phases.add("\n    " + ExecutionMetrics.quote(phase.getKey()) + ": " + phase.getValue());
+		}
+		json.append(Joiner.on(',').join(phases)).append("\n  },\n");
+		json.append("  \"counters\": {");
+		List<String> counters = Lists.newArrayList();
+		for (String counter : ExecutionMetrics.COUNTERS) {
+			counters.add("\n    " + ExecutionMetrics.quote(counter) + ": " + this.getCounter(counter));
+		}
+		json.append(Joiner.on(',').join(counters)).append("\n  }\n");
+		json.append("}\n");
+		Files.createParentDirs(reportFile);
+		Files.write(json, reportFile, Charsets.UTF_8);
+	}
+
+	/**
+	 * @return {@code value} as JSON string literal.
+	 */
+	static String quote(String value) {
+		return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\t", "\\t").replace("\r", "\\r")
+				.replace("\n", "\\n") + '"';
+	}
+
+	private static AtomicLong get(ConcurrentMap<String, AtomicLong> values, String key) {
+		AtomicLong value = values.get(key);
+		if (value == null) {
+			AtomicLong created = new AtomicLong();
+			value = values.putIfAbsent(key, created);
+			if (value == null) {
+				value = created;
+			}
+		}
+		return value;
+	}
+}
@@ -0,0 +1,268 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+import org.codehaus.plexus.util.DirectoryScanner;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Finds the files below a directory matching Ant style include and exclude patterns, the way
+ * {@code FileUtils.getFiles} does, in a single pass over the tree.
+ * <p/>
+ * The {@link DirectoryScanner#DEFAULTEXCLUDES} of {@code FileUtils} only apply to the scanners created by
+ * {@link #withDefaultExcludes(Iterable, Iterable)}, which look for sources. The others, like {@link #ALL_FILES},
+ * find files such as {@code *~} or the contents of {@code CVS} and {@code .git} directories like any other file.
+ * <p/>
+ * The patterns are compiled once per scanner. Directories matched by an exclude pattern ending in {@code /**}
+ * are not entered at all, and the size and modification time of each file are read together with its type, so
+ * callers need not stat the files again. Every directory is listed by its own fork/join task, so large trees are
+ * walked by all processors.
+ *
+ */
+final class FileTreeScanner {
+
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	/**
+	 * Finds every file.
+	 */
+	static final FileTreeScanner ALL_FILES = new FileTreeScanner(ImmutableList.<String>of(), ImmutableList.<String>of());
+
+	/**
+	 * The attributes of a scanned file, as read while scanning.
+	 */
+	static final class Attributes {
+		final String relativePath;
+		final long size;
+		final long lastModified;
+
+		Attributes(String relativePath, long size, long lastModified) {
+			this.relativePath = relativePath;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final ImmutableList<Pattern> includes;
+	private final ImmutableList<Pattern> excludes;
+	private final ImmutableList<Pattern> excludedDirectories;
+
+	/**
+	 * @param includes the patterns of the files to find, all files if empty.
+	 * @param excludes the patterns of the files to skip.
+	 */
+	FileTreeScanner(Iterable<String> includes, Iterable<String> excludes) {
+		ImmutableList.Builder<Pattern> includePatterns = ImmutableList.builder();
+		for (String include : includes) {
+			includePatterns.add(FileTreeScanner.compile(include));
+		}
+		ImmutableList.Builder<Pattern> excludePatterns = ImmutableList.builder();
+		ImmutableList.Builder<Pattern> excludedDirectoryPatterns = ImmutableList.builder();
+		for (String exclude : excludes) {
+			final String normalized = FileTreeScanner.normalize(exclude);
+			excludePatterns.add(FileTreeScanner.compile(normalized));
+			if (normalized.endsWith("/**")) {
+				excludedDirectoryPatterns.add(FileTreeScanner.compile(normalized.substring(0, normalized.length() - 3)));
+			}
+		}
+		this.includes = includePatterns.build();
+		this.excludes = excludePatterns.build();
+		this.excludedDirectories = excludedDirectoryPatterns.build();
+	}
+
+	/**
+	 * @return a scanner that also skips the files matched by the {@link DirectoryScanner#DEFAULTEXCLUDES}, as
+	 *         {@code FileUtils.getFiles} does, such as editor backups, {@code ._*} copies of macOS and the
+	 *         contents of {@code .git} or {@code CVS} directories.
+	 */
+	static FileTreeScanner withDefaultExcludes(Iterable<String> includes, Iterable<String> excludes) {
+		return new FileTreeScanner(includes,
+				Iterables.concat(excludes, Arrays.asList(DirectoryScanner.DEFAULTEXCLUDES)));
+	}
+
+	/**
+	 * @return the matching files below {@code directory}, ordered by their relative path.
+	 */
+	ImmutableMap<File, Attributes> scan(File directory) throws IOException {
+		Preconditions.checkNotNull(directory, "directory");
+		final List<Map.Entry<File, Attributes>> files;
+		try {
+			files = FileTreeScanner.POOL.invoke(new DirectoryTask(directory.toPath(), ""));
+		} catch (RuntimeException e) {
+			// the pool may rethrow a copy of the exception, with the original as its cause
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+			}
+			throw e;
+		}
+		Collections.sort(files, new Comparator<Map.Entry<File, Attributes>>() {
+			@Override
+			public int compare(Map.Entry<File, Attributes> left, Map.Entry<File, Attributes> right) {
+				return left.getValue().relativePath.compareTo(right.getValue().relativePath);
+			}
+		});
+		ImmutableMap.Builder<File, Attributes> result = ImmutableMap.builder();
+		for (Map.Entry<File, Attributes> file : files) {
+			result.put(file);
+		}
+		return result.build();
+	}
+
+	/**
+	 * @return the attributes of the file {@code relativePath} below {@code directory}, or {@code null} if there is
+	 *         no such file or it does not match.
+	 */
+	Attributes scanFile(File directory, String relativePath) throws IOException {
+		if (!this.isIncluded(relativePath)) {
+			return null;
+		}
+		final BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(new File(directory, relativePath).toPath(), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		return attributes.isRegularFile()
+				? new Attributes(relativePath, attributes.size(), attributes.lastModifiedTime().toMillis()) : null;
+	}
+
+	private boolean isIncluded(String relativePath) {
+		return (this.includes.isEmpty() || FileTreeScanner.matchesAny(this.includes, relativePath))
+				&& !FileTreeScanner.matchesAny(this.excludes, relativePath);
+	}
+
+	private boolean isExcludedDirectory(String relativePath) {
+		return FileTreeScanner.matchesAny(this.excludedDirectories, relativePath);
+	}
+
+	private static boolean matchesAny(List<Pattern> patterns, String relativePath) {
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(relativePath).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String normalize(String pattern) {
+		final String normalized = pattern.trim().replace('\\', '/');
+		// like Ant, a trailing separator stands for everything below the directory
+		return normalized.endsWith("/") ? normalized + "**" : normalized;
+	}
+
+	/**
+	 * Translates an Ant style pattern into a regular expression over {@code /} separated relative paths, where
+	 * {@code **} matches any number of directories, {@code *} any part of a name and {@code ?} a single character.
+	 */
+	static Pattern compile(String pattern) {
+		final String normalized = FileTreeScanner.normalize(pattern);
+		final StringBuilder regex = new StringBuilder();
+		final StringBuilder literal = new StringBuilder();
+		int i = 0;
+		while (i < normalized.length()) {
+			final char c = normalized.charAt(i);
+			if (c != '*' && c != '?') {
+				literal.append(c);
+				i++;
+				continue;
+			}
+			if (literal.length() > 0) {
+				regex.append(Pattern.quote(literal.toString()));
+				literal.setLength(0);
+			}
+			if (normalized.startsWith("**/", i)) {
+				regex.append("(?:.*/)?");
+				i += 3;
+			} else if (normalized.startsWith("**", i)) {
+				regex.append(".*");
+				i += 2;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+				i++;
+			} else {
+				regex.append("[^/]");
+				i++;
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Lists a single directory and forks a task for each of its subdirectories.
+	 */
+	private final class DirectoryTask extends RecursiveTask<List<Map.Entry<File, Attributes>>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		private final String relativePath;
+
+		/**
+		 * @param relativePath the path of {@code directory} below the scanned one, followed by {@code /}, or
+		 *                     the empty string for the scanned directory itself.
+		 */
+		DirectoryTask(Path directory, String relativePath) {
+			this.directory = directory;
+			this.relativePath = relativePath;
+		}
+
+		@Override
+		protected List<Map.Entry<File, Attributes>> compute() {
+			final List<DirectoryTask> subdirectories = Lists.newArrayList();
+			final List<Map.Entry<File, Attributes>> files = Lists.newArrayList();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.directory)) {
+				for (Path entry : entries) {
+					final String name = this.relativePath + entry.getFileName();
+					final BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+					} catch (NoSuchFileException e) {
+						// deleted concurrently, or a dangling link
+						continue;
+					}
+					if (attributes.isDirectory()) {
+						if (!FileTreeScanner.this.isExcludedDirectory(name)) {
+							final DirectoryTask subdirectory = new DirectoryTask(entry, name + "/");
+							subdirectory.fork();
+							subdirectories.add(subdirectory);
+						}
+					} else if (attributes.isRegularFile() && FileTreeScanner.this.isIncluded(name)) {
+						files.add(Maps.immutableEntry(entry.toFile(),
+								new Attributes(name, attributes.size(), attributes.lastModifiedTime().toMillis())));
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			for (DirectoryTask subdirectory : subdirectories) {
+				files.addAll(subdirectory.join());
+			}
+			return files;
+		}
+	}
+}
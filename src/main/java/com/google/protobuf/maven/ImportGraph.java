@@ -0,0 +1,64 @@
+package com.google.protobuf.maven;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * The {@code import} edges between a set of proto files, addressed by their proto path relative names.
+ *
+ */
+final class ImportGraph {
+
+	private final SetMultimap<String, String> importers = HashMultimap.create();
+	private final SetMultimap<String, String> imports = HashMultimap.create();
+
+	/**
+	 * @param importsByProto the names imported by each proto, keyed by the importing proto name.
+	 */
+	ImportGraph(Map<String, ? extends Iterable<String>> importsByProto) {
+		Preconditions.checkNotNull(importsByProto, "importsByProto");
+		for (Map.Entry<String, ? extends Iterable<String>> entry : importsByProto.entrySet()) {
+			for (String imported : entry.getValue()) {
+				this.imports.put(entry.getKey(), imported);
+				this.importers.put(imported, entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @param roots proto names.
+	 * @return the {@code roots} together with every proto that imports one of them, directly or transitively.
+	 */
+	ImmutableSet<String> importersClosure(Iterable<String> roots) {
+		return ImportGraph.closure(roots, this.importers);
+	}
+
+	/**
+	 * @param roots proto names.
+	 * @return the {@code roots} together with every proto they import, directly or transitively.
+	 */
+	ImmutableSet<String> importsClosure(Iterable<String> roots) {
+		return ImportGraph.closure(roots, this.imports);
+	}
+
+	private static ImmutableSet<String> closure(Iterable<String> roots, SetMultimap<String, String> edges) {
+		Preconditions.checkNotNull(roots, "roots");
+		Set<String> visited = Sets.newHashSet();
+		Deque<String> pending = Lists.newLinkedList(roots);
+		while (!pending.isEmpty()) {
+			String name = pending.removeFirst();
+			if (visited.add(name)) {
+				pending.addAll(edges.get(name));
+			}
+		}
+		return ImmutableSet.copyOf(visited);
+	}
+}
@@ -0,0 +1,272 @@
+package com.google.protobuf.maven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * The proto entries of a dependency jar together with their CRCs, as read from the index the jar carries at
+ * {@link #PACKAGED_INDEX} or else from the jar's central directory.
+ * <p/>
+ * An index remembers the size and modification time of the jar it was created from, so a persisted index can
+ * be trusted without opening the jar again as long as both are unchanged. Most dependencies contain no protos
+ * at all and are recorded by an empty index.
+ *
+ */
+final class JarProtoIndex {
+
+	/**
+	 * The entry listing the CRC, size and name of every proto of a jar, one per line, as written by
+	 * {@link ProtocIndexMojo} and {@link PackagedProtos}.
+	 */
+	static final String PACKAGED_INDEX = "META-INF/protobuf/index";
+
+	private static final String PACKAGED_INDEX_HEADER = "# protobuf index v1";
+	private static final String HEADER = "# protoc-plugin jar index v2";
+	private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+
+	/**
+	 * Where the entries of an index come from.
+	 */
+	enum Source {
+		/**
+		 * The {@link #PACKAGED_INDEX} of the jar.
+		 */
+		PACKAGED,
+		/**
+		 * The central directory of a jar without packaged index.
+		 */
+		SCANNED,
+		/**
+		 * Nothing, the jar has no packaged index and its central directory was not read.
+		 */
+		SKIPPED
+	}
+
+	/**
+	 * A single proto entry of a jar.
+	 */
+	static final class Entry {
+		final String name;
+		final long crc;
+		final long size;
+
+		Entry(String name, long crc, long size) {
+			this.name = Preconditions.checkNotNull(name, "name");
+			this.crc = crc;
+			this.size = size;
+		}
+	}
+
+	private final long jarLength;
+	private final long jarLastModified;
+	private final Source source;
+	private final ImmutableList<Entry> entries;
+
+	private JarProtoIndex(long jarLength, long jarLastModified, Source source, ImmutableList<Entry> entries) {
+		this.jarLength = jarLength;
+		this.jarLastModified = jarLastModified;
+		this.source = Preconditions.checkNotNull(source, "source");
+		this.entries = entries;
+	}
+
+	/**
+	 * Reads the {@link #PACKAGED_INDEX} of {@code jarFile}, looking up that single entry. Without one the central
+	 * directory is enumerated, buffering nothing but the proto entries, unless {@code requirePackagedIndex} is set.
+	 */
+	static JarProtoIndex scan(File jarFile, boolean requirePackagedIndex) throws IOException {
+		final long jarLength = jarFile.length();
+		final long jarLastModified = jarFile.lastModified();
+		List<Entry> entries = Lists.newArrayList();
+		Source source;
+		try (ZipFile zipFile = new ZipFile(jarFile)) {
+			final ZipEntry packagedIndex = zipFile.getEntry(JarProtoIndex.PACKAGED_INDEX);
+			if (packagedIndex != null) {
+				source = Source.PACKAGED;
+				JarProtoIndex.readPackagedIndex(zipFile, packagedIndex, entries);
+			} else if (requirePackagedIndex) {
+				source = Source.SKIPPED;
+			} else {
+				source = Source.SCANNED;
+				for (Enumeration<? extends ZipEntry> zipEntries = zipFile.entries(); zipEntries.hasMoreElements();) {
+					ZipEntry zipEntry = zipEntries.nextElement();
+					if (!zipEntry.isDirectory() && zipEntry.getName().endsWith(".proto")) {
+						entries.add(new Entry(zipEntry.getName(), zipEntry.getCrc(), zipEntry.getSize()));
+					}
+				}
+			}
+		}
+		Collections.sort(entries, JarProtoIndex.BY_NAME);
+		return new JarProtoIndex(jarLength, jarLastModified, source, ImmutableList.copyOf(entries));
+	}
+
+	private static void readPackagedIndex(ZipFile zipFile, ZipEntry packagedIndex, List<Entry> entries)
+			throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(packagedIndex),
+				Charsets.UTF_8))) {
+			if (!JarProtoIndex.PACKAGED_INDEX_HEADER.equals(reader.readLine())) {
+				throw new IOException("Unknown format of " + JarProtoIndex.PACKAGED_INDEX);
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				entries.add(JarProtoIndex.parseEntry(line));
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed " + JarProtoIndex.PACKAGED_INDEX, e);
+		}
+	}
+
+	/**
+	 * @return the content of a {@link #PACKAGED_INDEX} listing {@code entries}.
+	 */
+	static String formatPackagedIndex(Iterable<Entry> entries) {
+		final StringBuilder content = new StringBuilder(JarProtoIndex.PACKAGED_INDEX_HEADER).append('\n');
+		for (Entry entry : entries) {
+			content.append(JarProtoIndex.formatEntry(entry)).append('\n');
+		}
+		return content.toString();
+	}
+
+	private static String formatEntry(Entry entry) {
+		return entry.crc + "\t" + entry.size + "\t" + entry.name;
+	}
+
+	/**
+	 * @throws NumberFormatException if {@code line} is not an entry written by {@link #formatEntry(Entry)}.
+	 */
+	private static Entry parseEntry(String line) {
+		List<String> fields = Lists.newArrayList(JarProtoIndex.TAB_SPLITTER.split(line));
+		if (fields.size() != 3) {
+			throw new NumberFormatException("Not an index entry: " + line);
+		}
+		return new Entry(fields.get(2), Long.parseLong(fields.get(0)), Long.parseLong(fields.get(1)));
+	}
+
+	private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry left, Entry right) {
+			return left.name.compareTo(right.name);
+		}
+	};
+
+	/**
+	 * @return the index written by {@link #write(File)}, or {@code null} if there is none or it is unreadable.
+	 */
+	static JarProtoIndex read(File indexFile) throws IOException {
+		if (!indexFile.isFile()) {
+			return null;
+		}
+		try (BufferedReader reader = Files.newReader(indexFile, Charsets.UTF_8)) {
+			String header = reader.readLine();
+			String jar = reader.readLine();
+			if (!JarProtoIndex.HEADER.equals(header) || jar == null) {
+				return null;
+			}
+			List<String> jarFields = Lists.newArrayList(JarProtoIndex.TAB_SPLITTER.split(jar));
+			ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				entries.add(JarProtoIndex.parseEntry(line));
+			}
+			return jarFields.size() != 3 ? null : new JarProtoIndex(Long.parseLong(jarFields.get(0)),
+					Long.parseLong(jarFields.get(1)), Source.valueOf(jarFields.get(2)), entries.build());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the index to a temporary file that is then renamed to {@code indexFile}.
+	 */
+	void write(File indexFile) throws IOException {
+		Files.createParentDirs(indexFile);
+		File temporary = new File(indexFile.getParentFile(), indexFile.getName() + "." + UUID.randomUUID() + ".tmp");
+		try (Writer writer = Files.newWriter(temporary, Charsets.UTF_8)) {
+			writer.write(JarProtoIndex.HEADER + '\n');
+			writer.write(this.jarLength + "\t" + this.jarLastModified + "\t" + this.source + '\n');
+			for (Entry entry : this.entries) {
+				writer.write(JarProtoIndex.formatEntry(entry) + '\n');
+			}
+		}
+		if (!temporary.renameTo(indexFile) && !(indexFile.delete() && temporary.renameTo(indexFile))) {
+			if (!temporary.delete()) {
+				temporary.deleteOnExit();
+			}
+			throw new IOException("Could not replace " + indexFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return {@code true} if {@code jarFile} still has the size and modification time this index was created from.
+	 */
+	boolean matches(File jarFile) {
+		return this.jarLength == jarFile.length() && this.jarLastModified == jarFile.lastModified();
+	}
+
+	/**
+	 * @return {@code true} if this index tells which protos the jar provides with or without
+	 *         {@code requirePackagedIndex}, as opposed to a jar that was skipped while it was required.
+	 */
+	boolean covers(boolean requirePackagedIndex) {
+		return requirePackagedIndex || this.source != Source.SKIPPED;
+	}
+
+	/**
+	 * @return this index, or an empty one if {@code requirePackagedIndex} is set and the jar has no packaged
+	 *         index.
+	 */
+	JarProtoIndex withRequiredPackagedIndex(boolean requirePackagedIndex) {
+		return !requirePackagedIndex || this.source == Source.PACKAGED ? this
+				: new JarProtoIndex(this.jarLength, this.jarLastModified, Source.SKIPPED, ImmutableList.<Entry>of());
+	}
+
+	boolean isPackaged() {
+		return this.source == Source.PACKAGED;
+	}
+
+	boolean isEmpty() {
+		return this.entries.isEmpty();
+	}
+
+	ImmutableList<Entry> getEntries() {
+		return this.entries;
+	}
+
+	ImmutableList<String> getNames() {
+		ImmutableList.Builder<String> names = ImmutableList.builder();
+		for (Entry entry : this.entries) {
+			names.add(entry.name);
+		}
+		return names.build();
+	}
+
+	/**
+	 * @return a digest of the names, sizes and CRCs of the proto entries. Two jars with the same digest contain
+	 *         the same protos.
+	 */
+	String digest() {
+		Hasher hasher = Hashing.sha1().newHasher();
+		for (Entry entry : this.entries) {
+			hasher.putString(entry.name, Charsets.UTF_8).putLong(entry.crc).putLong(entry.size);
+		}
+		return hasher.hash().toString();
+	}
+}
@@ -0,0 +1,136 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+
+/**
+ * An additional output produced by the same {@code protoc} invocation that generates the java sources: either a
+ * code generator writing into {@link #getOutputDirectory()}, or a descriptor set written to
+ * {@link #getDescriptorSetFile()}.
+ * <p/>
+ * Configured as {@code <outputTargets><outputTarget>...</outputTarget></outputTargets>}, so it has to be public
+ * for Maven to instantiate it.
+ *
+ */
+public class OutputTarget {
+
+	static final String ATTACH_SOURCES = "sources";
+	static final String ATTACH_RESOURCES = "resources";
+	static final String ATTACH_NONE = "none";
+
+	/**
+	 * The name of the generator, as in {@code --<generator>_out}: a builtin one like {@code python} or
+	 * {@code kotlin}, or the {@code <name>} of a {@code protoc-gen-<name>} plugin like {@code grpc-java}.
+	 *
+	 */
+	private String generator;
+
+	/**
+	 * The {@code protoc-gen-<generator>} executable. Without it, {@code protoc} uses its builtin generator or
+	 * looks the plugin up on the {@code PATH}.
+	 *
+	 */
+	private File plugin;
+
+	/**
+	 * The generator specific options, passed as {@code --<generator>_out=<options>:<outputDirectory>}.
+	 *
+	 */
+	private String options;
+
+	/**
+	 * The directory the generator writes into. Like the java output directory it is owned by the plugin, files
+	 * the generator did not produce are deleted.
+	 *
+	 */
+	private File outputDirectory;
+
+	/**
+	 * Instead of a generator, writes a {@code FileDescriptorSet} of all compiled protos to this file.
+	 *
+	 */
+	private File descriptorSetFile;
+
+	private boolean includeImports = true;
+
+	private boolean includeSourceInfo = false;
+
+	/**
+	 * How to add the output to the project: {@code sources} as compile source root, {@code resources} as resource
+	 * directory (the parent directory of a descriptor set), or {@code none}. Defaults to {@code sources} for
+	 * generators and {@code none} for descriptor sets.
+	 *
+	 */
+	private String attach;
+
+	public OutputTarget() {
+	}
+
+	String getGenerator() {
+		return this.generator;
+	}
+
+	File getPlugin() {
+		return this.plugin;
+	}
+
+	String getOptions() {
+		return this.options;
+	}
+
+	File getOutputDirectory() {
+		return this.outputDirectory;
+	}
+
+	File getDescriptorSetFile() {
+		return this.descriptorSetFile;
+	}
+
+	boolean isIncludeImports() {
+		return this.includeImports;
+	}
+
+	boolean isIncludeSourceInfo() {
+		return this.includeSourceInfo;
+	}
+
+	boolean isDescriptorSet() {
+		return this.descriptorSetFile != null;
+	}
+
+	String getAttach() {
+		if (this.attach != null) {
+			return this.attach;
+		}
+		return this.isDescriptorSet() ? OutputTarget.ATTACH_NONE : OutputTarget.ATTACH_SOURCES;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the target is not configured consistently.
+	 */
+	void validate() {
+		if (this.isDescriptorSet() == (this.generator != null)) {
+			throw new IllegalArgumentException("an outputTarget needs either a generator or a descriptorSetFile");
+		}
+		if (this.generator != null && this.outputDirectory == null) {
+			throw new IllegalArgumentException("the outputTarget of " + this.generator + " needs an outputDirectory");
+		}
+		if (this.generator != null && !this.generator.matches("[A-Za-z0-9_-]+")) {
+			throw new IllegalArgumentException("invalid generator name: " + this.generator);
+		}
+		final String attach = this.getAttach();
+		if (!OutputTarget.ATTACH_SOURCES.equals(attach) && !OutputTarget.ATTACH_RESOURCES.equals(attach)
+				&& !OutputTarget.ATTACH_NONE.equals(attach)) {
+			throw new IllegalArgumentException("attach must be sources, resources or none, not " + attach);
+		}
+	}
+
+	/**
+	 * @return a description of everything that affects the generated files.
+	 */
+	@Override
+	public String toString() {
+		return this.isDescriptorSet()
+				? String.format("descriptorSet(%s, %s, %s)", this.descriptorSetFile, this.includeImports, this.includeSourceInfo)
+				: String.format("%s(%s, %s, %s)", this.generator, this.plugin, this.options, this.outputDirectory);
+	}
+}
@@ -0,0 +1,214 @@
+package com.google.protobuf.maven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The protos of a proto source root copied into a classes directory, so they are packaged next to the classes
+ * generated from them without copying every proto on every build.
+ * <p/>
+ * A record lists the copied protos with the size, modification time and CRC of their sources. A proto is only
+ * copied again when its source differs in size or modification time from the record or from its copy, and the
+ * copies of protos that are gone from the source root are deleted. Files of the classes directory this class
+ * did not copy are left alone.
+ * <p/>
+ * On request an index of the copied protos is written to {@link JarProtoIndex#PACKAGED_INDEX} in the classes
+ * directory, listing the CRC, size and name of every proto. The index is only rewritten when its content changes.
+ *
+ */
+final class PackagedProtos {
+
+	private static final String RECORD_HEADER = "# protoc-plugin packaged protos v1";
+	private static final String RECORD_INDEX = "index";
+	private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+
+	/**
+	 * A copied proto, described by its source.
+	 */
+	private static final class Entry {
+		final long size;
+		final long lastModified;
+		final long crc;
+
+		Entry(long size, long lastModified, long crc) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.crc = crc;
+		}
+	}
+
+	private final File classesDirectory;
+	private final File recordFile;
+	private final ExecutionMetrics metrics;
+	private boolean indexWritten;
+
+	/**
+	 * @param classesDirectory the directory the protos are copied to.
+	 * @param recordFile       the file remembering the copied protos between builds.
+	 */
+	PackagedProtos(File classesDirectory, File recordFile, ExecutionMetrics metrics) {
+		this.classesDirectory = Preconditions.checkNotNull(classesDirectory, "classesDirectory");
+		this.recordFile = Preconditions.checkNotNull(recordFile, "recordFile");
+		this.metrics = Preconditions.checkNotNull(metrics, "metrics");
+	}
+
+	/**
+	 * Brings the copies in the classes directory in line with {@code protoFiles}.
+	 *
+	 * @param protoSourceRoot the directory the protos are found in.
+	 * @param protoFiles      the protos to package, as scanned below {@code protoSourceRoot}.
+	 * @param writeIndex      whether to write the {@link JarProtoIndex#PACKAGED_INDEX}. If not, an index written
+	 *                        by an earlier build is deleted.
+	 */
+	void sync(File protoSourceRoot, Iterable<FileTreeScanner.Attributes> protoFiles, boolean writeIndex)
+			throws IOException {
+		final Map<String, Entry> previous = this.readRecord();
+		final Map<String, Entry> current = Maps.newTreeMap();
+		boolean changed = previous == null;
+		for (FileTreeScanner.Attributes protoFile : protoFiles) {
+			final File copy = new File(this.classesDirectory, protoFile.relativePath);
+			Entry entry = previous == null ? null : previous.get(protoFile.relativePath);
+			if (entry == null || entry.size != protoFile.size || entry.lastModified != protoFile.lastModified
+					|| !PackagedProtos.isCopyOf(copy, protoFile)) {
+				entry = this.copy(new File(protoSourceRoot, protoFile.relativePath), copy, protoFile);
+				changed = true;
+			}
+			current.put(protoFile.relativePath, entry);
+		}
+		if (previous != null) {
+			for (String name : previous.keySet()) {
+				if (!current.containsKey(name)) {
+					Files.deleteIfExists(new File(this.classesDirectory, name).toPath());
+					this.metrics.add(ExecutionMetrics.PACKAGED_PROTOS_DELETED, 1);
+					changed = true;
+				}
+			}
+		}
+
+		final File index = new File(this.classesDirectory, JarProtoIndex.PACKAGED_INDEX);
+		if (writeIndex) {
+			final List<JarProtoIndex.Entry> indexEntries = Lists.newArrayList();
+			for (Map.Entry<String, Entry> entry : current.entrySet()) {
+				indexEntries.add(new JarProtoIndex.Entry(entry.getKey(), entry.getValue().crc, entry.getValue().size));
+			}
+			PackagedProtos.writeIfChanged(index, JarProtoIndex.formatPackagedIndex(indexEntries));
+		} else if (this.indexWritten) {
+			Files.deleteIfExists(index.toPath());
+		}
+		if (changed || writeIndex != this.indexWritten) {
+			this.indexWritten = writeIndex;
+			this.writeRecord(current);
+		}
+	}
+
+	/**
+	 * @return whether {@code copy} has the size and modification time of the proto it was copied from.
+	 */
+	private static boolean isCopyOf(File copy, FileTreeScanner.Attributes protoFile) throws IOException {
+		final BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(copy.toPath(), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		return attributes.size() == protoFile.size && attributes.lastModifiedTime().toMillis() == protoFile.lastModified;
+	}
+
+	/**
+	 * Copies {@code source} to {@code copy} with the modification time of {@code source}, so an unchanged proto
+	 * is recognized by the attributes of its copy alone.
+	 */
+	private Entry copy(File source, File copy, FileTreeScanner.Attributes protoFile) throws IOException {
+		final byte[] content = Files.readAllBytes(source.toPath());
+		final CRC32 crc = new CRC32();
+		crc.update(content);
+		Files.createDirectories(copy.getParentFile().toPath());
+		Files.write(copy.toPath(), content);
+		Files.setLastModifiedTime(copy.toPath(), FileTime.fromMillis(protoFile.lastModified));
+		this.metrics.add(ExecutionMetrics.PACKAGED_PROTOS_COPIED, 1);
+		return new Entry(content.length, protoFile.lastModified, crc.getValue());
+	}
+
+	/**
+	 * Writes {@code content} to {@code file} unless it already has that content, so an unchanged file keeps its
+	 * modification time.
+	 */
+	static void writeIfChanged(File file, String content) throws IOException {
+		final byte[] bytes = content.getBytes(Charsets.UTF_8);
+		if (file.isFile() && file.length() == bytes.length
+				&& Arrays.equals(Files.readAllBytes(file.toPath()), bytes)) {
+			return;
+		}
+		Files.createDirectories(file.getParentFile().toPath());
+		Files.write(file.toPath(), bytes);
+	}
+
+	/**
+	 * @return the protos copied by the last build, or {@code null} if there is no readable record.
+	 */
+	private Map<String, Entry> readRecord() throws IOException {
+		if (!this.recordFile.isFile()) {
+			return null;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(this.recordFile.toPath(), Charsets.UTF_8)) {
+			if (!PackagedProtos.RECORD_HEADER.equals(reader.readLine())) {
+				return null;
+			}
+			final String index = reader.readLine();
+			if (index == null || !index.startsWith(PackagedProtos.RECORD_INDEX + '\t')) {
+				return null;
+			}
+			this.indexWritten = Boolean.parseBoolean(index.substring(PackagedProtos.RECORD_INDEX.length() + 1));
+			final Map<String, Entry> entries = Maps.newHashMap();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				List<String> fields = Lists.newArrayList(PackagedProtos.TAB_SPLITTER.split(line));
+				if (fields.size() != 4) {
+					return null;
+				}
+				entries.put(fields.get(3), new Entry(Long.parseLong(fields.get(0)), Long.parseLong(fields.get(1)),
+						Long.parseLong(fields.get(2))));
+			}
+			return entries;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the record to a temporary file that is then renamed to the record file.
+	 */
+	private void writeRecord(Map<String, Entry> entries) throws IOException {
+		Files.createDirectories(this.recordFile.getParentFile().toPath());
+		File temporary = new File(this.recordFile.getParentFile(), this.recordFile.getName() + "." + UUID.randomUUID() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temporary.toPath(), Charsets.UTF_8)) {
+			writer.write(PackagedProtos.RECORD_HEADER + '\n');
+			writer.write(PackagedProtos.RECORD_INDEX + '\t' + this.indexWritten + '\n');
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				writer.write(entry.getValue().size + "\t" + entry.getValue().lastModified + "\t" + entry.getValue().crc
+						+ "\t" + entry.getKey() + '\n');
+			}
+		}
+		if (!temporary.renameTo(this.recordFile) && !(this.recordFile.delete() && temporary.renameTo(this.recordFile))) {
+			Files.deleteIfExists(temporary.toPath());
+			throw new IOException("Could not replace " + this.recordFile.getAbsolutePath());
+		}
+	}
+}
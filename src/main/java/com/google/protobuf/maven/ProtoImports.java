@@ -0,0 +1,48 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+/**
+ * Extracts the {@code import} statements of a proto file.
+ * <p/>
+ * This is a lexical scan, not a parser: an import inside a block comment is still reported. Reporting too
+ * many imports only makes incremental builds recompile a bit more than necessary, so that is acceptable.
+ *
+ */
+final class ProtoImports {
+
+	private static final Pattern IMPORT = Pattern.compile(
+			"(?:^|;)\\s*import\\s+(?:(?:public|weak)\\s+)?\"([^\"]+)\"\\s*;", Pattern.MULTILINE);
+
+	private ProtoImports() {
+	}
+
+	/**
+	 * @param content the content of a proto file.
+	 * @return the imported proto names, in declaration order.
+	 */
+	static ImmutableList<String> parse(CharSequence content) {
+		Preconditions.checkNotNull(content, "content");
+		ImmutableList.Builder<String> imports = ImmutableList.builder();
+		Matcher matcher = ProtoImports.IMPORT.matcher(content);
+		while (matcher.find()) {
+			imports.add(matcher.group(1));
+		}
+		return imports.build();
+	}
+
+	/**
+	 * @see #parse(CharSequence)
+	 */
+	static ImmutableList<String> parse(File protoFile) throws IOException {
+		return ProtoImports.parse(Files.toString(protoFile, Charsets.UTF_8));
+	}
+}
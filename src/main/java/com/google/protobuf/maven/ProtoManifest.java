@@ -0,0 +1,180 @@
+package com.google.protobuf.maven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * The state recorded by the last incremental compilation of a proto source root: the content hash and
+ * {@code import} statements of every proto, the generated files each of them produced and the digest of every
+ * dependency proto they import.
+ * <p/>
+ * Protos are keyed by their path relative to the proto source root, generated files by their path relative
+ * to the output directory. Both always use {@code /} as separator.
+ *
+ */
+final class ProtoManifest {
+
+	private static final String HEADER = "# protoc-plugin manifest v2";
+	private static final Joiner TAB_JOINER = Joiner.on('\t');
+	private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+
+	/**
+	 * The recorded state of a single proto file.
+	 */
+	static final class Entry {
+		final long length;
+		final long lastModified;
+		final String hash;
+		final ImmutableList<String> imports;
+		final Set<String> outputs = Sets.newTreeSet();
+
+		Entry(long length, long lastModified, String hash, ImmutableList<String> imports) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = Preconditions.checkNotNull(hash, "hash");
+			this.imports = Preconditions.checkNotNull(imports, "imports");
+		}
+
+		boolean isUpToDate(long length, long lastModified) {
+			return this.length == length && this.lastModified == lastModified;
+		}
+	}
+
+	private final String fingerprint;
+	private final Map<String, Entry> entries = Maps.newTreeMap();
+	private final Map<String, String> dependencies = Maps.newTreeMap();
+
+	/**
+	 * @param fingerprint identifies everything besides the protos themselves that affects the generated code:
+	 *                    the executable and the proto path. The dependency protos are recorded one by one.
+	 */
+	ProtoManifest(String fingerprint) {
+		this.fingerprint = Preconditions.checkNotNull(fingerprint, "fingerprint");
+	}
+
+	String getFingerprint() {
+		return this.fingerprint;
+	}
+
+	Map<String, Entry> getEntries() {
+		return this.entries;
+	}
+
+	Entry get(String protoName) {
+		return this.entries.get(protoName);
+	}
+
+	void put(String protoName, Entry entry) {
+		this.entries.put(protoName, entry);
+	}
+
+	/**
+	 * @return the digests of the dependency protos imported by the protos, keyed by proto name.
+	 */
+	Map<String, String> getDependencies() {
+		return this.dependencies;
+	}
+
+	void putDependency(String protoName, String digest) {
+		this.dependencies.put(protoName, Preconditions.checkNotNull(digest, "digest"));
+	}
+
+	/**
+	 * Reads a manifest written by {@link #save(File)}.
+	 *
+	 * @return the manifest, or an empty one with no fingerprint if the file is missing or was written in an
+	 *         unknown format. Such a manifest never matches, which forces a full compilation.
+	 */
+	static ProtoManifest load(File file) throws IOException {
+		if (!file.isFile()) {
+			return new ProtoManifest("");
+		}
+		try (BufferedReader reader = Files.newReader(file, Charsets.UTF_8)) {
+			if (!ProtoManifest.HEADER.equals(reader.readLine())) {
+				return new ProtoManifest("");
+			}
+			String fingerprintLine = reader.readLine();
+			if (fingerprintLine == null || !fingerprintLine.startsWith("fingerprint\t")) {
+				return new ProtoManifest("");
+			}
+			ProtoManifest manifest = new ProtoManifest(fingerprintLine.substring("fingerprint\t".length()));
+			Entry current = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				List<String> fields = Lists.newArrayList(ProtoManifest.TAB_SPLITTER.split(line));
+				if ("proto".equals(fields.get(0)) && fields.size() >= 5) {
+					current = new Entry(Long.parseLong(fields.get(2)), Long.parseLong(fields.get(3)), fields.get(4),
+							ImmutableList.copyOf(fields.subList(5, fields.size())));
+					manifest.put(fields.get(1), current);
+				} else if ("output".equals(fields.get(0)) && fields.size() == 2 && current != null) {
+					current.outputs.add(fields.get(1));
+				} else if ("dependency".equals(fields.get(0)) && fields.size() == 3) {
+					manifest.putDependency(fields.get(1), fields.get(2));
+				} else {
+					return new ProtoManifest("");
+				}
+			}
+			return manifest;
+		} catch (NumberFormatException e) {
+			return new ProtoManifest("");
+		}
+	}
+
+	/**
+	 * Writes the manifest to a temporary file next to {@code file} and then renames it, so that an interrupted
+	 * build never leaves a truncated manifest behind.
+	 */
+	void save(File file) throws IOException {
+		Files.createParentDirs(file);
+		File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (Writer writer = Files.newWriter(temporary, Charsets.UTF_8)) {
+			writer.write(ProtoManifest.HEADER);
+			writer.write('\n');
+			writer.write("fingerprint\t" + this.fingerprint);
+			writer.write('\n');
+			for (Map.Entry<String, String> dependency : this.dependencies.entrySet()) {
+				writer.write(ProtoManifest.TAB_JOINER.join("dependency", dependency.getKey(), dependency.getValue()));
+				writer.write('\n');
+			}
+			for (Map.Entry<String, Entry> protoEntry : this.entries.entrySet()) {
+				Entry entry = protoEntry.getValue();
+				List<Object> fields = Lists.<Object>newArrayList("proto", protoEntry.getKey(), entry.length,
+						entry.lastModified, entry.hash);
+				fields.addAll(entry.imports);
+				writer.write(ProtoManifest.TAB_JOINER.join(fields));
+				writer.write('\n');
+				for (String output : entry.outputs) {
+					writer.write("output\t" + output);
+					writer.write('\n');
+				}
+			}
+		}
+		if (file.exists() && !file.delete() || !temporary.renameTo(file)) {
+			throw new IOException("Could not replace " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Removes a manifest, so that the next build compiles everything.
+	 */
+	static void discard(File file) {
+		if (file.exists() && !file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+}
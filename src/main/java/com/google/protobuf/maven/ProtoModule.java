@@ -0,0 +1,61 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.project.MavenProject;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * A module of the reactor compiled by {@link ProtocAggregateMojo}: its proto source root, the protos found
+ * below it by name, and the directory the files generated from them are routed to.
+ *
+ */
+final class ProtoModule {
+
+	final MavenProject project;
+	final File protoSourceRoot;
+	final File outputDirectory;
+	final Map<String, File> protoFiles = Maps.newTreeMap();
+
+	ProtoModule(MavenProject project, File protoSourceRoot, File outputDirectory) {
+		this.project = Preconditions.checkNotNull(project, "project");
+		this.protoSourceRoot = Preconditions.checkNotNull(protoSourceRoot, "protoSourceRoot");
+		this.outputDirectory = Preconditions.checkNotNull(outputDirectory, "outputDirectory");
+	}
+
+	/**
+	 * Splits {@code modules} into as few groups as possible whose modules do not share any proto name, since
+	 * {@code protoc} cannot compile two protos of the same name at once. Each module goes to the first group it
+	 * fits into, so the groups keep the reactor order.
+	 */
+	static List<List<ProtoModule>> partition(List<ProtoModule> modules) {
+		final List<List<ProtoModule>> groups = Lists.newArrayList();
+		final List<Set<String>> namesOfGroups = Lists.newArrayList();
+		for (ProtoModule module : modules) {
+			int i = 0;
+			while (i < groups.size() && !Collections.disjoint(namesOfGroups.get(i), module.protoFiles.keySet())) {
+				i++;
+			}
+			if (i == groups.size()) {
+				groups.add(Lists.<ProtoModule>newArrayList());
+				namesOfGroups.add(Sets.<String>newHashSet());
+			}
+			groups.get(i).add(module);
+			namesOfGroups.get(i).addAll(module.protoFiles.keySet());
+		}
+		return groups;
+	}
+
+	@Override
+	public String toString() {
+		return this.project.getArtifactId();
+	}
+}
@@ -0,0 +1,152 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * The elements of a proto path in a trie over the segments of their normalized absolute paths.
+ * <p/>
+ * {@link #find(String)} walks the path of a file down the trie by comparing regions of the path with the
+ * segments of the nodes, so telling which element contains a file, and under which name, neither allocates
+ * nor touches the file system, however many elements the proto path has.
+ *
+ */
+final class ProtoPathIndex {
+
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private static final class Node {
+		final String segment;
+		Node[] children = ProtoPathIndex.NO_CHILDREN;
+		/**
+		 * The position of the proto path element ending at this node, {@code -1} if there is none.
+		 */
+		int element = -1;
+
+		Node(String segment) {
+			this.segment = segment;
+		}
+
+		Node child(String path, int start, int end) {
+			final int length = end - start;
+			for (Node child : this.children) {
+				if (child.segment.length() == length && path.regionMatches(start, child.segment, 0, length)) {
+					return child;
+				}
+			}
+			return null;
+		}
+
+		Node addChild(String segment) {
+			final Node child = new Node(segment);
+			final Node[] children = new Node[this.children.length + 1];
+			System.arraycopy(this.children, 0, children, 0, this.children.length);
+			children[this.children.length] = child;
+			this.children = children;
+			return child;
+		}
+	}
+
+	private final Node root = new Node("");
+	private final List<File> elements = Lists.newArrayList();
+	/**
+	 * The length of the normalized path of each element, without a trailing separator.
+	 */
+	private final List<Integer> prefixLengths = Lists.newArrayList();
+
+	/**
+	 * Appends {@code element} to the proto path, unless it is on it already.
+	 *
+	 * @return the position of {@code element} on the proto path.
+	 */
+	int add(File element) {
+		Preconditions.checkNotNull(element, "element");
+		final String path = ProtoPathIndex.normalize(element);
+		Node node = this.root;
+		int start = 0;
+		while (start <= path.length()) {
+			int end = path.indexOf(File.separatorChar, start);
+			if (end < 0) {
+				end = path.length();
+			}
+			// the leading empty segment stands for the root of an absolute unix path
+			if (end > start || start == 0) {
+				final Node child = node.child(path, start, end);
+				node = child != null ? child : node.addChild(path.substring(start, end));
+			}
+			start = end + 1;
+		}
+		if (node.element < 0) {
+			node.element = this.elements.size();
+			this.elements.add(element);
+			this.prefixLengths.add(path.endsWith(File.separator) ? path.length() - 1 : path.length());
+		}
+		return node.element;
+	}
+
+	/**
+	 * @param path the normalized absolute path of a file, see {@link #normalize(File)}.
+	 * @return the position of the first element on the proto path containing the file, or {@code -1} if none
+	 *         does or {@code path} is not normalized.
+	 */
+	int find(String path) {
+		Node node = this.root;
+		int first = -1;
+		int start = 0;
+		int end;
+		// the last segment is the name of the file itself
+		while ((end = path.indexOf(File.separatorChar, start)) >= 0) {
+			if (ProtoPathIndex.isSpecialSegment(path, start, end)) {
+				return -1;
+			}
+			node = node.child(path, start, end);
+			if (node == null) {
+				break;
+			}
+			if (node.element >= 0 && (first < 0 || node.element < first)) {
+				first = node.element;
+			}
+			start = end + 1;
+		}
+		return first;
+	}
+
+	/**
+	 * @return the name of the file at {@code path} relative to the element at {@code position}, as found by
+	 *         {@link #find(String)}, using {@code /} as separator.
+	 */
+	String relativeName(String path, int position) {
+		final String relativeName = path.substring(this.prefixLengths.get(position) + 1);
+		return File.separatorChar == '/' ? relativeName : relativeName.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @return the elements in proto path order.
+	 */
+	ImmutableList<File> getElements() {
+		return ImmutableList.copyOf(this.elements);
+	}
+
+	/**
+	 * @return the absolute path of {@code file} without {@code .} and {@code ..} segments.
+	 */
+	static String normalize(File file) {
+		return file.toPath().toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * @return whether the segment between {@code start} and {@code end} is empty, {@code .} or {@code ..}, which a
+	 *         normalized path only has as its leading empty segment.
+	 */
+	private static boolean isSpecialSegment(String path, int start, int end) {
+		final int length = end - start;
+		if (length == 0) {
+			return start > 0;
+		}
+		return path.charAt(start) == '.' && (length == 1 || (length == 2 && path.charAt(start + 1) == '.'));
+	}
+}
@@ -0,0 +1,105 @@
+package com.google.protobuf.maven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Reports the paths that change below a source root, using a {@link WatchService} registered on every
+ * directory of the tree. Directories created later are registered as they appear.
+ *
+ */
+final class ProtoSourceWatcher implements Closeable {
+
+	private final Path root;
+	private final WatchService service;
+	private final Map<WatchKey, Path> directories = Maps.newHashMap();
+
+	private ProtoSourceWatcher(Path root, WatchService service) {
+		this.root = root;
+		this.service = service;
+	}
+
+	static ProtoSourceWatcher open(File root) throws IOException {
+		Preconditions.checkArgument(root.isDirectory(), "%s is not a directory", root);
+		final ProtoSourceWatcher watcher =
+				new ProtoSourceWatcher(root.toPath(), FileSystems.getDefault().newWatchService());
+		try {
+			watcher.register(watcher.root);
+		} catch (IOException e) {
+			watcher.close();
+			throw e;
+		}
+		return watcher;
+	}
+
+	private void register(Path directory) throws IOException {
+		this.directories.put(directory.register(this.service, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					this.register(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Blocks until something changes, then collects further changes until none arrived for
+	 * {@code debounceMillis}, so an editor saving several files or writing a file in steps causes a single
+	 * compilation.
+	 *
+	 * @return the {@code /} separated paths below the root that were created, modified or deleted, or
+	 *         {@code null} if events were lost or a directory appeared, and the whole tree has to be scanned again.
+	 */
+	Set<String> awaitChanges(long debounceMillis) throws IOException, InterruptedException {
+		final Set<String> changes = Sets.newTreeSet();
+		boolean rescan = false;
+		WatchKey key = this.service.take();
+		while (key != null) {
+			final Path directory = this.directories.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+					rescan = true;
+					continue;
+				}
+				final Path path = directory.resolve((Path) event.context());
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+						&& Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					// files may have been moved into it before it was registered
+					this.register(path);
+					rescan = true;
+				} else {
+					changes.add(this.root.relativize(path).toString().replace(File.separatorChar, '/'));
+				}
+			}
+			if (!key.reset()) {
+				this.directories.remove(key);
+			}
+			key = this.service.poll(debounceMillis, TimeUnit.MILLISECONDS);
+		}
+		return rescan ? null : changes;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.service.close();
+	}
+}
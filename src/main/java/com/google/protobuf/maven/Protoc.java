@@ -1,35 +1,50 @@
 package com.google.protobuf.maven;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 
 /**
  * This class represents an invokable configuration of the {@code protoc}
  * compiler. The actual executable is invoked using the plexus
  * {@link Commandline}.
  * <p/>
- * This class currently only supports generating java source files.
+ * Any number of code generators, builtin or {@code --plugin} executables, and
+ * a descriptor set can be produced from a single parse of the proto files.
  *
  * @author gak@google.com (Gregory Kick)
  */
 final class Protoc {
     private final String executable;
-    private final ImmutableSet<File> protoPathElements;
+    private final ImmutableList<File> protoPathElements;
     private final ImmutableSet<File> protoFiles;
-    private final File javaOutputDirectory;
-    private final CommandLineUtils.StringStreamConsumer output;
-    private final CommandLineUtils.StringStreamConsumer error;
+    private final ImmutableList<String> protoFileArguments;
+    private final ImmutableList<String> outputArguments;
+    private final File descriptorSetIn;
+    private final boolean useArgumentFile;
+    private final ProtocDiagnostics diagnostics;
+    private final ProtocSlots slots;
+    private final ProtocOutput output;
+    private final ProtocOutput error;
+    private File argumentFile;
+    private int exitStatus = -1;
+    private long slotWaitMillis;
 
     /**
      * Constructs a new instance. This should only be used by the {@link Builder}.
@@ -37,67 +52,228 @@ final class Protoc {
      * @param executable          The path to the {@code protoc} executable.
      * @param protoPath           The directories in which to search for imports.
      * @param protoFiles          The proto source files to compile.
-     * @param javaOutputDirectory The directory into which the java source files
-     *                            will be generated.
+     * @param protoFileArguments  The argument naming each of the
+     *                            {@code protoFiles}, in the same order.
+     * @param outputArguments     The arguments selecting the generators and
+     *                            descriptor set to produce.
+     * @param descriptorSetIn     A {@code FileDescriptorSet} providing imports
+     *                            instead of parsing them, may be {@code null}.
+     * @param useArgumentFile     Whether to pass the arguments through an
+     *                            {@code @argfile} instead of the command line.
+     * @param diagnostics         Receives the output while {@code protoc} runs,
+     *                            may be {@code null}.
+     * @param slots               Limits the concurrent {@code protoc}
+     *                            processes, may be {@code null}.
      */
-    private Protoc(String executable, ImmutableSet<File> protoPath,
-                   ImmutableSet<File> protoFiles, File javaOutputDirectory) {
+    private Protoc(String executable, ImmutableList<File> protoPath,
+                   ImmutableSet<File> protoFiles, ImmutableList<String> protoFileArguments,
+                   ImmutableList<String> outputArguments, File descriptorSetIn,
+                   boolean useArgumentFile, ProtocDiagnostics diagnostics, ProtocSlots slots) {
         this.executable = Preconditions.checkNotNull(executable, "executable");
         this.protoPathElements = Preconditions.checkNotNull(protoPath, "protoPath");
         this.protoFiles = Preconditions.checkNotNull(protoFiles, "protoFiles");
-        this.javaOutputDirectory = Preconditions.checkNotNull(javaOutputDirectory, "javaOutputDirectory");
-        this.error = new CommandLineUtils.StringStreamConsumer();
-        this.output = new CommandLineUtils.StringStreamConsumer();
+        this.protoFileArguments = Preconditions.checkNotNull(protoFileArguments, "protoFileArguments");
+        Preconditions.checkArgument(protoFiles.size() == protoFileArguments.size());
+        this.outputArguments = Preconditions.checkNotNull(outputArguments, "outputArguments");
+        this.descriptorSetIn = descriptorSetIn;
+        this.useArgumentFile = useArgumentFile;
+        this.diagnostics = diagnostics;
+        this.slots = slots;
+        this.error = new ProtocOutput(diagnostics, ProtocOutput.DEFAULT_RETAINED_LINES);
+        this.output = new ProtocOutput(diagnostics, ProtocOutput.DEFAULT_RETAINED_LINES);
     }
 
     /**
      * Invokes the {@code protoc} compiler using the configuration specified at
-     * construction.
+     * construction, once one of the {@link ProtocSlots} is free.
      *
      * @return The exit status of {@code protoc}.
      * @throws CommandLineException
      */
     public int compile() throws CommandLineException {
+        if (this.slots == null) {
+            return this.run();
+        }
+        final ProtocSlots.Slot slot;
+        try {
+            slot = this.slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommandLineException("Interrupted while waiting for a protoc slot", e);
+        } catch (IOException e) {
+            throw new CommandLineException("Could not lock a protoc slot", e);
+        }
+        this.slotWaitMillis = slot.getWaitMillis();
+        try {
+            return this.run();
+        } finally {
+            try {
+                slot.close();
+            } catch (IOException e) {
+                // the lock is gone with the channel either way
+            }
+        }
+    }
+
+    private int run() throws CommandLineException {
         Commandline cl = new Commandline();
         cl.setExecutable(this.executable);
-        cl.addArguments(this.buildProtocCommand().toArray(new String[]{}));
-        return CommandLineUtils.executeCommandLine(cl, null, this.output, this.error);
+        if (!this.useArgumentFile) {
+            cl.addArguments(this.buildProtocCommand().toArray(new String[]{}));
+            this.exitStatus = CommandLineUtils.executeCommandLine(cl, null, this.output, this.error);
+            return this.exitStatus;
+        }
+        try {
+            this.argumentFile = File.createTempFile("protoc", ".args");
+            Files.write(Joiner.on('\n').join(this.buildProtocCommand()), this.argumentFile, Charsets.UTF_8);
+        } catch (IOException e) {
+            throw new CommandLineException("Could not write the protoc argument file", e);
+        }
+        try {
+            cl.addArguments(new String[]{"@" + this.argumentFile.getAbsolutePath()});
+            this.exitStatus = CommandLineUtils.executeCommandLine(cl, null, this.output, this.error);
+            return this.exitStatus;
+        } finally {
+            if (!this.argumentFile.delete()) {
+                this.argumentFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if this invocation used an argument file and
+     *         {@code protoc} failed because it took it for a proto file, which
+     *         is what versions without {@code @argfile} support do.
+     */
+    boolean isArgumentFileRejected() {
+        return this.argumentFile != null && this.exitStatus != 0
+                && this.getError().contains(this.argumentFile.getName());
     }
 
     /**
      * Creates the command line arguments.
      * <p/>
+     * Proto files are passed relative to the first protopath element that
+     * contains them, unless an earlier element contains a file of the same
+     * relative name, which {@code protoc} would pick instead.
+     * <p/>
      * This method has been made visible for testing only.
      *
-     * @return A list consisting of the executable followed by any arguments.
+     * @return A list of the arguments, without the executable.
      */
     ImmutableList<String> buildProtocCommand() {
-        final List<String> command = Lists.newLinkedList();
-        // add the executable
+        return ImmutableList.<String>builder()
+                .addAll(this.buildOptions())
+                .addAll(this.protoFileArguments)
+                .build();
+    }
+
+    private ImmutableList<String> buildOptions() {
+        final ImmutableList.Builder<String> options = ImmutableList.builder();
         for (File protoPathElement : this.protoPathElements) {
-            command.add("--proto_path=" + protoPathElement);
+            options.add("--proto_path=" + protoPathElement);
         }
-        command.add("--java_out=" + this.javaOutputDirectory);
-        for (File protoFile : this.protoFiles) {
-            command.add(protoFile.toString());
+        if (this.descriptorSetIn != null) {
+            options.add("--descriptor_set_in=" + this.descriptorSetIn);
+        }
+        options.addAll(this.outputArguments);
+        return options.build();
+    }
+
+    /**
+     * @return The length of the command line this invocation would need
+     *         without an argument file.
+     */
+    int getCommandLength() {
+        int length = this.executable.length();
+        for (String argument : this.buildProtocCommand()) {
+            length += argument.length() + 1;
         }
-        return ImmutableList.copyOf(command);
+        return length;
     }
 
     /**
-     * @return the output
+     * Splits this invocation into invocations without argument file whose
+     * command lines are at most {@code maxCommandLength} characters long,
+     * unless a single proto file alone exceeds it.
+     *
+     * @return The invocations, compiling every proto file exactly once.
+     */
+    ImmutableList<Protoc> partition(int maxCommandLength) {
+        int fixedLength = this.executable.length();
+        for (String option : this.buildOptions()) {
+            fixedLength += option.length() + 1;
+        }
+        final ImmutableList<File> protoFileList = this.protoFiles.asList();
+        final ImmutableList.Builder<Protoc> batches = ImmutableList.builder();
+        int batchStart = 0;
+        int batchLength = fixedLength;
+        for (int i = 0; i < protoFileList.size(); i++) {
+            final int argumentLength = this.protoFileArguments.get(i).length() + 1;
+            if (i > batchStart && batchLength + argumentLength > maxCommandLength) {
+                batches.add(this.withProtoFiles(protoFileList, batchStart, i));
+                batchStart = i;
+                batchLength = fixedLength;
+            }
+            batchLength += argumentLength;
+        }
+        if (batchStart < protoFileList.size()) {
+            batches.add(this.withProtoFiles(protoFileList, batchStart, protoFileList.size()));
+        }
+        return batches.build();
+    }
+
+    private Protoc withProtoFiles(ImmutableList<File> protoFileList, int from, int to) {
+        return new Protoc(this.executable, this.protoPathElements, ImmutableSet.copyOf(protoFileList.subList(from, to)),
+                this.protoFileArguments.subList(from, to), this.outputArguments, this.descriptorSetIn, false,
+                this.diagnostics, this.slots);
+    }
+
+    /**
+     * @return The exit status of the last {@link #compile()}, or {@code -1}
+     *         if it has not run yet.
+     */
+    int getExitStatus() {
+        return this.exitStatus;
+    }
+
+    /**
+     * @return How long the last {@link #compile()} waited for a free slot.
+     */
+    long getSlotWaitMillis() {
+        return this.slotWaitMillis;
+    }
+
+    /**
+     * @return The proto files compiled by this invocation.
+     */
+    ImmutableSet<File> getProtoFiles() {
+        return this.protoFiles;
+    }
+
+    /**
+     * @return the last lines of the output
      */
     public String getOutput() {
         return this.output.getOutput();
     }
 
     /**
-     * @return the error
+     * @return the last lines of the error
      */
     public String getError() {
         return this.error.getOutput();
     }
 
+    /**
+     * @return whether every line of the output and the error was passed to the
+     *         {@link ProtocDiagnostics} while {@code protoc} ran, and so was
+     *         logged already
+     */
+    boolean isOutputStreamed() {
+        return this.diagnostics != null;
+    }
+
     /**
      * This class builds {@link Protoc} instances.
      *
@@ -105,13 +281,18 @@ final class Protoc {
      */
     static final class Builder {
         private final String executable;
-        private final File javaOutputDirectory;
-        private Set<File> protopathElements;
-        private Set<File> protoFiles;
+        private final List<String> generatorArguments;
+        private final List<String> descriptorSetArguments;
+        private File descriptorSetIn;
+        private final ProtoPathIndex protoPathIndex;
+        private final ImmutableSet.Builder<File> protoFiles;
+        private boolean useArgumentFile;
+        private ProtocDiagnostics diagnostics;
+        private ProtocSlots slots;
 
         /**
-         * Constructs a new builder. The two parameters are present as they are
-         * required for all {@link Protoc} instances.
+         * Constructs a new builder generating java source files, the common
+         * case.
          *
          * @param executable          The path to the {@code protoc} executable.
          * @param javaOutputDirectory The directory into which the java source files
@@ -121,49 +302,72 @@ final class Protoc {
          *                                  not a directory.
          */
         public Builder(String executable, File javaOutputDirectory) {
+            this(executable);
+            this.addGenerator("java", null, null, javaOutputDirectory);
+        }
+
+        /**
+         * Constructs a new builder without any generator, see
+         * {@link #addGenerator(String, File, String, File)} and
+         * {@link #descriptorSetOut(File, boolean, boolean)}.
+         *
+         * @param executable The path to the {@code protoc} executable.
+         */
+        public Builder(String executable) {
             this.executable = Preconditions.checkNotNull(executable, "executable");
-            this.javaOutputDirectory = Preconditions.checkNotNull(javaOutputDirectory);
-            Preconditions.checkArgument(javaOutputDirectory.isDirectory());
-            this.protoFiles = Sets.newHashSet();
-            this.protopathElements = Sets.newHashSet();
+            this.generatorArguments = Lists.newArrayList();
+            this.descriptorSetArguments = Lists.newArrayList();
+            this.protoFiles = ImmutableSet.builder();
+            // the order matters, protoc resolves names against the first element containing them
+            this.protoPathIndex = new ProtoPathIndex();
+        }
+
+        /**
+         * Adds a code generator writing into {@code outputDirectory}.
+         *
+         * @param name            The name of the generator, e.g. {@code java},
+         *                        {@code python} or {@code grpc-java}.
+         * @param plugin          The {@code protoc-gen-<name>} executable, or
+         *                        {@code null} for builtin generators and
+         *                        plugins on the {@code PATH}.
+         * @param options         The generator specific options, may be
+         *                        {@code null}.
+         * @param outputDirectory The directory to generate into.
+         * @return The builder.
+         * @throws IllegalArgumentException If {@code outputDirectory} is not a
+         *                                  directory.
+         */
+        public Builder addGenerator(String name, File plugin, String options, File outputDirectory) {
+            Preconditions.checkNotNull(name);
+            Preconditions.checkNotNull(outputDirectory);
+            Preconditions.checkArgument(outputDirectory.isDirectory());
+            if (plugin != null) {
+                this.generatorArguments.add("--plugin=protoc-gen-" + name + "=" + plugin);
+            }
+            this.generatorArguments.add("--" + name + "_out="
+                    + (Strings.isNullOrEmpty(options) ? "" : options + ":") + outputDirectory);
+            return this;
         }
 
         /**
-         * Adds a proto file to be compiled. Proto files must be on the protopath
-         * and this method will fail if a proto file is added without first adding a
-         * parent directory to the protopath.
+         * Adds a proto file to be compiled. Proto files must be below an
+         * element of the protopath, which {@link #build()} checks for all of
+         * them at once. Whether the file exists is left to {@code protoc}, the
+         * callers found it by scanning a directory anyway.
          *
          * @param protoFile
          * @return The builder.
-         * @throws IllegalStateException If a proto file is added without first
-         *                               adding a parent directory to the protopath.
-         * @throws NullPointerException  If {@code protoFile} is {@code null}.
+         * @throws IllegalArgumentException If {@code protoFile} is not named
+         *                                  {@code *.proto}.
+         * @throws NullPointerException     If {@code protoFile} is {@code null}.
          */
         public Builder addProtoFile(File protoFile) {
             Preconditions.checkNotNull(protoFile);
-            Preconditions.checkArgument(protoFile.isFile());
             Preconditions.checkArgument(protoFile.getName().endsWith(".proto"));
-            this.checkProtoFileIsInProtopath(protoFile);
             this.protoFiles.add(protoFile);
             return this;
         }
 
-        private void checkProtoFileIsInProtopath(File protoFile) {
-            assert protoFile.isFile();
-            Preconditions.checkState(this.checkProtoFileIsInProtopathHelper(protoFile.getParentFile()));
-        }
-
-        private boolean checkProtoFileIsInProtopathHelper(File directory) {
-            assert directory.isDirectory();
-            if (this.protopathElements.contains(directory)) {
-                return true;
-            } else {
-                final File parentDirectory = directory.getParentFile();
-                return (parentDirectory == null) ? false
-                        : this.checkProtoFileIsInProtopathHelper(parentDirectory);
-            }
-        }
-
         /**
          * @see #addProtoFile(File)
          */
@@ -187,7 +391,7 @@ final class Protoc {
         public Builder addProtoPathElement(File protopathElement) {
             Preconditions.checkNotNull(protopathElement);
             Preconditions.checkArgument(protopathElement.isDirectory());
-            this.protopathElements.add(protopathElement);
+            this.protoPathIndex.add(protopathElement);
             return this;
         }
 
@@ -201,14 +405,146 @@ final class Protoc {
             return this;
         }
 
+        /**
+         * Passes the arguments to {@code protoc} through an {@code @argfile}
+         * instead of the command line, which is not limited in length.
+         *
+         * @return The builder.
+         */
+        public Builder useArgumentFile(boolean useArgumentFile) {
+            this.useArgumentFile = useArgumentFile;
+            return this;
+        }
+
+        /**
+         * Lets {@code protoc} take imports from the compiled
+         * {@code FileDescriptorSet} in {@code descriptorSet} instead of parsing
+         * them from the protopath.
+         *
+         * @return The builder.
+         */
+        public Builder descriptorSetIn(File descriptorSet) {
+            Preconditions.checkArgument(descriptorSet.isFile());
+            this.descriptorSetIn = descriptorSet;
+            return this;
+        }
+
+        /**
+         * Writes a {@code FileDescriptorSet} of the proto files to
+         * {@code descriptorSet}.
+         *
+         * @param includeImports    Whether to include everything the proto
+         *                          files import.
+         * @param includeSourceInfo Whether to include source code info.
+         * @return The builder.
+         */
+        public Builder descriptorSetOut(File descriptorSet, boolean includeImports, boolean includeSourceInfo) {
+            Preconditions.checkNotNull(descriptorSet);
+            Preconditions.checkState(this.descriptorSetArguments.isEmpty(), "only one descriptor set per invocation");
+            if (includeImports) {
+                this.descriptorSetArguments.add("--include_imports");
+            }
+            if (includeSourceInfo) {
+                this.descriptorSetArguments.add("--include_source_info");
+            }
+            this.descriptorSetArguments.add("--descriptor_set_out=" + descriptorSet);
+            return this;
+        }
+
+        /**
+         * Streams the output of {@code protoc} to {@code diagnostics} while it
+         * runs. Only the last lines are retained either way.
+         *
+         * @return The builder.
+         */
+        public Builder diagnostics(ProtocDiagnostics diagnostics) {
+            this.diagnostics = diagnostics;
+            return this;
+        }
+
+        /**
+         * Waits for one of {@code slots} before starting {@code protoc}.
+         *
+         * @return The builder.
+         */
+        public Builder slots(ProtocSlots slots) {
+            this.slots = slots;
+            return this;
+        }
+
         /**
          * @return A configured {@link Protoc} instance.
-         * @throws IllegalStateException If no proto files have been added.
+         * @throws IllegalStateException If no proto files have been added, a
+         *                               proto file is not below any element of
+         *                               the protopath, or nothing would be
+         *                               generated.
          */
         public Protoc build() {
-            Preconditions.checkState(!this.protoFiles.isEmpty());
-            return new Protoc(this.executable, ImmutableSet.copyOf(this.protopathElements),
-                    ImmutableSet.copyOf(this.protoFiles), this.javaOutputDirectory);
+            final ImmutableSet<File> someProtoFiles = this.protoFiles.build();
+            Preconditions.checkState(!someProtoFiles.isEmpty());
+            Preconditions.checkState(!this.generatorArguments.isEmpty() || !this.descriptorSetArguments.isEmpty());
+            final ImmutableList<File> protoPath = this.protoPathIndex.getElements();
+            final ImmutableList.Builder<String> protoFileArguments = ImmutableList.builder();
+            final List<File> outsideProtoPath = Lists.newArrayList();
+            final Map<File, Set<String>> listings = Maps.newHashMap();
+            for (File protoFile : someProtoFiles) {
+                final String argument = this.protoFileArgument(protoPath, protoFile, listings);
+                if (argument == null) {
+                    outsideProtoPath.add(protoFile);
+                } else {
+                    protoFileArguments.add(argument);
+                }
+            }
+            Preconditions.checkState(outsideProtoPath.isEmpty(), "%s proto files are not below any protopath element: %s",
+                    outsideProtoPath.size(), outsideProtoPath);
+            return new Protoc(this.executable, protoPath, someProtoFiles, protoFileArguments.build(),
+                    ImmutableList.<String>builder().addAll(this.generatorArguments).addAll(this.descriptorSetArguments).build(),
+                    this.descriptorSetIn, this.useArgumentFile, this.diagnostics, this.slots);
+        }
+
+        /**
+         * @return The name of {@code protoFile} relative to the first protopath
+         *         element containing it, its path if an earlier element
+         *         contains a file of the same name, or {@code null} if no
+         *         element contains it.
+         */
+        private String protoFileArgument(ImmutableList<File> protoPath, File protoFile,
+                                         Map<File, Set<String>> listings) {
+            // the paths the mojos pass are normalized already, the others are normalized first
+            String path = protoFile.getPath();
+            int position = protoFile.isAbsolute() ? this.protoPathIndex.find(path) : -1;
+            if (position < 0) {
+                path = ProtoPathIndex.normalize(protoFile);
+                position = this.protoPathIndex.find(path);
+                if (position < 0) {
+                    return null;
+                }
+            }
+            final String relativeName = this.protoPathIndex.relativeName(path, position);
+            for (int i = 0; i < position; i++) {
+                if (Builder.contains(listings, protoPath.get(i), relativeName)) {
+                    return protoFile.toString();
+                }
+            }
+            return relativeName;
+        }
+
+        /**
+         * @return Whether {@code protoPathElement} contains a file named
+         *         {@code relativeName}. Each directory is listed only once
+         *         into {@code listings}, instead of probing every name.
+         */
+        private static boolean contains(Map<File, Set<String>> listings, File protoPathElement, String relativeName) {
+            final int slash = relativeName.lastIndexOf('/');
+            final File directory = slash < 0 ? protoPathElement
+                    : new File(protoPathElement, relativeName.substring(0, slash));
+            Set<String> names = listings.get(directory);
+            if (names == null) {
+                final String[] list = directory.list();
+                names = list == null ? ImmutableSet.<String>of() : ImmutableSet.copyOf(list);
+                listings.put(directory, names);
+            }
+            return names.contains(relativeName.substring(slash + 1));
         }
     }
 }
@@ -0,0 +1,144 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * This mojo runs once at the root of a reactor and compiles the protos of all of its modules together, in as
+ * few {@code protoc} invocations as the proto names allow, instead of starting {@code protoc} in every module.
+ * The dependencies of all modules are extracted once and the generated sources are routed back to each module,
+ * which gets them as compile source root like with {@code protoc:compile}. The protos of each module are packaged
+ * with its classes as configured by {@code copyProtos}, {@code includes} and {@code excludes}. Bind it in the
+ * root pom instead of binding {@code protoc:compile} in the modules.
+ * <p/>
+ * Every execution is a full build: all protos of all modules are compiled again, {@code incremental},
+ * {@code preserveUnchangedOutputs} and {@code useBuildCache} do not apply. Only the generated files that changed
+ * are replaced in the modules, so their timestamps still let the compiler skip unchanged sources.
+ *
+ */
+@Mojo(name = "aggregate", defaultPhase = LifecyclePhase.GENERATE_SOURCES, aggregator = true, requiresProject = true, requiresDependencyResolution = ResolutionScope.COMPILE)
+public final class ProtocAggregateMojo extends AbstractProtocMojo {
+
+  /**
+   * The modules of the reactor.
+   *
+   */
+  @Parameter(defaultValue = "${reactorProjects}", readonly = true, required = true)
+  private List<MavenProject> reactorProjects;
+
+  /**
+   * The directory containing the protos of each module, relative to the module's base directory. Modules
+   * without it are left out.
+   *
+   */
+  @Parameter(defaultValue = "src/main/proto", required = true)
+  private String moduleProtoSourceRoot;
+
+  /**
+   * The directory the {@code .java} files of each module are routed to, relative to the module's build
+   * directory.
+   *
+   */
+  @Parameter(defaultValue = "generated-sources/protoc", required = true)
+  private String moduleOutputDirectory;
+
+  /**
+   * The directory the combined {@code protoc} invocations write into before the generated files are routed to
+   * the modules.
+   *
+   */
+  @Parameter(defaultValue = "${project.build.directory}/protoc-aggregate", required = true)
+  private File outputDirectory;
+
+  /**
+   * Since {@code protoc} cannot access jars, proto files in dependencies are extracted to this location
+   * when {@code cacheDependencyProtos} is disabled. Extracted protos are reused as long as the dependencies
+   * still provide them unchanged, everything else is removed during execution.
+   *
+   */
+  @Parameter(defaultValue = "${project.build.directory}/protoc-dependencies", required = true)
+  private File temporaryProtoFileDirectory;
+
+  private List<ProtoModule> modules;
+
+  @Override
+  void compileProtoSourceRoot() throws MojoExecutionException, MojoFailureException {
+    this.modules = Lists.newArrayList();
+    for (MavenProject module : this.reactorProjects) {
+      final File protoSourceRoot = new File(module.getBasedir(), this.moduleProtoSourceRoot);
+      if (protoSourceRoot.isDirectory()) {
+        this.modules.add(new ProtoModule(module, protoSourceRoot,
+            new File(module.getBuild().getDirectory(), this.moduleOutputDirectory)));
+      }
+    }
+    this.aggregate(this.modules);
+  }
+
+  /**
+   * @return the compile dependencies of all modules, except the modules themselves, whose protos are compiled
+   *         from their sources.
+   */
+  @Override
+  protected List<Artifact> getDependencyArtifacts() {
+    final Set<String> moduleKeys = Sets.newHashSet();
+    for (MavenProject module : this.reactorProjects) {
+      moduleKeys.add(module.getGroupId() + ":" + module.getArtifactId());
+    }
+    final List<Artifact> dependencyArtifacts = Lists.newArrayList();
+    final Set<String> added = Sets.newHashSet();
+    for (MavenProject module : this.reactorProjects) {
+      List<Artifact> compileArtifacts = module.getCompileArtifacts();
+      for (Artifact artifact : compileArtifacts) {
+        if (!moduleKeys.contains(artifact.getGroupId() + ":" + artifact.getArtifactId()) && added.add(artifact.getId())) {
+          dependencyArtifacts.add(artifact);
+        }
+      }
+    }
+    return dependencyArtifacts;
+  }
+
+  @Override
+  protected File getOutputDirectory() {
+    return this.outputDirectory;
+  }
+
+  @Override
+  protected File getTemporaryProtoFileDirectory() {
+    return this.temporaryProtoFileDirectory;
+  }
+
+  @Override
+  protected File getProtoSourceRoot() {
+    return new File(this.project.getBasedir(), this.moduleProtoSourceRoot);
+  }
+
+  @Override
+  protected void attachFiles() {
+    for (ProtoModule module : this.modules) {
+      if (!module.protoFiles.isEmpty()) {
+        module.project.addCompileSourceRoot(module.outputDirectory.getAbsolutePath());
+      }
+    }
+  }
+
+  @Override
+  protected void addSourceRoot(File directory) {
+  }
+
+  @Override
+  protected void addResourceDirectory(File directory, List<String> includes, List<String> excludes) {
+  }
+}
@@ -9,13 +9,11 @@ import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 
-import com.google.common.collect.ImmutableList;
-
 /**
  * This mojo executes the {@code protoc} compiler for generating java sources
  * from protocol buffer definitions. It also searches dependency artifacts for
  * proto files and includes them in the protopath so that they can be
- * referenced. Finally, it adds the proto files to the project as resources so
+ * referenced. Finally, it copies the proto files to the classes directory so
  * that they are included in the final artifact.
  *
  */
@@ -36,6 +34,15 @@ public final class ProtocCompileMojo extends AbstractProtocMojo {
   @Parameter(defaultValue = "${project.build.directory}/generated-sources/protoc", required = true)
   private File outputDirectory;
 
+  /**
+   * Since {@code protoc} cannot access jars, proto files in dependencies are extracted to this location
+   * when {@code cacheDependencyProtos} is disabled. Extracted protos are reused as long as the dependencies
+   * still provide them unchanged, everything else is removed during execution.
+   *
+   */
+  @Parameter(defaultValue = "${project.build.directory}/protoc-dependencies", required = true)
+  private File temporaryProtoFileDirectory;
+
   @Override
   protected List<Artifact> getDependencyArtifacts() {
     // TODO(gak): maven-project needs generics
@@ -44,11 +51,21 @@ public final class ProtocCompileMojo extends AbstractProtocMojo {
     return compileArtifacts;
   }
 
+  @Override
+  boolean isMainCompilation() {
+    return true;
+  }
+
   @Override
   protected File getOutputDirectory() {
     return this.outputDirectory;
   }
 
+  @Override
+  protected File getTemporaryProtoFileDirectory() {
+    return this.temporaryProtoFileDirectory;
+  }
+
   @Override
   protected File getProtoSourceRoot() {
     return this.protoSourceRoot;
@@ -57,7 +74,20 @@ public final class ProtocCompileMojo extends AbstractProtocMojo {
   @Override
   protected void attachFiles() {
     this.project.addCompileSourceRoot(this.outputDirectory.getAbsolutePath());
-    this.projectHelper.addResource(this.project, this.protoSourceRoot.getAbsolutePath(),
-        ImmutableList.of("**/*.proto"), ImmutableList.of());
+  }
+
+  @Override
+  File getProtoResourceDirectory() {
+    return new File(this.project.getBuild().getOutputDirectory());
+  }
+
+  @Override
+  protected void addSourceRoot(File directory) {
+    this.project.addCompileSourceRoot(directory.getAbsolutePath());
+  }
+
+  @Override
+  protected void addResourceDirectory(File directory, List<String> includes, List<String> excludes) {
+    this.projectHelper.addResource(this.project, directory.getAbsolutePath(), includes, excludes);
   }
 }
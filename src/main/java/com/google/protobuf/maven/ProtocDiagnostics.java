@@ -0,0 +1,127 @@
+package com.google.protobuf.maven;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+/**
+ * Forwards the output of {@code protoc} to the Maven log as it arrives, recognizing the
+ * {@code file:line:column: message} lines {@code protoc} reports problems with. Recognized diagnostics are
+ * logged as warnings or errors, counted, and optionally appended to a report file with one JSON object per line.
+ * <p/>
+ * One instance is shared by all invocations of an execution, so all methods are thread safe.
+ *
+ */
+final class ProtocDiagnostics {
+
+	private static final Pattern DIAGNOSTIC = Pattern.compile(
+			"^((?:[^:]|:(?!\\s))+?\\.proto)(?::(\\d+)(?::(\\d+))?)?:\\s+(.*)$");
+	private static final String WARNING_PREFIX = "warning:";
+
+	private final Log log;
+	private final Writer report;
+	private final AtomicInteger warnings = new AtomicInteger();
+	private final AtomicInteger errors = new AtomicInteger();
+	private IOException reportFailure;
+
+	private ProtocDiagnostics(Log log, Writer report) {
+		this.log = Preconditions.checkNotNull(log, "log");
+		this.report = report;
+	}
+
+	/**
+	 * @param reportFile the file to write the diagnostics to, or {@code null} to only log them.
+	 * @param append     whether to add to the diagnostics an earlier instance of the same execution wrote, instead
+	 *                   of replacing the report of an earlier execution.
+	 */
+	static ProtocDiagnostics open(Log log, File reportFile, boolean append) throws IOException {
+		if (reportFile == null) {
+			return new ProtocDiagnostics(log, null);
+		}
+		Files.createParentDirs(reportFile);
+		return new ProtocDiagnostics(log, new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(reportFile, append), Charsets.UTF_8)));
+	}
+
+	/**
+	 * Handles a single line printed by {@code protoc}.
+	 */
+	void accept(String line) {
+		Matcher matcher = ProtocDiagnostics.DIAGNOSTIC.matcher(line);
+		if (!matcher.matches()) {
+			this.log.info(line);
+			return;
+		}
+		String message = matcher.group(4);
+		final boolean warning = message.startsWith(ProtocDiagnostics.WARNING_PREFIX);
+		if (warning) {
+			message = message.substring(ProtocDiagnostics.WARNING_PREFIX.length()).trim();
+			this.warnings.incrementAndGet();
+			this.log.warn(line);
+		} else {
+			this.errors.incrementAndGet();
+			this.log.error(line);
+		}
+		if (this.report != null) {
+			this.write(String.format("{\"file\": %s, \"line\": %s, \"column\": %s, \"severity\": \"%s\", \"message\": %s}%n",
+					ExecutionMetrics.quote(matcher.group(1)), ProtocDiagnostics.number(matcher.group(2)),
+					ProtocDiagnostics.number(matcher.group(3)), warning ? "warning" : "error",
+					ExecutionMetrics.quote(message)));
+		}
+	}
+
+	private synchronized void write(String diagnostic) {
+		if (this.reportFailure == null) {
+			try {
+				this.report.write(diagnostic);
+			} catch (IOException e) {
+				this.reportFailure = e;
+			}
+		}
+	}
+
+	private static String number(String value) {
+		return value == null ? "null" : value;
+	}
+
+	int getWarnings() {
+		return this.warnings.get();
+	}
+
+	int getErrors() {
+		return this.errors.get();
+	}
+
+	/**
+	 * Closes the report file.
+	 *
+	 * @throws IOException if the report could not be written completely.
+	 */
+	synchronized void close() throws IOException {
+		if (this.report != null) {
+			try {
+				this.report.close();
+			} catch (IOException e) {
+				if (this.reportFailure == null) {
+					throw e;
+				}
+				this.reportFailure.addSuppressed(e);
+			}
+		}
+		if (this.reportFailure != null) {
+			throw this.reportFailure;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * This mojo writes an index of the protos in the classes directory to {@code META-INF/protobuf/index}, listing
+ * the CRC, size and name of every proto. Builds depending on the jar then learn its protos from that single
+ * entry instead of enumerating the whole jar, and with {@code requireProtoIndex} set they skip jars without an
+ * index altogether. The index is only rewritten when its content changes.
+ *
+ */
+@Mojo(name = "index", defaultPhase = LifecyclePhase.PREPARE_PACKAGE, threadSafe = true, requiresProject = true)
+public final class ProtocIndexMojo extends AbstractMojo {
+
+  private static final FileTreeScanner PROTO_SCANNER =
+      FileTreeScanner.withDefaultExcludes(ImmutableSet.of("**/*.proto"), ImmutableSet.<String>of());
+
+  /**
+   * The directory packaged into the jar, holding the protos to index.
+   *
+   */
+  @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+  private File classesDirectory;
+
+  @Override
+  public void execute() throws MojoExecutionException {
+    if (!this.classesDirectory.isDirectory()) {
+      this.getLog().info(String.format("%s does not exist, no proto index written", this.classesDirectory));
+      return;
+    }
+    try {
+      final List<JarProtoIndex.Entry> entries = Lists.newArrayList();
+      for (Map.Entry<File, FileTreeScanner.Attributes> protoFile : PROTO_SCANNER.scan(this.classesDirectory).entrySet()) {
+        final byte[] content = Files.readAllBytes(protoFile.getKey().toPath());
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        entries.add(new JarProtoIndex.Entry(protoFile.getValue().relativePath, crc.getValue(), content.length));
+      }
+      final File index = new File(this.classesDirectory, JarProtoIndex.PACKAGED_INDEX);
+      if (entries.isEmpty()) {
+        Files.deleteIfExists(index.toPath());
+        this.getLog().info("No protos to index");
+        return;
+      }
+      PackagedProtos.writeIfChanged(index, JarProtoIndex.formatPackagedIndex(entries));
+      this.getLog().info(String.format("Indexed %d protos in %s", entries.size(), index));
+    } catch (IOException e) {
+      throw new MojoExecutionException("An IO error occured", e);
+    }
+  }
+}
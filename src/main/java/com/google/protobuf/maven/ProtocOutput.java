@@ -0,0 +1,62 @@
+package com.google.protobuf.maven;
+
+import java.util.Deque;
+
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Receives one output stream of {@code protoc} line by line while it runs. Every line is handed on to a
+ * {@link ProtocDiagnostics}, and only the last lines are kept for the failure summary, so the memory held per
+ * invocation is bounded no matter how much {@code protoc} prints.
+ *
+ */
+final class ProtocOutput implements StreamConsumer {
+
+	static final int DEFAULT_RETAINED_LINES = 200;
+
+	private final ProtocDiagnostics diagnostics;
+	private final int retainedLines;
+	private final Deque<String> lines = Lists.newLinkedList();
+	private int droppedLines;
+
+	/**
+	 * @param diagnostics   receives every line, or {@code null} to only keep the last lines.
+	 * @param retainedLines the number of lines kept for {@link #getOutput()}.
+	 */
+	ProtocOutput(ProtocDiagnostics diagnostics, int retainedLines) {
+		this.diagnostics = diagnostics;
+		this.retainedLines = retainedLines;
+	}
+
+	@Override
+	public void consumeLine(String line) {
+		if (this.diagnostics != null) {
+			this.diagnostics.accept(line);
+		}
+		synchronized (this.lines) {
+			this.lines.addLast(line);
+			if (this.lines.size() > this.retainedLines) {
+				this.lines.removeFirst();
+				this.droppedLines++;
+			}
+		}
+	}
+
+	/**
+	 * @return the last lines received, preceded by a note on how many earlier lines were dropped.
+	 */
+	String getOutput() {
+		StringBuilder output = new StringBuilder();
+		synchronized (this.lines) {
+			if (this.droppedLines > 0) {
+				output.append(String.format("[%d earlier lines omitted]%n", this.droppedLines));
+			}
+			for (String line : this.lines) {
+				output.append(line).append(System.getProperty("line.separator"));
+			}
+		}
+		return output.toString();
+	}
+}
@@ -0,0 +1,121 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Splits a set of proto files into shards that can be compiled by concurrent {@code protoc} processes.
+ * <p/>
+ * Protos of the same directory, which usually share a java package, always end up in the same shard. Protos
+ * that import each other are kept together as well unless that would leave a shard with more than its fair
+ * share of the files, since every shard has to parse the imports of its protos on its own.
+ *
+ */
+final class ProtocShards {
+
+	private ProtocShards() {
+	}
+
+	/**
+	 * @param protoFiles      the protos to compile.
+	 * @param protoSourceRoot the proto path element the {@code protoFiles} live in, used to resolve imports.
+	 * @param maxShards       the maximum number of shards to create.
+	 * @return at most {@code maxShards} non empty shards, largest first.
+	 */
+	static ImmutableList<ImmutableList<File>> partition(Collection<File> protoFiles, File protoSourceRoot, int maxShards)
+			throws IOException {
+		Preconditions.checkArgument(maxShards > 0, "maxShards must be positive");
+		if (protoFiles.isEmpty()) {
+			return ImmutableList.of();
+		}
+		Map<File, File> parents = Maps.newHashMap();
+		for (File protoFile : protoFiles) {
+			ProtocShards.union(parents, protoFile, protoFile.getParentFile());
+		}
+		final int fairShare = (protoFiles.size() + maxShards - 1) / maxShards;
+		Map<File, File> importParents = Maps.newHashMap(parents);
+		for (File protoFile : protoFiles) {
+			for (String imported : ProtoImports.parse(protoFile)) {
+				File importedFile = new File(protoSourceRoot, imported);
+				if (parents.containsKey(importedFile)) {
+					ProtocShards.union(importParents, protoFile, importedFile);
+				}
+			}
+		}
+		List<List<File>> units = ProtocShards.groups(protoFiles, importParents);
+		if (units.get(0).size() > fairShare) {
+			units = ProtocShards.groups(protoFiles, parents);
+		}
+
+		// greedy bin packing, largest unit into the smallest shard
+		List<List<File>> shards = Lists.newArrayList();
+		for (List<File> unit : units) {
+			if (shards.size() < maxShards) {
+				shards.add(Lists.newArrayList(unit));
+			} else {
+				Collections.min(shards, ProtocShards.BY_SIZE).addAll(unit);
+			}
+		}
+		Collections.sort(shards, Collections.reverseOrder(ProtocShards.BY_SIZE));
+		ImmutableList.Builder<ImmutableList<File>> result = ImmutableList.builder();
+		for (List<File> shard : shards) {
+			result.add(ImmutableList.copyOf(shard));
+		}
+		return result.build();
+	}
+
+	private static final Comparator<List<File>> BY_SIZE = new Comparator<List<File>>() {
+		@Override
+		public int compare(List<File> left, List<File> right) {
+			return left.size() < right.size() ? -1 : left.size() == right.size() ? 0 : 1;
+		}
+	};
+
+	private static List<List<File>> groups(Collection<File> protoFiles, Map<File, File> parents) {
+		Map<File, List<File>> groups = Maps.newLinkedHashMap();
+		for (File protoFile : protoFiles) {
+			File root = ProtocShards.find(parents, protoFile);
+			List<File> group = groups.get(root);
+			if (group == null) {
+				group = Lists.newArrayList();
+				groups.put(root, group);
+			}
+			group.add(protoFile);
+		}
+		List<List<File>> result = Lists.newArrayList(groups.values());
+		Collections.sort(result, Collections.reverseOrder(ProtocShards.BY_SIZE));
+		return result;
+	}
+
+	private static File find(Map<File, File> parents, File node) {
+		File parent = parents.get(node);
+		if (parent == null) {
+			parents.put(node, node);
+			return node;
+		}
+		if (parent.equals(node)) {
+			return node;
+		}
+		File root = ProtocShards.find(parents, parent);
+		parents.put(node, root);
+		return root;
+	}
+
+	private static void union(Map<File, File> parents, File left, File right) {
+		File leftRoot = ProtocShards.find(parents, left);
+		File rightRoot = ProtocShards.find(parents, right);
+		if (!leftRoot.equals(rightRoot)) {
+			parents.put(leftRoot, rightRoot);
+		}
+	}
+}
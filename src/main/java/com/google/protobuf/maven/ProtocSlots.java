@@ -0,0 +1,223 @@
+package com.google.protobuf.maven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.execution.MavenSession;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Limits how many {@code protoc} processes run at once.
+ * <p/>
+ * The slots are shared by every module and execution of a build, so a parallel reactor starts no more processes
+ * than there are slots. Like the {@link DependencyProtoRegistry}, they belong to the execution request the sessions
+ * of all modules share, and their number is set by the first execution of the build asking for slots. With a lock
+ * directory the slots are also shared with other builds on the machine: each slot is a lock file in the directory,
+ * and a process only starts {@code protoc} while it holds the lock of one of them. The number of lock files is
+ * recorded in the directory and only ever grows, so all builds compete for the same files, and no more processes
+ * than the largest limit of these builds run at once. Locks are released by the operating system when a build dies.
+ *
+ */
+final class ProtocSlots {
+
+	private static final Map<Object, Build> BUILDS = Collections.synchronizedMap(new WeakHashMap<Object, Build>());
+	private static final long LOCK_POLL_MILLIS = 50;
+	private static final String SLOT_COUNT_FILE = "protoc-slots";
+
+	/**
+	 * The slots of a build, one instance per lock directory.
+	 */
+	private static final class Build {
+		final int size;
+		final Semaphore semaphore;
+		final Map<String, ProtocSlots> slots = Maps.newHashMap();
+
+		Build(int size) {
+			this.size = size;
+			this.semaphore = new Semaphore(size, true);
+		}
+	}
+
+	/**
+	 * A slot held while {@code protoc} runs.
+	 */
+	static final class Slot implements Closeable {
+		private final Semaphore semaphore;
+		private final FileChannel lockChannel;
+		private final long waitMillis;
+
+		private Slot(Semaphore semaphore, FileChannel lockChannel, long waitMillis) {
+			this.semaphore = semaphore;
+			this.lockChannel = lockChannel;
+			this.waitMillis = waitMillis;
+		}
+
+		/**
+		 * @return how long it took to get the slot.
+		 */
+		long getWaitMillis() {
+			return this.waitMillis;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (this.lockChannel != null) {
+					// releases the lock as well
+					this.lockChannel.close();
+				}
+			} finally {
+				this.semaphore.release();
+			}
+		}
+	}
+
+	private final int size;
+	private final Semaphore semaphore;
+	private final File lockDirectory;
+	private final int lockSlots;
+
+	private ProtocSlots(Build build, File lockDirectory, int lockSlots) {
+		this.size = build.size;
+		this.semaphore = build.semaphore;
+		this.lockDirectory = lockDirectory;
+		this.lockSlots = lockSlots;
+	}
+
+	/**
+	 * @param session       the current Maven session, or {@code null} for slots that are not shared.
+	 * @param size          the number of {@code protoc} processes that may run at once. Only the first call of a
+	 *                      build sets it, see {@link #getSize()}.
+	 * @param lockDirectory the directory shared with other builds, or {@code null} to limit this build only.
+	 * @return the slots of the build {@code session} belongs to for {@code lockDirectory}, shared by the sessions
+	 *         of all its modules. They are dropped together with the build.
+	 */
+	static ProtocSlots forSession(MavenSession session, int size, File lockDirectory) throws IOException {
+		Preconditions.checkArgument(size > 0, "there has to be at least one protoc slot");
+		final Object key = session == null ? null : session.getRequest();
+		Build build;
+		synchronized (ProtocSlots.BUILDS) {
+			build = key == null ? null : ProtocSlots.BUILDS.get(key);
+			if (build == null) {
+				build = new Build(size);
+				if (key != null) {
+					ProtocSlots.BUILDS.put(key, build);
+				}
+			}
+		}
+		final String directory = lockDirectory == null ? "" : lockDirectory.getAbsolutePath();
+		synchronized (build) {
+			ProtocSlots slots = build.slots.get(directory);
+			if (slots == null) {
+				slots = new ProtocSlots(build, lockDirectory,
+						lockDirectory == null ? 0 : ProtocSlots.lockSlotCount(lockDirectory, size));
+				build.slots.put(directory, slots);
+			}
+			return slots;
+		}
+	}
+
+	/**
+	 * @return the number of {@code protoc} processes the build runs at once, as set by its first call to
+	 *         {@link #forSession(MavenSession, int, File)}.
+	 */
+	int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of lock files in the lock directory, as recorded there when the build first used it, or
+	 *         {@code 0} without lock directory.
+	 */
+	int getLockSlots() {
+		return this.lockSlots;
+	}
+
+	/**
+	 * Waits until a slot is free and takes it.
+	 *
+	 * @return the slot, to be closed once {@code protoc} exited.
+	 */
+	Slot acquire() throws IOException, InterruptedException {
+		final long start = System.nanoTime();
+		this.semaphore.acquire();
+		try {
+			final FileChannel lockChannel = this.lockDirectory == null ? null : this.lockSlotFile();
+			return new Slot(this.semaphore, lockChannel, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			this.semaphore.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of slot files recorded in {@code lockDirectory}, recording {@code size} first if there is
+	 *         no record yet or a smaller one. The record is read and written under a lock, so concurrent builds
+	 *         agree on it.
+	 */
+	private static int lockSlotCount(File lockDirectory, int size) throws IOException {
+		Files.createDirectories(lockDirectory.toPath());
+		try (FileChannel channel = FileChannel.open(new File(lockDirectory, ProtocSlots.SLOT_COUNT_FILE).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				FileLock lock = channel.lock()) {
+			final ByteBuffer buffer = ByteBuffer.allocate(16);
+			while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+				// reads the whole record
+			}
+			final String recorded = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).trim();
+			try {
+				final int lockSlots = Integer.parseInt(recorded);
+				if (lockSlots >= size) {
+					return lockSlots;
+				}
+			} catch (NumberFormatException e) {
+				// no record yet, or an unreadable one that is replaced
+			}
+			channel.truncate(0);
+			channel.write(ByteBuffer.wrap(Integer.toString(size).getBytes(StandardCharsets.US_ASCII)), 0);
+			return size;
+		}
+	}
+
+	/**
+	 * @return the channel of the first slot file whose lock could be taken, polling until one can.
+	 */
+	private FileChannel lockSlotFile() throws IOException, InterruptedException {
+		Files.createDirectories(this.lockDirectory.toPath());
+		while (true) {
+			for (int i = 0; i < this.lockSlots; i++) {
+				final FileChannel channel = FileChannel.open(new File(this.lockDirectory, "protoc-" + i + ".lock").toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = null;
+				try {
+					lock = channel.tryLock();
+				} catch (OverlappingFileLockException e) {
+					// held by another thread of this JVM
+				} finally {
+					if (lock == null) {
+						channel.close();
+					}
+				}
+				if (lock != null) {
+					return channel;
+				}
+			}
+			Thread.sleep(ProtocSlots.LOCK_POLL_MILLIS);
+		}
+	}
+}
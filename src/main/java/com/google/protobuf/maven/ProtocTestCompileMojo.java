@@ -9,8 +9,6 @@ import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 
-import com.google.common.collect.ImmutableList;
-
 @Mojo(name = "test-compile", defaultPhase = LifecyclePhase.GENERATE_TEST_SOURCES, threadSafe = true, requiresProject = true, requiresDependencyResolution = ResolutionScope.TEST)
 public final class ProtocTestCompileMojo extends AbstractProtocMojo {
 
@@ -28,11 +26,33 @@ public final class ProtocTestCompileMojo extends AbstractProtocMojo {
   @Parameter(defaultValue = "${project.build.directory}/generated-test-sources/protoc", required = true)
   private File outputDirectory;
 
+  /**
+   * Since {@code protoc} cannot access jars, proto files in dependencies are extracted to this location
+   * when {@code cacheDependencyProtos} is disabled. Extracted protos are reused as long as the dependencies
+   * still provide them unchanged, everything else is removed during execution.
+   *
+   */
+  @Parameter(defaultValue = "${project.build.directory}/protoc-test-dependencies", required = true)
+  private File temporaryProtoFileDirectory;
+
   @Override
   protected void attachFiles() {
     this.project.addTestCompileSourceRoot(this.outputDirectory.getAbsolutePath());
-    this.projectHelper.addTestResource(this.project, this.protoTestSourceRoot.getAbsolutePath(),
-        ImmutableList.of("**/*.proto"), ImmutableList.of());
+  }
+
+  @Override
+  File getProtoResourceDirectory() {
+    return new File(this.project.getBuild().getTestOutputDirectory());
+  }
+
+  @Override
+  protected void addSourceRoot(File directory) {
+    this.project.addTestCompileSourceRoot(directory.getAbsolutePath());
+  }
+
+  @Override
+  protected void addResourceDirectory(File directory, List<String> includes, List<String> excludes) {
+    this.projectHelper.addTestResource(this.project, directory.getAbsolutePath(), includes, excludes);
   }
 
   @Override
@@ -43,11 +63,21 @@ public final class ProtocTestCompileMojo extends AbstractProtocMojo {
     return testArtifacts;
   }
 
+  @Override
+  boolean importsMainProtos() {
+    return true;
+  }
+
   @Override
   protected File getOutputDirectory() {
     return this.outputDirectory;
   }
 
+  @Override
+  protected File getTemporaryProtoFileDirectory() {
+    return this.temporaryProtoFileDirectory;
+  }
+
   @Override
   protected File getProtoSourceRoot() {
     return this.protoTestSourceRoot;
@@ -0,0 +1,94 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * This mojo compiles the protos like {@code protoc:compile} and then keeps running, recompiling every proto
+ * that changes, together with the protos importing it, into the same output directory. The dependency protos
+ * are extracted once, so a change only costs the {@code protoc} invocation. Run it as
+ * {@code mvn protoc:watch} next to the IDE and interrupt it to stop.
+ *
+ */
+@Mojo(name = "watch", requiresProject = true, requiresDependencyResolution = ResolutionScope.COMPILE)
+public final class ProtocWatchMojo extends AbstractProtocMojo {
+
+  /**
+   * The source directories containing the sources to be compiled.
+   *
+   */
+  @Parameter(defaultValue = "${basedir}/src/main/proto", required = true)
+  private File protoSourceRoot;
+
+  /**
+   * This is the directory into which the {@code .java} will be created.
+   *
+   */
+  @Parameter(defaultValue = "${project.build.directory}/generated-sources/protoc", required = true)
+  private File outputDirectory;
+
+  /**
+   * Since {@code protoc} cannot access jars, proto files in dependencies are extracted to this location
+   * when {@code cacheDependencyProtos} is disabled. Extracted protos are reused as long as the dependencies
+   * still provide them unchanged, everything else is removed during execution.
+   *
+   */
+  @Parameter(defaultValue = "${project.build.directory}/protoc-dependencies", required = true)
+  private File temporaryProtoFileDirectory;
+
+  /**
+   * How long, in milliseconds, the source root has to be quiet after a change before it is compiled, so that
+   * saving several files at once causes a single compilation.
+   *
+   */
+  @Parameter(defaultValue = "200", required = true)
+  private long debounceMillis;
+
+  @Override
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    this.watch(this.debounceMillis);
+  }
+
+  @Override
+  protected List<Artifact> getDependencyArtifacts() {
+    List<Artifact> compileArtifacts = this.project.getCompileArtifacts();
+    return compileArtifacts;
+  }
+
+  @Override
+  protected File getOutputDirectory() {
+    return this.outputDirectory;
+  }
+
+  @Override
+  protected File getTemporaryProtoFileDirectory() {
+    return this.temporaryProtoFileDirectory;
+  }
+
+  @Override
+  protected File getProtoSourceRoot() {
+    return this.protoSourceRoot;
+  }
+
+  @Override
+  protected void attachFiles() {
+    // nothing runs after this goal that could use the generated sources
+  }
+
+  @Override
+  protected void addSourceRoot(File directory) {
+  }
+
+  @Override
+  protected void addResourceDirectory(File directory, List<String> includes, List<String> excludes) {
+  }
+}
@@ -0,0 +1,117 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+/**
+ * Moves files generated into a staging directory over to the real output directory, touching only the files
+ * whose content actually changed. Unchanged generated sources keep their modification time, so incremental
+ * java compilers downstream do not recompile them.
+ *
+ */
+final class StagedOutput {
+
+	private final File stagingDirectory;
+	private int written;
+	private int unchanged;
+
+	/**
+	 * @param stagingDirectory a directory private to one execution. It is emptied by {@link #prepare()}.
+	 */
+	StagedOutput(File stagingDirectory) {
+		this.stagingDirectory = Preconditions.checkNotNull(stagingDirectory, "stagingDirectory");
+	}
+
+	File getDirectory() {
+		return this.stagingDirectory;
+	}
+
+	/**
+	 * Creates an empty staging directory.
+	 */
+	void prepare() throws IOException {
+		if (this.stagingDirectory.exists()) {
+			FileUtils.deleteDirectory(this.stagingDirectory);
+		}
+		if (!this.stagingDirectory.mkdirs()) {
+			throw new IOException("Could not create directories: " + this.stagingDirectory.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Moves every staged file whose content differs from its counterpart in {@code outputDirectory} and removes
+	 * the staging directory.
+	 *
+	 * @return the paths of all staged files relative to {@code outputDirectory}, changed or not.
+	 */
+	ImmutableSet<String> swap(File outputDirectory) throws IOException {
+		ImmutableSet.Builder<String> staged = ImmutableSet.builder();
+		for (Map.Entry<File, FileTreeScanner.Attributes> stagedEntry
+				: FileTreeScanner.ALL_FILES.scan(this.stagingDirectory).entrySet()) {
+			final String stagedFile = stagedEntry.getValue().relativePath;
+			final File source = stagedEntry.getKey();
+			final File target = new File(outputDirectory, stagedFile);
+			if (target.isFile() && target.length() == source.length() && Files.equal(source, target)) {
+				this.unchanged++;
+			} else {
+				Files.createParentDirs(target);
+				if (target.exists() && !target.delete()) {
+					throw new IOException("Could not replace " + target.getAbsolutePath());
+				}
+				if (!source.renameTo(target)) {
+					Files.copy(source, target);
+				}
+				this.written++;
+			}
+			staged.add(stagedFile);
+		}
+		FileUtils.deleteDirectory(this.stagingDirectory);
+		return staged.build();
+	}
+
+	/**
+	 * Deletes every file below {@code outputDirectory} that is not in {@code keep}. Hidden files and the
+	 * contents of hidden directories are left alone, like {@link AbstractProtocMojo#clean(File)} does.
+	 */
+	static void deleteAllExcept(File outputDirectory, Set<String> keep) throws IOException {
+		for (Map.Entry<File, FileTreeScanner.Attributes> generatedFile
+				: FileTreeScanner.ALL_FILES.scan(outputDirectory).entrySet()) {
+			final File file = generatedFile.getKey();
+			if (!keep.contains(generatedFile.getValue().relativePath) && !StagedOutput.isHidden(outputDirectory, file)
+					&& !file.delete()) {
+				throw new IOException("Could not delete " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	private static boolean isHidden(File root, File file) {
+		for (File current = file; current != null && !current.equals(root); current = current.getParentFile()) {
+			if (current.isHidden()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of files moved by {@link #swap(File)} because their content changed.
+	 */
+	int getWritten() {
+		return this.written;
+	}
+
+	/**
+	 * @return the number of files left untouched by {@link #swap(File)} because their content was identical.
+	 */
+	int getUnchanged() {
+		return this.unchanged;
+	}
+}
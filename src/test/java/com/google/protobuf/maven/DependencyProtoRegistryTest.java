@@ -0,0 +1,50 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.execution.MavenSession;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DependencyProtoRegistryTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void modulesOfOneBuildShareTheRegistry() {
+		final MavenSession session = Fixtures.newSession();
+
+		// Maven runs every module of a reactor with a clone of the session
+		assertSame(DependencyProtoRegistry.forSession(session), DependencyProtoRegistry.forSession(session.clone()));
+		assertNotSame(DependencyProtoRegistry.forSession(session),
+				DependencyProtoRegistry.forSession(Fixtures.newSession()));
+	}
+
+	@Test
+	public void jarIsExtractedOnceForAllModules() throws IOException {
+		final File jar = this.temporaryFolder.newFile("dependency.jar");
+		Fixtures.writeJar(jar, 0, true, 0);
+		final File cacheDirectory = new File(this.temporaryFolder.getRoot(), "cache");
+		final MavenSession session = Fixtures.newSession();
+		final ExecutionMetrics metrics = new ExecutionMetrics();
+
+		final DependencyProtoCache.Extraction first = DependencyProtoRegistry.forSession(session.clone())
+				.extract(new DependencyProtoCache(cacheDirectory, metrics, false), jar, "dependency");
+		// nothing is left on disk for the second module to find
+		FileUtils.deleteDirectory(cacheDirectory);
+		final DependencyProtoCache.Extraction second = DependencyProtoRegistry.forSession(session.clone())
+				.extract(new DependencyProtoCache(cacheDirectory, metrics, false), jar, "dependency");
+
+		assertSame(first, second);
+		// opened once to be indexed and once to be extracted
+		assertEquals(2, metrics.getCounter(ExecutionMetrics.JARS_OPENED));
+	}
+}
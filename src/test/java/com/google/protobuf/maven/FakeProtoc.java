@@ -0,0 +1,257 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stand-in for {@code protoc} run by the tests and the build benchmarks, so whole builds can be checked and
+ * measured offline and without the cost of the real compiler blurring the cost of the plugin.
+ * <p/>
+ * It understands the arguments the plugin passes, argument files included, reads every proto it is asked to
+ * compile from the proto path and writes one java file per proto with the {@code source:} header of the real
+ * generator. How long an invocation takes, how much it writes and where it logs the protos it compiled is set by
+ * system properties, which {@link #install(File, long, long, int, File)} puts into a launcher script. Only the
+ * JDK is used, so the launcher starts quickly whatever the class path.
+ *
+ */
+public final class FakeProtoc {
+
+	/**
+	 * The milliseconds every invocation sleeps, on top of starting the JVM.
+	 */
+	static final String LATENCY_MILLIS = "fakeprotoc.latencyMillis";
+	/**
+	 * The microseconds every invocation sleeps per proto it compiles.
+	 */
+	static final String LATENCY_PER_PROTO_MICROS = "fakeprotoc.latencyPerProtoMicros";
+	/**
+	 * The size every generated java file is padded to, give or take a line.
+	 */
+	static final String OUTPUT_BYTES = "fakeprotoc.outputBytes";
+	/**
+	 * A file every invocation compiling protos appends a line to, listing the names of the protos.
+	 */
+	static final String INVOCATION_LOG = "fakeprotoc.invocationLog";
+
+	/**
+	 * Protos containing this text fail to compile with a syntax error.
+	 */
+	static final String ERROR_MARKER = "// fakeprotoc: error";
+
+	/**
+	 * Protos containing this text compile with a warning.
+	 */
+	static final String WARNING_MARKER = "// fakeprotoc: warning";
+
+	private static final String PADDING = "  // ........................................................\n";
+
+	private FakeProtoc() {
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		final List<String> arguments = FakeProtoc.expand(args);
+		if (arguments.contains("--version")) {
+			System.out.println("libprotoc 0.0.0-fake");
+			return;
+		}
+
+		final List<File> protoPath = new ArrayList<>();
+		final List<String> protos = new ArrayList<>();
+		File javaOut = null;
+		File pythonOut = null;
+		File descriptorSetOut = null;
+		for (String argument : arguments) {
+			if (argument.startsWith("--proto_path=")) {
+				protoPath.add(new File(argument.substring("--proto_path=".length())));
+			} else if (argument.startsWith("--java_out=")) {
+				javaOut = new File(FakeProtoc.outputDirectory(argument.substring("--java_out=".length())));
+			} else if (argument.startsWith("--python_out=")) {
+				pythonOut = new File(FakeProtoc.outputDirectory(argument.substring("--python_out=".length())));
+			} else if (argument.startsWith("--descriptor_set_out=")) {
+				descriptorSetOut = new File(argument.substring("--descriptor_set_out=".length()));
+			} else if (!argument.startsWith("-")) {
+				protos.add(argument);
+			}
+		}
+
+		final long latencyMicros = Long.getLong(FakeProtoc.LATENCY_MILLIS, 0) * 1000
+				+ Long.getLong(FakeProtoc.LATENCY_PER_PROTO_MICROS, 0) * protos.size();
+		Thread.sleep(latencyMicros / 1000, (int) (latencyMicros % 1000) * 1000);
+
+		final int outputBytes = Integer.getInteger(FakeProtoc.OUTPUT_BYTES, 0);
+		final StringBuilder descriptorSet = new StringBuilder();
+		final StringBuilder invocation = new StringBuilder();
+		boolean failed = false;
+		for (String proto : protos) {
+			final File source = FakeProtoc.find(protoPath, proto);
+			if (source == null) {
+				System.err.println(proto + ": File not found.");
+				System.exit(1);
+			}
+			final String name = FakeProtoc.relativeName(protoPath, source, proto);
+			final byte[] content = Files.readAllBytes(source.toPath());
+			if (new String(content, StandardCharsets.UTF_8).contains(FakeProtoc.ERROR_MARKER)) {
+				System.err.println(name + ":1:1: Expected top-level statement (e.g. \"message\").");
+				failed = true;
+				continue;
+			}
+			if (new String(content, StandardCharsets.UTF_8).contains(FakeProtoc.WARNING_MARKER)) {
+				System.err.println(name + ":1:1: warning: Import unused.proto is unused.");
+			}
+			descriptorSet.append(name).append('\n');
+			invocation.append(invocation.length() == 0 ? "" : " ").append(name);
+			if (javaOut != null) {
+				FakeProtoc.writeJava(javaOut, name, content.length, outputBytes);
+			}
+			if (pythonOut != null) {
+				FakeProtoc.writePython(pythonOut, name);
+			}
+		}
+		if (descriptorSetOut != null) {
+			Files.write(descriptorSetOut.toPath(), descriptorSet.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		final String invocationLog = System.getProperty(FakeProtoc.INVOCATION_LOG);
+		if (invocationLog != null && !invocationLog.isEmpty() && !protos.isEmpty()) {
+			Files.write(new File(invocationLog).toPath(), (invocation + "\n").getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Writes a launcher for {@link FakeProtoc} with the given behaviour into {@code directory}.
+	 *
+	 * @return the launcher, to be configured as {@code protocExecutable}.
+	 */
+	static File install(File directory, long latencyMillis, long latencyPerProtoMicros, int outputBytes)
+			throws IOException {
+		return FakeProtoc.install(directory, latencyMillis, latencyPerProtoMicros, outputBytes, null);
+	}
+
+	/**
+	 * Like {@link #install(File, long, long, int)}, logging the protos of every invocation to
+	 * {@code invocationLog} unless it is {@code null}.
+	 */
+	static File install(File directory, long latencyMillis, long latencyPerProtoMicros, int outputBytes,
+			File invocationLog) throws IOException {
+		final boolean windows = File.pathSeparatorChar == ';';
+		final File launcher = new File(directory, windows ? "protoc.cmd" : "protoc");
+		final String java = new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath();
+		final String classPath;
+		try {
+			classPath = new File(FakeProtoc.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+		final String command = String.format("\"%s\" -Xshare:auto -XX:TieredStopAtLevel=1 -cp \"%s\" -D%s=%d -D%s=%d -D%s=%d \"-D%s=%s\" %s",
+				java, classPath, FakeProtoc.LATENCY_MILLIS, latencyMillis, FakeProtoc.LATENCY_PER_PROTO_MICROS,
+				latencyPerProtoMicros, FakeProtoc.OUTPUT_BYTES, outputBytes, FakeProtoc.INVOCATION_LOG,
+				invocationLog == null ? "" : invocationLog.getAbsolutePath(), FakeProtoc.class.getName());
+		final String script = windows ? "@echo off\r\n" + command + " %*\r\n" : "#!/bin/sh\nexec " + command + " \"$@\"\n";
+		Files.createDirectories(directory.toPath());
+		Files.write(launcher.toPath(), script.getBytes(StandardCharsets.UTF_8));
+		if (!launcher.setExecutable(true)) {
+			throw new IOException("Could not make " + launcher + " executable");
+		}
+		return launcher;
+	}
+
+	/**
+	 * @return {@code arguments} with every {@code @file} replaced by the lines of the file.
+	 */
+	private static List<String> expand(String[] arguments) throws IOException {
+		final List<String> expanded = new ArrayList<>();
+		for (String argument : arguments) {
+			if (argument.startsWith("@")) {
+				for (String line : Files.readAllLines(new File(argument.substring(1)).toPath(), StandardCharsets.UTF_8)) {
+					if (!line.isEmpty()) {
+						expanded.add(line);
+					}
+				}
+			} else {
+				expanded.add(argument);
+			}
+		}
+		return expanded;
+	}
+
+	/**
+	 * @return the directory of an output argument, which may be preceded by generator options and a colon.
+	 */
+	private static String outputDirectory(String value) {
+		final int colon = value.indexOf(':');
+		// a colon right after the first character is the one of a windows drive
+		return colon > 1 ? value.substring(colon + 1) : value;
+	}
+
+	private static File find(List<File> protoPath, String proto) {
+		final File file = new File(proto);
+		if (file.isAbsolute()) {
+			return file.isFile() ? file : null;
+		}
+		for (File protoPathElement : protoPath) {
+			final File candidate = new File(protoPathElement, proto);
+			if (candidate.isFile()) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the name of {@code source} relative to the proto path element containing it.
+	 */
+	private static String relativeName(List<File> protoPath, File source, String proto) {
+		if (!new File(proto).isAbsolute()) {
+			return proto;
+		}
+		for (File protoPathElement : protoPath) {
+			final String prefix = protoPathElement.getAbsolutePath() + File.separator;
+			if (source.getAbsolutePath().startsWith(prefix)) {
+				return source.getAbsolutePath().substring(prefix.length()).replace(File.separatorChar, '/');
+			}
+		}
+		return source.getName();
+	}
+
+	private static void writeJava(File javaOut, String name, int protoBytes, int outputBytes) throws IOException {
+		final int slash = name.lastIndexOf('/');
+		final String baseName = name.substring(slash + 1, name.length() - ".proto".length());
+		final String className = Character.toUpperCase(baseName.charAt(0)) + baseName.substring(1);
+		final StringBuilder java = new StringBuilder("// Generated by the protocol buffer compiler.  DO NOT EDIT!\n");
+		java.append("// source: ").append(name).append("\n\n");
+		java.append("public final class ").append(className).append(" {\n");
+		java.append("  // compiled from ").append(protoBytes).append(" bytes\n");
+		while (java.length() + 2 < outputBytes) {
+			java.append(FakeProtoc.PADDING);
+		}
+		java.append("}\n");
+
+		final File javaFile = new File(javaOut, name.substring(0, slash + 1) + className + ".java");
+		Files.createDirectories(javaFile.getParentFile().toPath());
+		try (Writer writer = new OutputStreamWriter(Files.newOutputStream(javaFile.toPath()), StandardCharsets.UTF_8)) {
+			writer.write(java.toString());
+		}
+	}
+
+	/**
+	 * Writes the {@code _pb2.py} module of the proto {@code name} below {@code pythonOut}, with the header of the
+	 * python generator.
+	 */
+	private static void writePython(File pythonOut, String name) throws IOException {
+		final File pythonFile = new File(pythonOut, name.substring(0, name.length() - ".proto".length()) + "_pb2.py");
+		Files.createDirectories(pythonFile.getParentFile().toPath());
+		Files.write(pythonFile.toPath(), ("# Generated by the protocol buffer compiler.  DO NOT EDIT!\n# source: " + name
+				+ "\n").getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,60 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+public class FileTreeScannerTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void protosMatchedByTheDefaultExcludesOfPlexusAreSkipped() throws IOException {
+		final File directory = this.temporaryFolder.getRoot();
+		for (String name : new String[]{"a/x.proto", "a/._x.proto", ".git/y.proto", "b/.git/objects/z.proto"}) {
+			FileTreeScannerTest.write(new File(directory, name));
+		}
+
+		assertEquals(ImmutableSet.of("a/x.proto"), FileTreeScannerTest.relativePaths(
+				FileTreeScanner.withDefaultExcludes(ImmutableSet.of("**/*.proto"), ImmutableSet.<String>of()), directory));
+		assertEquals(ImmutableSet.of("a/x.proto", "a/._x.proto", ".git/y.proto", "b/.git/objects/z.proto"),
+				FileTreeScannerTest.relativePaths(FileTreeScanner.ALL_FILES, directory));
+	}
+
+	@Test
+	public void configuredExcludesApplyNextToTheDefaultOnes() throws IOException {
+		final File directory = this.temporaryFolder.getRoot();
+		for (String name : new String[]{"a/x.proto", "a/skipped.proto", "a/._x.proto"}) {
+			FileTreeScannerTest.write(new File(directory, name));
+		}
+		final FileTreeScanner scanner = FileTreeScanner.withDefaultExcludes(ImmutableSet.of("**/*.proto"),
+				ImmutableSet.of("**/skipped.proto"));
+
+		assertEquals(ImmutableSet.of("a/x.proto"), FileTreeScannerTest.relativePaths(scanner, directory));
+		assertNull(scanner.scanFile(directory, "a/._x.proto"));
+	}
+
+	private static ImmutableSet<String> relativePaths(FileTreeScanner scanner, File directory) throws IOException {
+		final ImmutableSet.Builder<String> relativePaths = ImmutableSet.builder();
+		for (FileTreeScanner.Attributes attributes : scanner.scan(directory).values()) {
+			relativePaths.add(attributes.relativePath);
+		}
+		return relativePaths.build();
+	}
+
+	private static void write(File file) throws IOException {
+		Files.createParentDirs(file);
+		Files.write(file.getName(), file, Charsets.UTF_8);
+	}
+}
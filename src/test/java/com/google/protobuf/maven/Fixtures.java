@@ -0,0 +1,243 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.monitor.logging.DefaultLog;
+import org.apache.maven.project.DefaultMavenProjectHelper;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.ReflectionUtils;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.sonatype.aether.RepositorySystemSession;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Synthetic proto trees, dependency jars and configured mojos for the tests and the benchmarks.
+ *
+ */
+final class Fixtures {
+
+	static final int PROTOS_PER_DIRECTORY = 100;
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Writes {@code count} protos below {@code root}, {@link #PROTOS_PER_DIRECTORY} per directory. Every proto
+	 * but the first of a directory imports its predecessor.
+	 */
+	static void writeProtoTree(File root, int count) throws IOException {
+		Fixtures.writeProtoTree(root, "pkg", count);
+	}
+
+	/**
+	 * Like {@link #writeProtoTree(File, int)}, with directories and packages named {@code prefix} and a number.
+	 */
+	static void writeProtoTree(File root, String prefix, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			final String directory = String.format("%s%05d", prefix, i / Fixtures.PROTOS_PER_DIRECTORY);
+			final int index = i % Fixtures.PROTOS_PER_DIRECTORY;
+			StringBuilder proto = new StringBuilder("syntax = \"proto2\";\n");
+			proto.append("package ").append(directory).append(";\n");
+			if (index > 0) {
+				proto.append(String.format("import \"%s/message%03d.proto\";\n", directory, index - 1));
+			}
+			proto.append(String.format("message Message%03d {\n  optional string value = 1;\n}\n", index));
+			File protoFile = new File(root, String.format("%s/message%03d.proto", directory, index));
+			Files.createParentDirs(protoFile);
+			Files.write(proto, protoFile, Charsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Writes {@code count} jars of 500 class entries each into {@code directory}, with 20 protos per jar if
+	 * {@code withProtos} is set.
+	 */
+	static List<File> writeJars(File directory, int count, boolean withProtos) throws IOException {
+		List<File> jars = Lists.newArrayList();
+		for (int i = 0; i < count; i++) {
+			File jar = new File(directory, String.format("dependency%04d.jar", i));
+			Fixtures.writeJar(jar, i, withProtos, 0);
+			jars.add(jar);
+		}
+		return jars;
+	}
+
+	/**
+	 * Writes the jar number {@code index} of {@link #writeJars(File, int, boolean)}, its protos ending with a
+	 * comment naming {@code revision} unless it is 0.
+	 */
+	static void writeJar(File jar, int index, boolean withProtos, int revision) throws IOException {
+		final byte[] classContent = new byte[512];
+		Files.createParentDirs(jar);
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+			for (int j = 0; j < 500; j++) {
+				out.putNextEntry(new JarEntry(String.format("com/example/dep%04d/Class%03d.class", index, j)));
+				out.write(classContent);
+				out.closeEntry();
+			}
+			for (int j = 0; withProtos && j < 20; j++) {
+				out.putNextEntry(new JarEntry(String.format("com/example/dep%04d/message%02d.proto", index, j)));
+				String proto = String.format("syntax = \"proto2\";\nmessage Message%02d {}\n", j);
+				if (revision > 0) {
+					proto += "// revision " + revision + "\n";
+				}
+				out.write(proto.getBytes(Charsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * @return a compile mojo configured like the defaults, except that the dependency cache lives below
+	 *         {@code workDirectory}.
+	 */
+	static ProtocCompileMojo newCompileMojo(File workDirectory, boolean cacheDependencyProtos) {
+		ProtocCompileMojo mojo = new ProtocCompileMojo();
+		Fixtures.set(mojo, "hashDependentPaths", Boolean.TRUE);
+		Fixtures.set(mojo, "cacheDependencyProtos", Boolean.valueOf(cacheDependencyProtos));
+		Fixtures.set(mojo, "dependencyCacheDirectory", new File(workDirectory, "cache"));
+		Fixtures.set(mojo, "temporaryProtoFileDirectory", new File(workDirectory, "protoc-dependencies"));
+		return mojo;
+	}
+
+	/**
+	 * @return a project below {@code basedir} with {@code dependencyJars} as compile dependencies.
+	 */
+	static MavenProject newProject(File basedir, Iterable<File> dependencyJars) {
+		MavenProject project = new MavenProject();
+		project.setFile(new File(basedir, "pom.xml"));
+		project.getBuild().setDirectory(new File(basedir, "target").getAbsolutePath());
+		project.getBuild().setOutputDirectory(new File(basedir, "target/classes").getAbsolutePath());
+		project.getBuild().setTestOutputDirectory(new File(basedir, "target/test-classes").getAbsolutePath());
+		DefaultArtifactHandler jarHandler = new DefaultArtifactHandler("jar");
+		jarHandler.setAddedToClasspath(true);
+		Set<Artifact> artifacts = Sets.newLinkedHashSet();
+		for (File jar : dependencyJars) {
+			Artifact artifact = new DefaultArtifact("com.example", Files.getNameWithoutExtension(jar.getName()), "1",
+					Artifact.SCOPE_COMPILE, "jar", null, jarHandler);
+			artifact.setFile(jar);
+			artifacts.add(artifact);
+		}
+		project.setArtifacts(artifacts);
+		return project;
+	}
+
+	/**
+	 * @return a session to run mojos of one build in, which is all the plugin needs of it.
+	 */
+	static MavenSession newSession() {
+		return new MavenSession(null, (RepositorySystemSession) null, new DefaultMavenExecutionRequest(),
+				new DefaultMavenExecutionResult());
+	}
+
+	/**
+	 * Configures {@code mojo} like Maven does for a pom without any plugin configuration: every parameter of
+	 * {@code goal} gets the default value declared in the plugin descriptor. Only warnings and errors are
+	 * logged.
+	 */
+	static <T extends AbstractProtocMojo> T configure(T mojo, String goal, MavenSession session, MavenProject project)
+			throws IOException {
+		final Xpp3Dom configuration = Fixtures.getPluginDescriptorMojo(goal).getChild("configuration");
+		for (Xpp3Dom parameter : configuration.getChildren()) {
+			final String defaultValue = parameter.getAttribute("default-value");
+			if (defaultValue == null) {
+				continue;
+			}
+			final Object value;
+			if ("${project}".equals(defaultValue)) {
+				value = project;
+			} else if ("${session}".equals(defaultValue)) {
+				value = session;
+			} else if ("${reactorProjects}".equals(defaultValue)) {
+				value = ImmutableList.of(project);
+			} else if ("${mojoExecution}".equals(defaultValue) || "${localRepository}".equals(defaultValue)) {
+				// the mojos do without them as long as the dependency cache directory is set
+				value = null;
+			} else {
+				value = Fixtures.convert(parameter.getAttribute("implementation"), defaultValue
+						.replace("${basedir}", project.getBasedir().getPath())
+						.replace("${project.build.directory}", project.getBuild().getDirectory()));
+			}
+			Fixtures.set(mojo, parameter.getName(), value);
+		}
+		Fixtures.set(mojo, "projectHelper", new DefaultMavenProjectHelper());
+		mojo.setLog(new DefaultLog(new ConsoleLogger(Logger.LEVEL_WARN, goal)));
+		return mojo;
+	}
+
+	private static Xpp3Dom getPluginDescriptorMojo(String goal) throws IOException {
+		final Xpp3Dom pluginDescriptor;
+		try (Reader reader = new InputStreamReader(
+				Fixtures.class.getResourceAsStream("/META-INF/maven/plugin.xml"), Charsets.UTF_8)) {
+			pluginDescriptor = Xpp3DomBuilder.build(reader);
+		} catch (XmlPullParserException e) {
+			throw new IOException(e);
+		}
+		for (Xpp3Dom mojo : pluginDescriptor.getChild("mojos").getChildren("mojo")) {
+			if (goal.equals(mojo.getChild("goal").getValue())) {
+				return mojo;
+			}
+		}
+		throw new IllegalArgumentException("The plugin has no goal " + goal);
+	}
+
+	private static Object convert(String type, String value) {
+		if (value.contains("${")) {
+			throw new IllegalStateException("Cannot evaluate " + value);
+		}
+		switch (type) {
+			case "java.lang.String":
+				return value;
+			case "java.io.File":
+				return new File(value);
+			case "boolean":
+				return Boolean.valueOf(value);
+			case "int":
+				return Integer.valueOf(value);
+			case "long":
+				return Long.valueOf(value);
+			default:
+				throw new IllegalStateException("Cannot convert " + value + " to " + type);
+		}
+	}
+
+	static void set(Object mojo, String field, Object value) {
+		try {
+			ReflectionUtils.setVariableValueInObject(mojo, field, value);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static File createWorkDirectory() {
+		return Files.createTempDir();
+	}
+
+	static void delete(File workDirectory) throws IOException {
+		FileUtils.deleteDirectory(workDirectory);
+	}
+}
@@ -0,0 +1,92 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+public class JarProtoIndexTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void jarWithoutPackagedIndexIsScannedUnlessOneIsRequired() throws IOException {
+		final File jar = this.temporaryFolder.newFile("dependency.jar");
+		Fixtures.writeJar(jar, 0, true, 0);
+
+		final JarProtoIndex scanned = JarProtoIndex.scan(jar, false);
+		assertFalse(scanned.isPackaged());
+		assertEquals(20, scanned.getNames().size());
+		assertEquals("com/example/dep0000/message00.proto", scanned.getNames().get(0));
+
+		final JarProtoIndex skipped = JarProtoIndex.scan(jar, true);
+		assertTrue(skipped.isEmpty());
+		assertFalse(skipped.covers(false));
+		assertTrue(scanned.covers(true));
+		assertTrue(scanned.withRequiredPackagedIndex(true).isEmpty());
+	}
+
+	@Test
+	public void jarWithPackagedIndexIsReadFromIt() throws IOException {
+		final File jar = this.temporaryFolder.newFile("indexed.jar");
+		final String index = JarProtoIndex.formatPackagedIndex(ImmutableList.of(new JarProtoIndex.Entry("b/b.proto", 2, 20),
+				new JarProtoIndex.Entry("a/a.proto", 1, 10)));
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+			// an entry the index does not list is not seen
+			out.putNextEntry(new JarEntry("c/c.proto"));
+			out.closeEntry();
+			out.putNextEntry(new JarEntry(JarProtoIndex.PACKAGED_INDEX));
+			out.write(index.getBytes(Charsets.UTF_8));
+			out.closeEntry();
+		}
+
+		for (boolean requirePackagedIndex : new boolean[]{false, true}) {
+			final JarProtoIndex read = JarProtoIndex.scan(jar, requirePackagedIndex);
+			assertTrue(read.isPackaged());
+			assertEquals(ImmutableList.of("a/a.proto", "b/b.proto"), read.getNames());
+			assertEquals(1, read.getEntries().get(0).crc);
+			assertEquals(20, read.getEntries().get(1).size);
+		}
+	}
+
+	@Test
+	public void persistedIndexIsReadBackAndMatchesItsJar() throws IOException {
+		final File jar = this.temporaryFolder.newFile("dependency.jar");
+		Fixtures.writeJar(jar, 0, true, 0);
+		final JarProtoIndex scanned = JarProtoIndex.scan(jar, true);
+		final File indexFile = new File(this.temporaryFolder.getRoot(), "index/dependency.index");
+
+		scanned.write(indexFile);
+		final JarProtoIndex read = JarProtoIndex.read(indexFile);
+
+		assertEquals(scanned.digest(), read.digest());
+		assertTrue(read.matches(jar));
+		assertFalse(read.covers(false));
+		assertTrue(jar.setLastModified(jar.lastModified() - 10000));
+		assertFalse(read.matches(jar));
+	}
+
+	@Test
+	public void unreadablePersistedIndexIsIgnored() throws IOException {
+		final File indexFile = this.temporaryFolder.newFile("broken.index");
+		Files.write("# protoc-plugin jar index v1\n1\t2\n", indexFile, Charsets.UTF_8);
+
+		assertNull(JarProtoIndex.read(indexFile));
+		assertNull(JarProtoIndex.read(new File(this.temporaryFolder.getRoot(), "missing.index")));
+	}
+}
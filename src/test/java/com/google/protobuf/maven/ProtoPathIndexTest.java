@@ -0,0 +1,49 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class ProtoPathIndexTest {
+
+	private static final File ROOT = new File(File.separator + "work").getAbsoluteFile();
+
+	@Test
+	public void fileIsFoundInTheFirstElementContainingIt() {
+		final ProtoPathIndex index = new ProtoPathIndex();
+		assertEquals(0, index.add(new File(ProtoPathIndexTest.ROOT, "a/b")));
+		assertEquals(1, index.add(new File(ProtoPathIndexTest.ROOT, "a")));
+		assertEquals(0, index.add(new File(ProtoPathIndexTest.ROOT, "a/b")));
+
+		final String nested = ProtoPathIndex.normalize(new File(ProtoPathIndexTest.ROOT, "a/b/c/x.proto"));
+		assertEquals(0, index.find(nested));
+		assertEquals("c/x.proto", index.relativeName(nested, 0));
+
+		final String outer = ProtoPathIndex.normalize(new File(ProtoPathIndexTest.ROOT, "a/y.proto"));
+		assertEquals(1, index.find(outer));
+		assertEquals("y.proto", index.relativeName(outer, 1));
+	}
+
+	@Test
+	public void earlierOuterElementWinsOverLaterNestedOne() {
+		final ProtoPathIndex index = new ProtoPathIndex();
+		index.add(new File(ProtoPathIndexTest.ROOT, "a"));
+		index.add(new File(ProtoPathIndexTest.ROOT, "a/b"));
+
+		final String path = ProtoPathIndex.normalize(new File(ProtoPathIndexTest.ROOT, "a/b/x.proto"));
+		assertEquals(0, index.find(path));
+		assertEquals("b/x.proto", index.relativeName(path, 0));
+	}
+
+	@Test
+	public void fileOutsideEveryElementOrNotNormalizedIsNotFound() {
+		final ProtoPathIndex index = new ProtoPathIndex();
+		index.add(new File(ProtoPathIndexTest.ROOT, "a"));
+
+		assertEquals(-1, index.find(ProtoPathIndex.normalize(new File(ProtoPathIndexTest.ROOT, "ab/x.proto"))));
+		assertEquals(-1, index.find(new File(ProtoPathIndexTest.ROOT, "a/../b/x.proto").getPath()));
+		assertEquals(-1, index.find(new File(ProtoPathIndexTest.ROOT, "a/./x.proto").getPath()));
+	}
+}
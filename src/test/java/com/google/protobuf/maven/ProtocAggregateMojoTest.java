@@ -0,0 +1,92 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.model.Resource;
+import org.apache.maven.project.MavenProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Builds of a reactor of two modules by {@link ProtocAggregateMojo}.
+ *
+ */
+public class ProtocAggregateMojoTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private TestProject project;
+	private MavenProject first;
+	private MavenProject second;
+
+	@Before
+	public void setUp() throws IOException {
+		this.project = new TestProject(this.temporaryFolder.getRoot());
+		this.first = Fixtures.newProject(new File(this.project.basedir, "first"), ImmutableList.<File>of());
+		this.second = Fixtures.newProject(new File(this.project.basedir, "second"), ImmutableList.<File>of());
+		this.project.write(new File(this.first.getBasedir(), "src/main/proto/a/one.proto"),
+				"syntax = \"proto2\";\npackage a;\nmessage One {}\n");
+		this.project.write(new File(this.first.getBasedir(), "src/main/proto/a/skipped.proto"),
+				"syntax = \"proto2\";\npackage a;\nmessage Skipped {}\n");
+		this.project.write(new File(this.second.getBasedir(), "src/main/proto/b/two.proto"),
+				"syntax = \"proto2\";\npackage b;\nimport \"a/one.proto\";\nmessage Two {}\n");
+	}
+
+	@Test
+	public void protosArePackagedWithTheClassesOfTheirModule() throws Exception {
+		this.aggregate("excludes", ImmutableSet.of("**/skipped.proto"));
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto", "b/two.proto")), this.project.takeInvocations());
+		assertTrue(new File(this.first.getBasedir(), "target/generated-sources/protoc/a/One.java").isFile());
+		assertTrue(new File(this.second.getBasedir(), "target/generated-sources/protoc/b/Two.java").isFile());
+		assertTrue(new File(this.first.getBuild().getOutputDirectory(), "a/one.proto").isFile());
+		assertFalse(new File(this.first.getBuild().getOutputDirectory(), "a/skipped.proto").exists());
+		assertTrue(new File(this.second.getBuild().getOutputDirectory(), "b/two.proto").isFile());
+		assertTrue(this.first.getResources().isEmpty());
+	}
+
+	@Test
+	public void protoSourceRootsAreResourcesWithoutCopyProtos() throws Exception {
+		this.aggregate("copyProtos", Boolean.FALSE, "excludes", ImmutableSet.of("**/skipped.proto"));
+
+		final List<Resource> resources = this.first.getResources();
+		assertEquals(1, resources.size());
+		assertEquals(new File(this.first.getBasedir(), "src/main/proto").getAbsolutePath(),
+				resources.get(0).getDirectory());
+		assertEquals(ImmutableList.of("**/skipped.proto"), resources.get(0).getExcludes());
+		assertFalse(new File(this.first.getBuild().getOutputDirectory(), "a/one.proto").exists());
+	}
+
+	@Test
+	public void everyBuildCompilesAllProtosButKeepsUnchangedOutputs() throws Exception {
+		this.aggregate();
+		this.project.takeInvocations();
+		final File generated = new File(this.second.getBasedir(), "target/generated-sources/protoc/b/Two.java");
+		final long lastModified = generated.lastModified() - 3600 * 1000;
+		assertTrue(generated.setLastModified(lastModified));
+
+		this.aggregate();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto", "a/skipped.proto", "b/two.proto")),
+				this.project.takeInvocations());
+		assertEquals(lastModified, generated.lastModified());
+	}
+
+	private void aggregate(Object... parameters) throws Exception {
+		final ProtocAggregateMojo mojo = this.project.build().configure(new ProtocAggregateMojo(), "aggregate", parameters);
+		Fixtures.set(mojo, "reactorProjects", ImmutableList.of(this.first, this.second));
+		mojo.execute();
+	}
+}
@@ -0,0 +1,337 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Whole builds of {@link ProtocCompileMojo}: cold, warm, after editing, deleting and adding protos, and after a
+ * dependency changed, checking the generated files and which protos {@code protoc} was run on.
+ *
+ */
+public class ProtocCompileMojoTest {
+
+	private static final String ONE = "syntax = \"proto2\";\npackage a;\nmessage One {}\n";
+	private static final String TWO = "syntax = \"proto2\";\npackage a;\nimport \"a/one.proto\";\nmessage Two {}\n";
+	private static final String THREE = "syntax = \"proto2\";\npackage b;\nmessage Three {}\n";
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private TestProject project;
+
+	@Before
+	public void setUp() throws IOException {
+		this.project = new TestProject(this.temporaryFolder.getRoot());
+		this.project.writeProto("a/one.proto", ProtocCompileMojoTest.ONE);
+		this.project.writeProto("a/two.proto", ProtocCompileMojoTest.TWO);
+		this.project.writeProto("b/three.proto", ProtocCompileMojoTest.THREE);
+	}
+
+	@Test
+	public void coldBuildCompilesEveryProtoInOneInvocation() throws Exception {
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto", "a/two.proto", "b/three.proto")),
+				this.project.takeInvocations());
+		assertTrue(this.project.generated("a/One.java").isFile());
+		assertTrue(this.project.generated("a/Two.java").isFile());
+		assertTrue(this.project.generated("b/Three.java").isFile());
+		assertTrue(new File(this.project.classesDirectory, "b/three.proto").isFile());
+	}
+
+	@Test
+	public void warmBuildSkipsProtocAndKeepsTheOutputs() throws Exception {
+		this.project.compile();
+		this.project.takeInvocations();
+		final long lastModified = this.backdate(this.project.generated("a/One.java"));
+
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+		assertEquals(lastModified, this.project.generated("a/One.java").lastModified());
+	}
+
+	@Test
+	public void editedProtoRecompilesItselfAndItsImporters() throws Exception {
+		this.project.compile();
+		this.project.takeInvocations();
+		final long lastModified = this.backdate(this.project.generated("b/Three.java"));
+
+		final String edited = ProtocCompileMojoTest.ONE + "message Added {}\n";
+		this.project.writeProto("a/one.proto", edited);
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto", "a/two.proto")), this.project.takeInvocations());
+		assertTrue(Files.toString(this.project.generated("a/One.java"), Charsets.UTF_8)
+				.contains("compiled from " + edited.length() + " bytes"));
+		assertEquals(lastModified, this.project.generated("b/Three.java").lastModified());
+	}
+
+	@Test
+	public void editedProtoImportedByNothingRecompilesAlone() throws Exception {
+		this.project.compile();
+		this.project.takeInvocations();
+
+		this.project.writeProto("a/two.proto", ProtocCompileMojoTest.TWO + "// edited\n");
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/two.proto")), this.project.takeInvocations());
+	}
+
+	@Test
+	public void touchedButUnchangedProtoIsNotRecompiled() throws Exception {
+		this.project.compile();
+		this.project.takeInvocations();
+
+		this.project.touch(new File(this.project.protoSourceRoot, "a/one.proto"));
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+	}
+
+	@Test
+	public void deletedProtoHasItsOutputsPruned() throws Exception {
+		this.project.compile();
+		this.project.takeInvocations();
+
+		FileUtils.forceDelete(new File(this.project.protoSourceRoot, "b/three.proto"));
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+		assertFalse(this.project.generated("b/Three.java").exists());
+		assertFalse(new File(this.project.classesDirectory, "b/three.proto").exists());
+		assertTrue(this.project.generated("a/One.java").isFile());
+	}
+
+	@Test
+	public void addedProtoIsCompiledAlone() throws Exception {
+		this.project.compile();
+		this.project.takeInvocations();
+
+		this.project.writeProto("b/four.proto", "syntax = \"proto2\";\npackage b;\nmessage Four {}\n");
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("b/four.proto")), this.project.takeInvocations());
+		assertTrue(this.project.generated("b/Four.java").isFile());
+	}
+
+	@Test
+	public void deletedOutputIsGeneratedAgain() throws Exception {
+		this.project.compile();
+		this.project.takeInvocations();
+
+		FileUtils.forceDelete(this.project.generated("b/Three.java"));
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("b/three.proto")), this.project.takeInvocations());
+		assertTrue(this.project.generated("b/Three.java").isFile());
+	}
+
+	@Test
+	public void changedDependencyRecompilesTheProtosDependingOnIt() throws Exception {
+		final File jar = this.project.addDependency(0, 0);
+		this.project.writeProto("c/uses.proto",
+				"syntax = \"proto2\";\npackage c;\nimport \"com/example/dep0000/message00.proto\";\nmessage Uses {}\n");
+		this.project.compile();
+		assertEquals(1, this.project.takeInvocations().size());
+
+		this.project.compile();
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+
+		// a rebuilt jar with the same protos, like a new snapshot
+		assertTrue(jar.setLastModified(jar.lastModified() + 10000));
+		this.project.compile();
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+
+		this.project.writeDependency(jar, 0, 1);
+		this.project.compile();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("c/uses.proto")), this.project.takeInvocations());
+		assertTrue(this.project.generated("c/Uses.java").isFile());
+	}
+
+	@Test
+	public void checkStalenessSkipsNonIncrementalBuildsWithNewerOutputs() throws Exception {
+		this.project.compile("incremental", Boolean.FALSE);
+		this.project.takeInvocations();
+
+		// written with a time in the past, so the outputs are still newer
+		this.project.writeProto("a/one.proto", ProtocCompileMojoTest.ONE + "// edited\n");
+		this.project.compile("incremental", Boolean.FALSE, "checkStaleness", Boolean.TRUE);
+
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+	}
+
+	@Test
+	public void unstagedBuildPrunesTheOutputsOfDeletedProtos() throws Exception {
+		this.project.compile("preserveUnchangedOutputs", Boolean.FALSE);
+		this.project.takeInvocations();
+
+		FileUtils.forceDelete(new File(this.project.protoSourceRoot, "b/three.proto"));
+		this.project.writeProto("a/one.proto", ProtocCompileMojoTest.ONE + "// edited\n");
+		this.project.compile("preserveUnchangedOutputs", Boolean.FALSE);
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto", "a/two.proto")), this.project.takeInvocations());
+		assertFalse(this.project.generated("b/Three.java").exists());
+		assertTrue(this.project.generated("a/Two.java").isFile());
+	}
+
+	@Test
+	public void unstagedBuildPrunesTheOutputsOfOtherGenerators() throws Exception {
+		final OutputTarget python = new OutputTarget();
+		Fixtures.set(python, "generator", "python");
+		final File pythonDirectory = new File(this.project.basedir, "target/generated-sources/python");
+		Fixtures.set(python, "outputDirectory", pythonDirectory);
+		final List<OutputTarget> outputTargets = ImmutableList.of(python);
+		this.project.compile("preserveUnchangedOutputs", Boolean.FALSE, "outputTargets", outputTargets);
+		this.project.takeInvocations();
+		assertTrue(new File(pythonDirectory, "b/three_pb2.py").isFile());
+
+		FileUtils.forceDelete(new File(this.project.protoSourceRoot, "b/three.proto"));
+		this.project.compile("preserveUnchangedOutputs", Boolean.FALSE, "outputTargets", outputTargets);
+
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+		assertFalse(new File(pythonDirectory, "b/three_pb2.py").exists());
+		assertTrue(new File(pythonDirectory, "a/one_pb2.py").isFile());
+	}
+
+	@Test
+	public void parallelBuildCompilesEveryProtoExactlyOnce() throws Exception {
+		this.project.compile("parallel", Boolean.TRUE, "protocThreads", Integer.valueOf(2));
+
+		final List<ImmutableSet<String>> invocations = this.project.takeInvocations();
+		assertEquals(2, invocations.size());
+		assertEquals(ImmutableSet.of("a/one.proto", "a/two.proto", "b/three.proto"),
+				Sets.union(invocations.get(0), invocations.get(1)));
+		assertTrue(Sets.intersection(invocations.get(0), invocations.get(1)).isEmpty());
+	}
+
+	@Test
+	public void buildCacheIsOffByDefault() throws Exception {
+		final ProtocCompileMojo mojo = this.project.compile();
+
+		assertEquals(0, TestProject.counter(mojo, ExecutionMetrics.BUILD_CACHE_MISSES));
+		assertFalse(new File(this.project.dependencyCacheDirectory, "outputs").exists());
+	}
+
+	@Test
+	public void buildCacheRestoresTheOutputsOfACleanBuild() throws Exception {
+		final ProtocCompileMojo first = this.project.compile("useBuildCache", Boolean.TRUE);
+		assertEquals(1, this.project.takeInvocations().size());
+		assertEquals(1, TestProject.counter(first, ExecutionMetrics.BUILD_CACHE_MISSES));
+
+		FileUtils.deleteDirectory(new File(this.project.basedir, "target"));
+		final ProtocCompileMojo second = this.project.compile("useBuildCache", Boolean.TRUE);
+
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+		assertEquals(1, TestProject.counter(second, ExecutionMetrics.BUILD_CACHE_HITS));
+		assertTrue(this.project.generated("a/Two.java").isFile());
+
+		// the restored outputs are recorded like compiled ones
+		this.project.writeProto("a/two.proto", ProtocCompileMojoTest.TWO + "// edited\n");
+		this.project.compile("useBuildCache", Boolean.TRUE);
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/two.proto")), this.project.takeInvocations());
+	}
+
+	@Test
+	public void changedConfigurationCompilesEverything() throws Exception {
+		this.project.compile();
+		this.project.takeInvocations();
+
+		this.project.compile("reproducible", Boolean.TRUE);
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto", "a/two.proto", "b/three.proto")),
+				this.project.takeInvocations());
+	}
+
+	@Test
+	public void writeProtoIndexPackagesTheProtosWithAnIndex() throws Exception {
+		final ProtocCompileMojo mojo = this.project.compile("writeProtoIndex", Boolean.TRUE);
+
+		assertEquals(3, TestProject.counter(mojo, ExecutionMetrics.PACKAGED_PROTOS_COPIED));
+		assertTrue(new File(this.project.classesDirectory, JarProtoIndex.PACKAGED_INDEX).isFile());
+	}
+
+	@Test
+	public void protocErrorsAreLoggedOnce() throws Exception {
+		this.project.writeProto("b/three.proto", ProtocCompileMojoTest.THREE + FakeProtoc.ERROR_MARKER + "\n");
+		final List<String> errors = Lists.newArrayList();
+		final ProtocCompileMojo mojo = this.project.build().configure(new ProtocCompileMojo(), "compile");
+		mojo.setLog(new SystemStreamLog() {
+			@Override
+			public void debug(CharSequence content) {
+			}
+
+			@Override
+			public void info(CharSequence content) {
+			}
+
+			@Override
+			public void error(CharSequence content) {
+				errors.add(content.toString());
+			}
+		});
+
+		try {
+			mojo.execute();
+			fail();
+		} catch (MojoFailureException expected) {
+		}
+
+		int reported = 0;
+		for (String error : errors) {
+			if (error.contains("b/three.proto:1:1: Expected top-level statement")) {
+				reported++;
+			}
+		}
+		assertEquals(1, reported);
+	}
+
+	@Test
+	public void diagnosticsFileCoversAllProtocRunsOfTheLastExecution() throws Exception {
+		this.project.writeProto("b/three.proto", ProtocCompileMojoTest.THREE + FakeProtoc.WARNING_MARKER + "\n");
+		final File diagnosticsFile = new File(this.project.basedir, "target/protoc-diagnostics.json");
+
+		// the verification compiles the protos a second time
+		for (int i = 0; i < 2; i++) {
+			this.project.compile("incremental", Boolean.FALSE, "verifyReproducibility", Boolean.TRUE,
+					"diagnosticsFile", diagnosticsFile);
+
+			final List<String> diagnostics = Files.readLines(diagnosticsFile, Charsets.UTF_8);
+			assertEquals(2, diagnostics.size());
+			assertTrue(diagnostics.get(1).contains("b/three.proto"));
+		}
+	}
+
+	/**
+	 * Moves the modification time of {@code file} an hour back, so a rewrite would be noticed.
+	 */
+	private long backdate(File file) throws IOException {
+		final long lastModified = file.lastModified() - 3600 * 1000;
+		if (!file.setLastModified(lastModified)) {
+			throw new IOException("Could not backdate " + file);
+		}
+		return file.lastModified();
+	}
+}
@@ -0,0 +1,49 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.execution.MavenSession;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class ProtocSlotsTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void executionsOfOneBuildShareTheLimitOfTheFirst() throws IOException {
+		final MavenSession session = Fixtures.newSession();
+		final ProtocSlots first = ProtocSlots.forSession(session, 2, null);
+
+		assertEquals(2, ProtocSlots.forSession(session.clone(), 3, null).getSize());
+		assertEquals(2, ProtocSlots.forSession(session, 3, this.temporaryFolder.newFolder("locks")).getSize());
+		// the next build of a long-lived JVM
+		assertEquals(3, ProtocSlots.forSession(Fixtures.newSession(), 3, null).getSize());
+		assertEquals(2, first.getSize());
+	}
+
+	@Test
+	public void lockDirectoryKeepsTheLargestSlotCount() throws IOException, InterruptedException {
+		final File locks = this.temporaryFolder.newFolder("locks");
+		// recorded by another build
+		Files.write("3", new File(locks, "protoc-slots"), Charsets.US_ASCII);
+
+		assertEquals(3, ProtocSlots.forSession(Fixtures.newSession(), 2, locks).getLockSlots());
+		assertEquals(5, ProtocSlots.forSession(Fixtures.newSession(), 5, locks).getLockSlots());
+		assertEquals("5", Files.toString(new File(locks, "protoc-slots"), Charsets.US_ASCII));
+		assertEquals(5, ProtocSlots.forSession(Fixtures.newSession(), 4, locks).getLockSlots());
+
+		try (ProtocSlots.Slot slot = ProtocSlots.forSession(null, 1, locks).acquire()) {
+			assertTrue(new File(locks, "protoc-0.lock").isFile());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Builds running {@link ProtocTestCompileMojo} after {@link ProtocCompileMojo}, whose test protos import the
+ * main protos.
+ *
+ */
+public class ProtocTestCompileMojoTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private TestProject project;
+
+	@Before
+	public void setUp() throws IOException {
+		this.project = new TestProject(this.temporaryFolder.getRoot());
+		this.project.addDependency(0, 0);
+		this.project.writeProto("a/one.proto", "syntax = \"proto2\";\npackage a;\n"
+				+ "import \"com/example/dep0000/message00.proto\";\nmessage One {}\n");
+		this.project.writeTestProto("t/test.proto",
+				"syntax = \"proto2\";\npackage t;\nimport \"a/one.proto\";\nmessage Test {}\n");
+	}
+
+	@Test
+	public void testProtosImportTheMainProtosWithoutCompilingThemAgain() throws Exception {
+		final TestProject.Build build = this.project.build();
+		build.compile();
+		final ProtocTestCompileMojo testCompile = build.testCompile();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto"), ImmutableSet.of("t/test.proto")),
+				this.project.takeInvocations());
+		assertTrue(new File(this.project.testOutputDirectory, "t/Test.java").isFile());
+		assertTrue(new File(this.project.basedir, "target/test-classes/t/test.proto").isFile());
+		// the jar indexed by the main compilation is reused
+		assertEquals(0, TestProject.counter(testCompile, ExecutionMetrics.JARS_OPENED));
+	}
+
+	@Test
+	public void testCompileAloneTakesTheMainProtosFromTheClassesDirectory() throws Exception {
+		final TestProject.Build build = this.project.build();
+		build.compile();
+		build.testCompile();
+		this.project.takeInvocations();
+
+		this.project.writeTestProto("t/test.proto",
+				"syntax = \"proto2\";\npackage t;\nimport \"a/one.proto\";\nmessage Test {}\n// edited\n");
+		this.project.build().testCompile();
+
+		assertEquals(ImmutableList.of(ImmutableSet.of("t/test.proto")), this.project.takeInvocations());
+	}
+
+	@Test
+	public void warmBuildSkipsProtocForBothGoals() throws Exception {
+		TestProject.Build build = this.project.build();
+		build.compile();
+		build.testCompile();
+		this.project.takeInvocations();
+
+		build = this.project.build();
+		build.compile();
+		build.testCompile();
+
+		assertEquals(ImmutableList.of(), this.project.takeInvocations());
+	}
+}
@@ -0,0 +1,96 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Runs {@link ProtocWatchMojo} on a thread of its own and edits the watched protos.
+ *
+ */
+public class ProtocWatchMojoTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test(timeout = 60000)
+	public void changedProtoIsRecompiledWithItsImporters() throws Exception {
+		final TestProject project = new TestProject(this.temporaryFolder.getRoot());
+		project.writeProto("a/one.proto", "syntax = \"proto2\";\npackage a;\nmessage One {}\n");
+		project.writeProto("a/two.proto", "syntax = \"proto2\";\npackage a;\nimport \"a/one.proto\";\nmessage Two {}\n");
+		project.writeProto("b/three.proto", "syntax = \"proto2\";\npackage b;\nmessage Three {}\n");
+		final ProtocWatchMojo mojo =
+				project.build().configure(new ProtocWatchMojo(), "watch", "debounceMillis", Long.valueOf(50));
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mojo.execute();
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		}, "watch");
+		thread.start();
+		try {
+			assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto", "a/two.proto", "b/three.proto")),
+					ProtocWatchMojoTest.awaitInvocations(project, thread));
+
+			final String edited = "syntax = \"proto2\";\npackage a;\nmessage One {}\nmessage Added {}\n";
+			project.writeProto("a/one.proto", edited);
+
+			assertEquals(ImmutableList.of(ImmutableSet.of("a/one.proto", "a/two.proto")),
+					ProtocWatchMojoTest.awaitInvocations(project, thread));
+			ProtocWatchMojoTest.awaitContent(project.generated("a/One.java"), "compiled from " + edited.length() + " bytes");
+		} finally {
+			thread.interrupt();
+			thread.join(10000);
+		}
+		assertNull(failure.get());
+	}
+
+	/**
+	 * Waits for the watching thread to compile something and then to wait again, for changes or for the
+	 * {@code protoc} process of a further compilation.
+	 *
+	 * @return the invocations of {@code protoc} meanwhile.
+	 */
+	private static List<ImmutableSet<String>> awaitInvocations(TestProject project, Thread thread)
+			throws IOException, InterruptedException {
+		final List<ImmutableSet<String>> invocations = Lists.newArrayList();
+		while (invocations.isEmpty() || thread.getState() != Thread.State.WAITING) {
+			if (!thread.isAlive()) {
+				throw new AssertionError("The watch goal stopped");
+			}
+			Thread.sleep(50);
+			invocations.addAll(project.takeInvocations());
+		}
+		return invocations;
+	}
+
+	/**
+	 * Waits for {@code file} to contain {@code content}, as the generated files are only moved into place after
+	 * {@code protoc} exits.
+	 */
+	private static void awaitContent(File file, String content) throws IOException, InterruptedException {
+		while (!file.isFile() || !Files.toString(file, Charsets.UTF_8).contains(content)) {
+			Thread.sleep(50);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.google.protobuf.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+public class StagedOutputTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void filesMatchedByTheDefaultExcludesOfPlexusAreSwappedToo() throws IOException {
+		final File outputDirectory = this.temporaryFolder.newFolder("output");
+		final StagedOutput stagedOutput = new StagedOutput(new File(this.temporaryFolder.getRoot(), "staging"));
+		stagedOutput.prepare();
+		StagedOutputTest.write(new File(stagedOutput.getDirectory(), "a/A.java"));
+		StagedOutputTest.write(new File(stagedOutput.getDirectory(), "a/A.java~"));
+		StagedOutputTest.write(new File(stagedOutput.getDirectory(), "CVS/Entries"));
+
+		assertEquals(ImmutableSet.of("CVS/Entries", "a/A.java", "a/A.java~"), stagedOutput.swap(outputDirectory));
+		assertTrue(new File(outputDirectory, "a/A.java~").isFile());
+		assertTrue(new File(outputDirectory, "CVS/Entries").isFile());
+	}
+
+	@Test
+	public void everyVisibleFileNotKeptIsDeleted() throws IOException {
+		final File outputDirectory = this.temporaryFolder.newFolder("output");
+		StagedOutputTest.write(new File(outputDirectory, "a/A.java"));
+		StagedOutputTest.write(new File(outputDirectory, "a/B.java~"));
+		StagedOutputTest.write(new File(outputDirectory, ".hidden/C.java"));
+
+		StagedOutput.deleteAllExcept(outputDirectory, ImmutableSet.of("a/A.java"));
+
+		assertTrue(new File(outputDirectory, "a/A.java").isFile());
+		assertFalse(new File(outputDirectory, "a/B.java~").exists());
+		assertTrue(new File(outputDirectory, ".hidden/C.java").isFile());
+	}
+
+	private static void write(File file) throws IOException {
+		Files.createParentDirs(file);
+		Files.write(file.getName(), file, Charsets.UTF_8);
+	}
+}
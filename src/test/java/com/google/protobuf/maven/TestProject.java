@@ -0,0 +1,185 @@
+package com.google.protobuf.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.ReflectionUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * A project below a work directory whose builds run the mojos with the defaults of the plugin descriptor and
+ * {@link FakeProtoc}, which logs the protos of every {@code protoc} invocation.
+ *
+ */
+final class TestProject {
+
+	final File workDirectory;
+	final File basedir;
+	final File protoSourceRoot;
+	final File protoTestSourceRoot;
+	final File outputDirectory;
+	final File testOutputDirectory;
+	final File classesDirectory;
+	final File dependencyCacheDirectory;
+
+	private final File protocExecutable;
+	private final File invocationLog;
+	private final List<File> dependencyJars = Lists.newArrayList();
+	private long lastModified = System.currentTimeMillis() - 3600 * 1000;
+
+	TestProject(File workDirectory) throws IOException {
+		this.workDirectory = workDirectory;
+		this.basedir = new File(workDirectory, "project");
+		this.protoSourceRoot = new File(this.basedir, "src/main/proto");
+		this.protoTestSourceRoot = new File(this.basedir, "src/test/proto");
+		this.outputDirectory = new File(this.basedir, "target/generated-sources/protoc");
+		this.testOutputDirectory = new File(this.basedir, "target/generated-test-sources/protoc");
+		this.classesDirectory = new File(this.basedir, "target/classes");
+		this.dependencyCacheDirectory = new File(workDirectory, "cache");
+		this.invocationLog = new File(workDirectory, "protoc.log");
+		this.protocExecutable = FakeProtoc.install(new File(workDirectory, "bin"), 0, 0, 0, this.invocationLog);
+	}
+
+	/**
+	 * A single {@code mvn} invocation, whose goals share the session and the project.
+	 */
+	final class Build {
+		final MavenSession session;
+		final MavenProject project;
+
+		Build(MavenSession session) {
+			this.session = session;
+			this.project = Fixtures.newProject(TestProject.this.basedir, TestProject.this.dependencyJars);
+		}
+
+		/**
+		 * Runs the {@code compile} goal with {@code parameters}, pairs of a parameter name and its value.
+		 */
+		ProtocCompileMojo compile(Object... parameters) throws IOException, MojoExecutionException, MojoFailureException {
+			return this.execute(new ProtocCompileMojo(), "compile", parameters);
+		}
+
+		ProtocTestCompileMojo testCompile(Object... parameters)
+				throws IOException, MojoExecutionException, MojoFailureException {
+			return this.execute(new ProtocTestCompileMojo(), "test-compile", parameters);
+		}
+
+		/**
+		 * @return {@code mojo} configured like {@link #execute(AbstractProtocMojo, String, Object...)}, without
+		 *         running it.
+		 */
+		<T extends AbstractProtocMojo> T configure(T mojo, String goal, Object... parameters) throws IOException {
+			Fixtures.configure(mojo, goal, this.session, this.project);
+			Fixtures.set(mojo, "protocExecutable", TestProject.this.protocExecutable.getAbsolutePath());
+			Fixtures.set(mojo, "dependencyCacheDirectory", TestProject.this.dependencyCacheDirectory);
+			for (int i = 0; i < parameters.length; i += 2) {
+				Fixtures.set(mojo, (String) parameters[i], parameters[i + 1]);
+			}
+			return mojo;
+		}
+
+		private <T extends AbstractProtocMojo> T execute(T mojo, String goal, Object... parameters)
+				throws IOException, MojoExecutionException, MojoFailureException {
+			this.configure(mojo, goal, parameters).execute();
+			return mojo;
+		}
+	}
+
+	/**
+	 * @return a new build, as started by running {@code mvn} once more.
+	 */
+	Build build() {
+		return new Build(Fixtures.newSession());
+	}
+
+	/**
+	 * Runs the {@code compile} goal in a new build.
+	 */
+	ProtocCompileMojo compile(Object... parameters) throws IOException, MojoExecutionException, MojoFailureException {
+		return this.build().compile(parameters);
+	}
+
+	File writeProto(String name, String content) throws IOException {
+		return this.write(new File(this.protoSourceRoot, name), content);
+	}
+
+	File writeTestProto(String name, String content) throws IOException {
+		return this.write(new File(this.protoTestSourceRoot, name), content);
+	}
+
+	/**
+	 * Writes {@code content} to {@code file} with a modification time a second past the previous one, so every
+	 * change is seen whatever the resolution of the file system.
+	 */
+	File write(File file, String content) throws IOException {
+		Files.createParentDirs(file);
+		Files.write(content, file, Charsets.UTF_8);
+		this.touch(file);
+		return file;
+	}
+
+	void touch(File file) throws IOException {
+		this.lastModified += 1000;
+		if (!file.setLastModified(this.lastModified)) {
+			throw new IOException("Could not touch " + file);
+		}
+	}
+
+	/**
+	 * Adds a dependency jar with the protos of {@link Fixtures#writeJar(File, int, boolean, int)}.
+	 */
+	File addDependency(int index, int revision) throws IOException {
+		final File jar = new File(this.workDirectory, String.format("repository/dependency%04d.jar", index));
+		this.writeDependency(jar, index, revision);
+		this.dependencyJars.add(jar);
+		return jar;
+	}
+
+	void writeDependency(File jar, int index, int revision) throws IOException {
+		Fixtures.writeJar(jar, index, true, revision);
+		this.touch(jar);
+	}
+
+	File generated(String relativePath) {
+		return new File(this.outputDirectory, relativePath);
+	}
+
+	/**
+	 * @return the protos of every {@code protoc} invocation since the last call, one set per invocation.
+	 */
+	List<ImmutableSet<String>> takeInvocations() throws IOException {
+		if (!this.invocationLog.isFile()) {
+			return ImmutableList.of();
+		}
+		final List<ImmutableSet<String>> invocations = Lists.newArrayList();
+		for (String line : Files.readLines(this.invocationLog, Charsets.UTF_8)) {
+			invocations.add(ImmutableSet.copyOf(Splitter.on(' ').omitEmptyStrings().split(line)));
+		}
+		if (!this.invocationLog.delete()) {
+			throw new IOException("Could not delete " + this.invocationLog);
+		}
+		return invocations;
+	}
+
+	/**
+	 * @return the value {@code counter} of the metrics of the last execution of {@code mojo}.
+	 */
+	static long counter(AbstractProtocMojo mojo, String counter) {
+		try {
+			return ((ExecutionMetrics) ReflectionUtils.getValueIncludingSuperclasses("metrics", mojo)).getCounter(counter);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}